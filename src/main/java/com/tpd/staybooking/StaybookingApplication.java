@@ -2,8 +2,10 @@ package com.tpd.staybooking;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling // ReservationHoldService expires holds from a scheduled tick
 public class StaybookingApplication {
 
     public static void main(String[] args) {
@@ -4,6 +4,7 @@ import com.google.auth.Credentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -12,7 +13,9 @@ import java.io.IOException;
 /*this configuration class sets up and provides a bean named storage that establishes a connection to Google Cloud Storage.
 This bean can be injected into other components of the Spring application to access and interact with Google Cloud Storage services.
 The credentials.json file (in resource folder) contains the necessary authentication information to securely access the cloud storage resources.*/
+// Only with image.storage=gcs (the default), a local image store needs neither the bucket nor the credentials.
 @Configuration
+@ConditionalOnProperty(name = "image.storage", havingValue = "gcs", matchIfMissing = true)
 public class GoogleCloudStorageConfig {
 
     @Bean // Provide a bean to read the credentials from the Storage folder and create
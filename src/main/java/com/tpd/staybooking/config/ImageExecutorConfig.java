@@ -0,0 +1,33 @@
+package com.tpd.staybooking.config;
+
+import com.tpd.staybooking.util.BoundedExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/*
+The threads stay images are handled on.
+- imageUploadExecutor: ImageStorageService uploads images here. Uploads used to run on the common ForkJoinPool of
+  parallel streams, shared with everything else in the JVM and sized for CPU work, not for waiting on the network.
+  A pool of their own keeps a burst of new listings from starving other parallel work, and the bounded queue slows
+  the uploading requests down instead of queueing gigabytes of images.
+- imageVariantExecutor: ImageVariantService decodes and resizes images here. That is CPU and memory heavy, so few
+  threads: a burst of new images or of first thumbnail requests cannot take over every core.
+*/
+@Configuration
+public class ImageExecutorConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public BoundedExecutor imageUploadExecutor(
+            @Value("${image.upload.threads:8}") int threads,
+            @Value("${image.upload.queue-capacity:64}") int queueCapacity) {
+        return new BoundedExecutor("image-upload", threads, queueCapacity);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public BoundedExecutor imageVariantExecutor(
+            @Value("${image.variant.threads:2}") int threads,
+            @Value("${image.variant.queue-capacity:64}") int queueCapacity) {
+        return new BoundedExecutor("image-variant", threads, queueCapacity);
+    }
+}
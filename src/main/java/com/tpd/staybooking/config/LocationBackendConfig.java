@@ -0,0 +1,35 @@
+package com.tpd.staybooking.config;
+
+import com.tpd.staybooking.repository.CustomLocationRepository;
+import com.tpd.staybooking.repository.EmbeddedLocationRepository;
+import com.tpd.staybooking.repository.LocationRepository;
+import com.tpd.staybooking.repository.StayRepository;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/*
+Chooses where stay locations are indexed and searched. Services depend on CustomLocationRepository, and this
+@Primary bean decides which implementation they get:
+location.backend=elasticsearch (default) - the "loc" index through LocationRepository.
+location.backend=embedded - an in-process geohash grid. Together with
+spring.data.elasticsearch.repositories.enabled=false the application runs without an Elasticsearch cluster.
+*/
+@Configuration
+public class LocationBackendConfig {
+
+    @Value("${location.backend:elasticsearch}")
+    private String locationBackend;
+
+    @Bean
+    @Primary
+    public CustomLocationRepository locationBackend(ObjectProvider<LocationRepository> locationRepository,
+            StayRepository stayRepository) {
+        if ("embedded".equals(locationBackend)) {
+            return new EmbeddedLocationRepository(stayRepository);
+        }
+        return locationRepository.getObject();
+    }
+}
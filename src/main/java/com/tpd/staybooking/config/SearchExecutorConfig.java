@@ -0,0 +1,22 @@
+package com.tpd.staybooking.config;
+
+import com.tpd.staybooking.util.BoundedExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/*
+The threads SearchService runs its independent stages on (capacity query, availability check, one task per chunk of
+stay ids). The pool is bounded so a burst of searches cannot ask for more MySQL connections than the connection pool
+has. Virtual threads would fit this well, but they need Java 21 and the project is built for Java 17.
+*/
+@Configuration
+public class SearchExecutorConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public BoundedExecutor searchExecutor(
+            @Value("${search.executor.threads:16}") int threads,
+            @Value("${search.executor.queue-capacity:256}") int queueCapacity) {
+        return new BoundedExecutor("search", threads, queueCapacity);
+    }
+}
@@ -48,11 +48,15 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .antMatchers(HttpMethod.POST, "/register/*").permitAll()
                 .antMatchers(HttpMethod.POST, "/authenticate/*").permitAll()
+                .antMatchers(HttpMethod.GET, "/images/**").permitAll() // public like the GCS bucket
                 .antMatchers("/stays").hasAuthority("ROLE_HOST") // 为了拜访stay，一定要Role as Host
                 .antMatchers("/stays/*").hasAuthority("ROLE_HOST")
+                .antMatchers("/stays/blocks/**").hasAuthority("ROLE_HOST")
                 .antMatchers("/search").hasAuthority("ROLE_GUEST")
+                .antMatchers("/search/*").hasAuthority("ROLE_GUEST")
                 .antMatchers("/reservations").hasAuthority("ROLE_GUEST")
                 .antMatchers("/reservations/*").hasAuthority("ROLE_GUEST")
+                .antMatchers("/reservations/holds/**").hasAuthority("ROLE_GUEST")
                 .anyRequest().authenticated()
                 .and()
                 .csrf()
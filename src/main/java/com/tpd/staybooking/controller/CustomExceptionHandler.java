@@ -7,6 +7,8 @@ import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
 
+import java.util.concurrent.RejectedExecutionException;
+
 // Write this information properly for Spring Boot. When Spring Boot uses it, it can refer to this content to execute the following code.
 @ControllerAdvice
 public class CustomExceptionHandler {
@@ -31,11 +33,46 @@ public class CustomExceptionHandler {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
+    @ExceptionHandler(RejectedExecutionException.class) // every upload or image thread and queue slot is taken
+    public final ResponseEntity<String> handleRejectedExecutionExceptions(Exception ex) {
+        return new ResponseEntity<>("Server is busy, please try again", HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(InvalidAvailabilityRequestException.class)
+    public final ResponseEntity<String> handleInvalidAvailabilityRequestExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
     @ExceptionHandler(InvalidSearchDateException.class)
     public final ResponseEntity<String> handleInvalidSearchDateExceptions(Exception ex) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(InvalidSearchPageException.class)
+    public final ResponseEntity<String> handleInvalidSearchPageExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(InvalidSearchAreaException.class)
+    public final ResponseEntity<String> handleInvalidSearchAreaExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(SearchTimeoutException.class)
+    public final ResponseEntity<String> handleSearchTimeoutExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(InvalidStayUploadException.class)
+    public final ResponseEntity<String> handleInvalidStayUploadExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(ImageTooLargeException.class)
+    public final ResponseEntity<String> handleImageTooLargeExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.PAYLOAD_TOO_LARGE);
+    }
+
     @ExceptionHandler(GeoCodingException.class)
     public final ResponseEntity<String> handleGeoCodingExceptions(Exception ex) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
@@ -56,6 +93,26 @@ public class CustomExceptionHandler {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(InvalidBlockRequestException.class)
+    public final ResponseEntity<String> handleInvalidBlockRequestExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(InvalidCalendarRequestException.class)
+    public final ResponseEntity<String> handleInvalidCalendarRequestExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(InvalidReservationImportException.class)
+    public final ResponseEntity<String> handleInvalidReservationImportExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(TooManyHoldsException.class)
+    public final ResponseEntity<String> handleTooManyHoldsExceptions(Exception ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.TOO_MANY_REQUESTS);
+    }
+
     @ExceptionHandler(ReservationNotFoundException.class)
     public final ResponseEntity<String> handleReservationNotFoundExceptions(Exception ex) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.NOT_FOUND);
@@ -0,0 +1,133 @@
+package com.tpd.staybooking.controller;
+
+import com.tpd.staybooking.model.ImageSize;
+import com.tpd.staybooking.repository.LocalImageStore;
+import com.tpd.staybooking.service.ImageVariantService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/*
+Serves stay images without authentication.
+- /images/{name}: originals, only from the local image store (image.storage=local); with GCS the bucket serves
+  them itself.
+- /images/{name}/{size}: the smaller sizes of ImageSize with either store, made on first request if needed.
+For originals, the bytes never pass through the JVM heap: Tomcat is asked to send the file itself (sendfile, which
+its NIO connector does with FileChannel.transferTo straight to the socket), and where that is not available the
+file is copied with FileChannel.transferTo into the response. A single Range is answered with 206 so clients and proxies
+can resume or fetch parts; several ranges get the whole image. Image names never change their content, so
+responses may be cached for a year.
+*/
+@RestController
+public class ImageController {
+
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end"; // exclusive
+
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            "jpg", "image/jpeg",
+            "png", "image/png",
+            "gif", "image/gif",
+            "webp", "image/webp");
+
+    private static final String CACHE_CONTROL = CacheControl.maxAge(365, TimeUnit.DAYS)
+            .cachePublic()
+            .getHeaderValue() + ", immutable";
+
+    private final LocalImageStore imageStore; // null with GCS
+    private final ImageVariantService imageVariantService;
+
+    public ImageController(Optional<LocalImageStore> imageStore, ImageVariantService imageVariantService) {
+        this.imageStore = imageStore.orElse(null);
+        this.imageVariantService = imageVariantService;
+    }
+
+    @GetMapping("/images/{name}/{size}")
+    public ResponseEntity<byte[]> getImageVariant(@PathVariable String name, @PathVariable String size) {
+        ImageSize imageSize = ImageSize.fromKey(size);
+        byte[] image = imageSize == null ? null : imageVariantService.get(name, imageSize);
+        if (image == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_JPEG)
+                .header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+                .body(image);
+    }
+
+    @GetMapping("/images/{name}")
+    public void getImage(@PathVariable String name, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Path file = imageStore == null ? null : imageStore.resolve(name);
+        if (file == null || !Files.isRegularFile(file)) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        long length = Files.size(file);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        long start = 0;
+        long end = length; // exclusive
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                if (ranges.size() == 1) {
+                    start = ranges.get(0).getRangeStart(length);
+                    end = ranges.get(0).getRangeEnd(length) + 1;
+                    if (start >= length) {
+                        throw new IllegalArgumentException("Range starts after the end of the image");
+                    }
+                    response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + length);
+                }
+            } catch (IllegalArgumentException e) { // malformed, or starts after the end of the image
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                return;
+            }
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        response.setContentType(CONTENT_TYPES.getOrDefault(name.substring(name.lastIndexOf('.') + 1),
+                "application/octet-stream"));
+        response.setContentLengthLong(end - start);
+        if (end == start) { // an empty image
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            for (long position = start; position < end;) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        }
+    }
+}
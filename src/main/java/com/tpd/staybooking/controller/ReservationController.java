@@ -1,42 +1,140 @@
 package com.tpd.staybooking.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tpd.staybooking.exception.InvalidReservationDateException;
+import com.tpd.staybooking.exception.InvalidSearchPageException;
+import com.tpd.staybooking.model.CursorPage;
 import com.tpd.staybooking.model.Reservation;
+import com.tpd.staybooking.model.ReservationHold;
 import com.tpd.staybooking.model.User;
+import com.tpd.staybooking.service.ReservationImportService;
 import com.tpd.staybooking.service.ReservationService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.Principal;
 import java.time.LocalDate;
 import java.util.List;
 
 @RestController
 public class ReservationController {
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_HOLD_MINUTES = 30;
+
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String CSV = "text/csv";
+
     private final ReservationService reservationService;
+    private final ReservationImportService reservationImportService;
+    private final ObjectMapper objectMapper;
 
-    public ReservationController(ReservationService reservationService) {
+    public ReservationController(ReservationService reservationService,
+            ReservationImportService reservationImportService, ObjectMapper objectMapper) {
         this.reservationService = reservationService;
+        this.reservationImportService = reservationImportService;
+        this.objectMapper = objectMapper;
     }
 
+    // Paged like /search: pass the next_cursor of a page back as cursor to get the next one.
     @GetMapping(value = "/reservations")
-    public List<Reservation> listReservations(Principal principal) {
-        return reservationService.listByGuest(principal.getName());
+    public CursorPage<Reservation> listReservations(
+            @RequestParam(name = "page_size", defaultValue = "20") int pageSize,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            Principal principal) {
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidSearchPageException("page_size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return reservationService.listByGuest(principal.getName(), pageSize, cursor);
     }
 
     @PostMapping("/reservations")
     public void addReservation(@RequestBody Reservation reservation, Principal principal) {
-        LocalDate checkinDate = reservation.getCheckinDate();
-        LocalDate checkoutDate = reservation.getCheckoutDate();
-        if (checkinDate.equals(checkoutDate) || checkinDate.isAfter(checkoutDate)
-                || checkinDate.isBefore(LocalDate.now())) {
-            throw new InvalidReservationDateException("Invalid date for reservation");
-        }
+        checkDates(reservation);
         reservation.setGuest(new User.Builder().setUsername(principal.getName()).build());
         reservationService.add(reservation);
     }
 
+    // Same body as POST /reservations. The nights are kept for the guest for `minutes` minutes, confirm the hold
+    // to book them or delete it to let them go earlier.
+    @PostMapping("/reservations/holds")
+    public ReservationHold placeHold(@RequestBody Reservation reservation,
+            @RequestParam(name = "minutes", defaultValue = "10") int minutes, Principal principal) {
+        checkDates(reservation);
+        if (minutes <= 0 || minutes > MAX_HOLD_MINUTES) {
+            throw new InvalidReservationDateException("minutes must be between 1 and " + MAX_HOLD_MINUTES);
+        }
+        reservation.setGuest(new User.Builder().setUsername(principal.getName()).build());
+        return reservationService.placeHold(reservation, minutes);
+    }
+
+    @PostMapping("/reservations/holds/{holdId}/confirm")
+    public void confirmHold(@PathVariable String holdId, Principal principal) {
+        reservationService.confirmHold(holdId, principal.getName());
+    }
+
+    @DeleteMapping("/reservations/holds/{holdId}")
+    public void releaseHold(@PathVariable String holdId, Principal principal) {
+        reservationService.releaseHold(holdId, principal.getName());
+    }
+
+    /*
+     * Bulk import, one reservation per line (NDJSON or CSV, see ReservationImportService.parse). The upload is
+     * parsed before the response starts, then one NDJSON result line per row is streamed back as the chunks are
+     * committed, so a large import shows progress instead of one response at the very end.
+     */
+    @PostMapping(value = "/reservations/batch", consumes = { NDJSON, CSV }, produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> importReservations(HttpServletRequest request, Principal principal)
+            throws IOException {
+        boolean csv = MediaType.parseMediaType(request.getContentType()).isCompatibleWith(MediaType.valueOf(CSV));
+        List<ReservationImportService.Row> rows = reservationImportService.parse(request.getInputStream(), csv);
+        String username = principal.getName();
+        StreamingResponseBody body = output -> {
+            // Buffered: the results reach the client about every thousand lines, not one packet per line.
+            BufferedOutputStream buffered = new BufferedOutputStream(output, 64 * 1024);
+            reservationImportService.importRows(rows, username, result -> {
+                try {
+                    buffered.write(objectMapper.writeValueAsBytes(result));
+                    buffered.write('\n');
+                } catch (IOException exception) {
+                    // The client went away. Chunks that are already committed stay, the rest is not imported.
+                    throw new UncheckedIOException(exception);
+                }
+            });
+            buffered.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.valueOf(NDJSON)).body(body);
+    }
+
+    // Body: the new checkin_date and checkout_date. Only the nights that differ are written, see
+    // ReservationService.changeDates().
+    @PatchMapping("/reservations/{reservationId}")
+    public Reservation changeReservationDates(@PathVariable Long reservationId, @RequestBody Reservation dates,
+            Principal principal) {
+        if (dates.getCheckinDate() == null || dates.getCheckoutDate() == null
+                || !dates.getCheckinDate().isBefore(dates.getCheckoutDate())) {
+            throw new InvalidReservationDateException("Invalid date for reservation");
+        }
+        return reservationService.changeDates(reservationId, principal.getName(), dates.getCheckinDate(),
+                dates.getCheckoutDate());
+    }
+
     @DeleteMapping("/reservations/{reservationId}")
     public void deleteReservation(@PathVariable Long reservationId, Principal principal) {
         reservationService.delete(reservationId, principal.getName());
     }
+
+    private static void checkDates(Reservation reservation) {
+        LocalDate checkinDate = reservation.getCheckinDate();
+        LocalDate checkoutDate = reservation.getCheckoutDate();
+        if (checkinDate.equals(checkoutDate) || checkinDate.isAfter(checkoutDate)
+                || checkinDate.isBefore(LocalDate.now())) {
+            throw new InvalidReservationDateException("Invalid date for reservation");
+        }
+    }
 }
@@ -1,15 +1,25 @@
 package com.tpd.staybooking.controller;
 
+import com.tpd.staybooking.exception.InvalidAvailabilityRequestException;
+import com.tpd.staybooking.exception.InvalidSearchAreaException;
 import com.tpd.staybooking.exception.InvalidSearchDateException;
-import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.exception.InvalidSearchPageException;
+import com.tpd.staybooking.model.AvailabilityMatrix;
+import com.tpd.staybooking.model.AvailabilityRequest;
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.DateRange;
+import com.tpd.staybooking.model.MapView;
+import com.tpd.staybooking.model.SearchCriteria;
+import com.tpd.staybooking.model.StaySummary;
 import com.tpd.staybooking.service.SearchService;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
 
 /*This code defines a Spring MVC controller named SearchController responsible for handling search requests related to stays.
 The controller processes input parameters for guest number, check-in and check-out dates, geographical coordinates (latitude and longitude),
@@ -17,6 +27,13 @@ and an optional distance parameter. It communicates with the SearchService to pe
 @RestController
 public class SearchController {
 
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_GEOHASH_PRECISION = 12;
+    private static final int MAX_FLEXIBLE_WINDOW_DAYS = 62; // about two months of check-in dates per stay
+    private static final int MAX_AVAILABILITY_STAYS = 1000;
+    private static final int MAX_AVAILABILITY_RANGES = 20;
+    private static final int MAX_AVAILABILITY_DAYS_AHEAD = 730;
+
     private final SearchService searchService;
 
     public SearchController(SearchService searchService) {
@@ -24,14 +41,17 @@ public class SearchController {
     }
 
     @GetMapping(value = "/search")
-    public List<Stay> searchStays(
+    public CursorPage<StaySummary> searchStays(
             @RequestParam(name = "guest_number") int guestNumber,
             @RequestParam(name = "checkin_date") String start, // After Spring 4.0, you can directly use the LocalDate
                                                                // class to record time without extra parsing.
             @RequestParam(name = "checkout_date") String end,
             @RequestParam(name = "lat") double lat,
             @RequestParam(name = "lon") double lon,
-            @RequestParam(name = "distance", required = false) String distance) {
+            @RequestParam(name = "distance", required = false) String distance,
+            @RequestParam(name = "page_size", defaultValue = "20") int pageSize,
+            @RequestParam(name = "cursor", required = false) String cursor, // next_cursor of the previous page
+            @RequestParam(name = "q", required = false) String query) { // keywords, e.g. "lake cabin"
         LocalDate checkinDate = LocalDate.parse(start, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
         LocalDate checkoutDate = LocalDate.parse(end, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 
@@ -39,6 +59,98 @@ public class SearchController {
                 || checkinDate.isBefore(LocalDate.now())) {
             throw new InvalidSearchDateException("Invalid date for search");
         }
-        return searchService.search(guestNumber, checkinDate, checkoutDate, lat, lon, distance);
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidSearchPageException("page_size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        SearchCriteria criteria = new SearchCriteria.Builder()
+                .setGuestNumber(guestNumber)
+                .setCheckinDate(checkinDate)
+                .setCheckoutDate(checkoutDate)
+                .setLat(lat)
+                .setLon(lon)
+                .setDistance(distance)
+                .setPageSize(pageSize)
+                .setCursor(cursor)
+                .setQuery(query)
+                .build();
+        return searchService.search(criteria);
+    }
+
+    // "3 nights sometime in the next two weeks": every stay that has `nights` free nights in a row between
+    // window_start (earliest check-in) and window_end (latest checkout), with the dates it can be checked in on.
+    @GetMapping(value = "/search/flexible")
+    public CursorPage<StaySummary> searchFlexibleStays(
+            @RequestParam(name = "guest_number") int guestNumber,
+            @RequestParam(name = "window_start") String start,
+            @RequestParam(name = "window_end") String end,
+            @RequestParam(name = "nights") int nights,
+            @RequestParam(name = "lat") double lat,
+            @RequestParam(name = "lon") double lon,
+            @RequestParam(name = "distance", required = false) String distance,
+            @RequestParam(name = "page_size", defaultValue = "20") int pageSize,
+            @RequestParam(name = "cursor", required = false) String cursor) {
+        LocalDate windowStart = LocalDate.parse(start, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+        LocalDate windowEnd = LocalDate.parse(end, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+
+        if (nights <= 0 || windowStart.isBefore(LocalDate.now()) || windowStart.plusDays(nights).isAfter(windowEnd)
+                || windowStart.plusDays(MAX_FLEXIBLE_WINDOW_DAYS).isBefore(windowEnd)) {
+            throw new InvalidSearchDateException("Invalid date window for search");
+        }
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidSearchPageException("page_size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        SearchCriteria criteria = new SearchCriteria.Builder()
+                .setGuestNumber(guestNumber)
+                .setCheckinDate(windowStart)
+                .setCheckoutDate(windowEnd)
+                .setNights(nights)
+                .setLat(lat)
+                .setLon(lon)
+                .setDistance(distance)
+                .setPageSize(pageSize)
+                .setCursor(cursor)
+                .build();
+        return searchService.search(criteria);
+    }
+
+    // The visible map area and the geohash precision that fits its zoom level (the client picks it, roughly one
+    // precision step per two to three zoom levels). left > right is a box across the antimeridian.
+    @GetMapping(value = "/search/map")
+    public MapView searchMap(
+            @RequestParam(name = "top") double top,
+            @RequestParam(name = "left") double left,
+            @RequestParam(name = "bottom") double bottom,
+            @RequestParam(name = "right") double right,
+            @RequestParam(name = "precision") int precision) {
+        if (top > 90 || bottom < -90 || bottom > top || Math.abs(left) > 180 || Math.abs(right) > 180) {
+            throw new InvalidSearchAreaException("Invalid map area for search");
+        }
+        if (precision < 1 || precision > MAX_GEOHASH_PRECISION) {
+            throw new InvalidSearchAreaException("precision must be between 1 and " + MAX_GEOHASH_PRECISION);
+        }
+        return searchService.searchMap(top, left, bottom, right, precision);
+    }
+
+    // "Which of these stays are free for these dates": one request for many stays and ranges, answered as a matrix.
+    @PostMapping(value = "/availability/batch")
+    public AvailabilityMatrix checkAvailability(@RequestBody AvailabilityRequest request) {
+        if (request.getStayIds() == null || request.getStayIds().isEmpty()
+                || request.getStayIds().size() > MAX_AVAILABILITY_STAYS) {
+            throw new InvalidAvailabilityRequestException(
+                    "stay_ids must hold between 1 and " + MAX_AVAILABILITY_STAYS + " ids");
+        }
+        if (request.getRanges() == null || request.getRanges().isEmpty()
+                || request.getRanges().size() > MAX_AVAILABILITY_RANGES) {
+            throw new InvalidAvailabilityRequestException(
+                    "ranges must hold between 1 and " + MAX_AVAILABILITY_RANGES + " ranges");
+        }
+        LocalDate latest = LocalDate.now().plusDays(MAX_AVAILABILITY_DAYS_AHEAD);
+        for (DateRange range : request.getRanges()) {
+            if (range.getStart() == null || range.getEnd() == null || !range.getStart().isBefore(range.getEnd())
+                    || range.getStart().isBefore(LocalDate.now()) || range.getEnd().isAfter(latest)) {
+                throw new InvalidAvailabilityRequestException("Invalid date range");
+            }
+        }
+        return searchService.checkAvailability(request.getStayIds(), request.getRanges());
     }
-}
\ No newline at end of file
+}
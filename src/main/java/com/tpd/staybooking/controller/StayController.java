@@ -1,14 +1,31 @@
 package com.tpd.staybooking.controller;
 
+import com.tpd.staybooking.exception.InvalidBlockRequestException;
+import com.tpd.staybooking.exception.InvalidCalendarRequestException;
+import com.tpd.staybooking.exception.InvalidSearchPageException;
+import com.tpd.staybooking.model.BlockRequest;
+import com.tpd.staybooking.model.BlockResult;
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.DateRange;
 import com.tpd.staybooking.model.Reservation;
 import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayCalendar;
+import com.tpd.staybooking.model.StaySummary;
 import com.tpd.staybooking.model.User;
 import com.tpd.staybooking.service.ReservationService;
+import com.tpd.staybooking.service.StayBlockService;
 import com.tpd.staybooking.service.StayService;
+import com.tpd.staybooking.service.StayUploadService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.security.Principal;
+import java.time.LocalDate;
 import java.util.List;
 
 /*
@@ -22,18 +39,29 @@ data and actions. - Cannot change, can only add, read, remove.*/
                 // and generating responses.
 public class StayController {
 
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_CALENDAR_MONTHS = 18;
+    private static final int MAX_BLOCK_STAYS = 1000;
+    private static final int MAX_BLOCK_RANGES = 50;
+    private static final int MAX_BLOCK_DAYS_AHEAD = 730;
+
     private final StayService stayService;
     private final ReservationService reservationService;
+    private final StayBlockService stayBlockService;
+    private final StayUploadService stayUploadService;
 
-    public StayController(StayService stayService, ReservationService reservationService) {
+    public StayController(StayService stayService, ReservationService reservationService,
+            StayBlockService stayBlockService, StayUploadService stayUploadService) {
 
         this.stayService = stayService;
         this.reservationService = reservationService;
+        this.stayBlockService = stayBlockService;
+        this.stayUploadService = stayUploadService;
     }
 
     @GetMapping(value = "/stays")
-    public List<Stay> listStays(Principal principal) { // Principal object represents an authenticated user
-        return stayService.listByUser(principal.getName());
+    public List<StaySummary> listStays(Principal principal) { // Principal object represents an authenticated user
+        return stayService.listSummariesByUser(principal.getName()); // GET /stays/{stayId} has the full stay
     }
 
     @GetMapping(value = "/stays/{stayId}")
@@ -82,13 +110,83 @@ public class StayController {
                                        // the images with it.
     }
 
+    // The same listing as above, but each image is streamed to storage while the request is read instead of being
+    // buffered to memory or disk first. Clients pick it with the X-Upload-Mode: streaming header.
+    @PostMapping(value = "/stays", headers = "X-Upload-Mode=streaming")
+    public void addStayStreaming(HttpServletRequest request, Principal principal) throws IOException {
+        stayUploadService.add(request.getContentType(), request.getContentLengthLong(), request.getInputStream(),
+                principal.getName());
+    }
+
     @DeleteMapping("/stays/{stayId}")
     public void deleteStay(@PathVariable Long stayId, Principal principal) {
         stayService.delete(stayId, principal.getName());
     }
 
+    /*
+     * The booked nights of a stay for the coming months (format=ranges, the default, or format=bitmap), for
+     * calendar widgets and channel partners. Not host only: "/stays/*" does not match this path, any signed in
+     * user may read it. The ETag is derived from the booked nights, so a widget that polls gets an empty
+     * 304 Not Modified until something is booked or cancelled.
+     */
+    @GetMapping(value = "/stays/{stayId}/calendar")
+    public ResponseEntity<StayCalendar> getCalendar(@PathVariable Long stayId,
+            @RequestParam(name = "months", defaultValue = "12") int months,
+            @RequestParam(name = "format", defaultValue = "ranges") String format,
+            WebRequest request) {
+        if (months <= 0 || months > MAX_CALENDAR_MONTHS) {
+            throw new InvalidCalendarRequestException("months must be between 1 and " + MAX_CALENDAR_MONTHS);
+        }
+        if (!format.equals("ranges") && !format.equals("bitmap")) {
+            throw new InvalidCalendarRequestException("format must be ranges or bitmap");
+        }
+        StayCalendar calendar = reservationService.calendar(stayId, months, format.equals("bitmap"));
+        if (request.checkNotModified(calendar.etag())) {
+            return null; // 304, the ETag header is already set
+        }
+        return ResponseEntity.ok().cacheControl(CacheControl.noCache()).body(calendar);
+    }
+
+    // Takes the free nights of the ranges off the market on every listed stay of the host. Booked or held nights
+    // stay with their guest and come back as skipped.
+    @PostMapping("/stays/blocks")
+    public List<BlockResult> blockDates(@RequestBody BlockRequest request, Principal principal) {
+        checkBlockRequest(request);
+        return stayBlockService.block(principal.getName(), request.getStayIds(), request.getRanges());
+    }
+
+    // Releases the blocked nights inside the ranges, nights booked by guests are not touched.
+    @PostMapping("/stays/blocks/release")
+    public List<BlockResult> unblockDates(@RequestBody BlockRequest request, Principal principal) {
+        checkBlockRequest(request);
+        return stayBlockService.unblock(principal.getName(), request.getStayIds(), request.getRanges());
+    }
+
+    private static void checkBlockRequest(BlockRequest request) {
+        if (request.getStayIds() == null || request.getStayIds().isEmpty()
+                || request.getStayIds().size() > MAX_BLOCK_STAYS) {
+            throw new InvalidBlockRequestException("stay_ids must hold between 1 and " + MAX_BLOCK_STAYS + " ids");
+        }
+        if (request.getRanges() == null || request.getRanges().isEmpty()
+                || request.getRanges().size() > MAX_BLOCK_RANGES) {
+            throw new InvalidBlockRequestException("ranges must hold between 1 and " + MAX_BLOCK_RANGES + " ranges");
+        }
+        LocalDate latest = LocalDate.now().plusDays(MAX_BLOCK_DAYS_AHEAD);
+        for (DateRange range : request.getRanges()) {
+            if (range.getStart() == null || range.getEnd() == null || !range.getStart().isBefore(range.getEnd())
+                    || range.getEnd().isAfter(latest)) {
+                throw new InvalidBlockRequestException("Invalid date range");
+            }
+        }
+    }
+
     @GetMapping(value = "/stays/reservations/{stayId}")
-    public List<Reservation> listReservations(@PathVariable Long stayId) {
-        return reservationService.listByStay(stayId);
+    public CursorPage<Reservation> listReservations(@PathVariable Long stayId,
+            @RequestParam(name = "page_size", defaultValue = "20") int pageSize,
+            @RequestParam(name = "cursor", required = false) String cursor) {
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidSearchPageException("page_size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return reservationService.listByStay(stayId, pageSize, cursor);
     }
 }
\ No newline at end of file
@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class ImageTooLargeException extends RuntimeException {
+    public ImageTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidAvailabilityRequestException extends RuntimeException {
+    public InvalidAvailabilityRequestException(String message) {
+        super(message);
+    }
+}
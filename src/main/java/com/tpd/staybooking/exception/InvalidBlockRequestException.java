@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidBlockRequestException extends RuntimeException {
+    public InvalidBlockRequestException(String message) {
+        super(message);
+    }
+}
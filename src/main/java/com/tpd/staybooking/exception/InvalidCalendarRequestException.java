@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidCalendarRequestException extends RuntimeException {
+    public InvalidCalendarRequestException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidReservationImportException extends RuntimeException {
+    public InvalidReservationImportException(String message) {
+        super(message);
+    }
+}
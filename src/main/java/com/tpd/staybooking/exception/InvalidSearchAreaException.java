@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidSearchAreaException extends RuntimeException {
+    public InvalidSearchAreaException(String message) {
+        super(message);
+    }
+}
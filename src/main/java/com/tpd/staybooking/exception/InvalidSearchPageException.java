@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidSearchPageException extends RuntimeException {
+    public InvalidSearchPageException(String message) {
+        super(message);
+    }
+}
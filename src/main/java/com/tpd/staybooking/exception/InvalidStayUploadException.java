@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class InvalidStayUploadException extends RuntimeException {
+    public InvalidStayUploadException(String message) {
+        super(message);
+    }
+}
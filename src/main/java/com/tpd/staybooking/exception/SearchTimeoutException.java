@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class SearchTimeoutException extends RuntimeException {
+    public SearchTimeoutException(String message) {
+        super(message);
+    }
+}
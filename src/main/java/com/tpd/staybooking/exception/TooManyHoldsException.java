@@ -0,0 +1,7 @@
+package com.tpd.staybooking.exception;
+
+public class TooManyHoldsException extends RuntimeException {
+    public TooManyHoldsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,49 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/*
+The answer to a batch availability check as a matrix: available[i] belongs to stay_ids[i] and has one character
+per requested range, in request order, '1' if every night of the range is free and '0' if not. 500 stays and 3
+ranges are 500 short strings instead of 1500 objects. Ids that are not stays are listed in not_found instead.
+*/
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class AvailabilityMatrix {
+
+    private final List<DateRange> ranges;
+
+    @JsonProperty("stay_ids")
+    private final List<Long> stayIds;
+
+    private final List<String> available;
+
+    @JsonProperty("not_found")
+    private final List<Long> notFound;
+
+    public AvailabilityMatrix(List<DateRange> ranges, List<Long> stayIds, List<String> available,
+            List<Long> notFound) {
+        this.ranges = ranges;
+        this.stayIds = stayIds;
+        this.available = available;
+        this.notFound = notFound;
+    }
+
+    public List<DateRange> getRanges() {
+        return ranges;
+    }
+
+    public List<Long> getStayIds() {
+        return stayIds;
+    }
+
+    public List<String> getAvailable() {
+        return available;
+    }
+
+    public List<Long> getNotFound() {
+        return notFound;
+    }
+}
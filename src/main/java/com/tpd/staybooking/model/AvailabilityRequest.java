@@ -0,0 +1,27 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+// Body of POST /availability/batch: every stay is checked against every range.
+public class AvailabilityRequest {
+    private final List<Long> stayIds;
+    private final List<DateRange> ranges;
+
+    @JsonCreator
+    public AvailabilityRequest(@JsonProperty("stay_ids") List<Long> stayIds,
+            @JsonProperty("ranges") List<DateRange> ranges) {
+        this.stayIds = stayIds;
+        this.ranges = ranges;
+    }
+
+    public List<Long> getStayIds() {
+        return stayIds;
+    }
+
+    public List<DateRange> getRanges() {
+        return ranges;
+    }
+}
@@ -0,0 +1,27 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+// Body of POST /stays/blocks and /stays/blocks/release: every range is applied to every stay.
+public class BlockRequest {
+    private final List<Long> stayIds;
+    private final List<DateRange> ranges;
+
+    @JsonCreator
+    public BlockRequest(@JsonProperty("stay_ids") List<Long> stayIds,
+            @JsonProperty("ranges") List<DateRange> ranges) {
+        this.stayIds = stayIds;
+        this.ranges = ranges;
+    }
+
+    public List<Long> getStayIds() {
+        return stayIds;
+    }
+
+    public List<DateRange> getRanges() {
+        return ranges;
+    }
+}
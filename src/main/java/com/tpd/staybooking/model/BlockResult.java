@@ -0,0 +1,38 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/*
+What a block or unblock request did to one stay. changed holds the nights that were blocked (or released),
+skipped the requested nights that were left alone because a guest had booked or held them.
+*/
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class BlockResult {
+
+    @JsonProperty("stay_id")
+    private final Long stayId;
+
+    private final List<DateRange> changed;
+    private final List<DateRange> skipped;
+
+    public BlockResult(Long stayId, List<DateRange> changed, List<DateRange> skipped) {
+        this.stayId = stayId;
+        this.changed = changed;
+        this.skipped = skipped;
+    }
+
+    public Long getStayId() {
+        return stayId;
+    }
+
+    public List<DateRange> getChanged() {
+        return changed;
+    }
+
+    public List<DateRange> getSkipped() {
+        return skipped;
+    }
+}
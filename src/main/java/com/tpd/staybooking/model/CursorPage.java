@@ -0,0 +1,29 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/*
+One page of a cursor (keyset) paginated result. Pass next_cursor back to get the following page, it is null on the
+last page.
+*/
+public class CursorPage<T> {
+    private final List<T> items;
+
+    @JsonProperty("next_cursor")
+    private final String nextCursor;
+
+    public CursorPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
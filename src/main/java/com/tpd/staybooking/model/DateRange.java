@@ -0,0 +1,26 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.LocalDate;
+
+// Nights [start, end), the end is exclusive like a checkout date. Used in request and response bodies.
+public class DateRange {
+    private final LocalDate start;
+    private final LocalDate end;
+
+    @JsonCreator
+    public DateRange(@JsonProperty("start") LocalDate start, @JsonProperty("end") LocalDate end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public LocalDate getStart() {
+        return start;
+    }
+
+    public LocalDate getEnd() {
+        return end;
+    }
+}
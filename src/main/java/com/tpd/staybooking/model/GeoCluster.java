@@ -0,0 +1,32 @@
+package com.tpd.staybooking.model;
+
+// One grid cell of a map search: how many stays the cell holds and where they are centered (not the cell center).
+public class GeoCluster {
+    private final String geohash;
+    private final long count;
+    private final double lat;
+    private final double lon;
+
+    public GeoCluster(String geohash, long count, double lat, double lon) {
+        this.geohash = geohash;
+        this.count = count;
+        this.lat = lat;
+        this.lon = lon;
+    }
+
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+}
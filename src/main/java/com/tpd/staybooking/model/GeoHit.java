@@ -0,0 +1,31 @@
+package com.tpd.staybooking.model;
+
+// One hit of a geo search: the stay id and how far the stay is from the search point, in kilometers.
+// Keyword searches also set the relevance score the hits are sorted by.
+public class GeoHit {
+    private final Long id;
+    private final double distance;
+    private final double score;
+
+    public GeoHit(Long id, double distance) {
+        this(id, distance, 0);
+    }
+
+    public GeoHit(Long id, double distance, double score) {
+        this.id = id;
+        this.distance = distance;
+        this.score = score;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getScore() {
+        return score;
+    }
+}
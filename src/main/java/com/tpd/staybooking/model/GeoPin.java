@@ -0,0 +1,26 @@
+package com.tpd.staybooking.model;
+
+// A stay on the map: its id and coordinates.
+public class GeoPin {
+    private final Long id;
+    private final double lat;
+    private final double lon;
+
+    public GeoPin(Long id, double lat, double lon) {
+        this.id = id;
+        this.lat = lat;
+        this.lon = lon;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+}
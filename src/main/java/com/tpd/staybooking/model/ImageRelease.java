@@ -0,0 +1,40 @@
+package com.tpd.staybooking.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/*
+An image that may have lost its last user (see ImageStorageService) and from when on the sweep may delete it, in
+epoch milliseconds. Kept in the database rather than in memory, so a restart does not forget it and every instance
+sees the releases and reuses of the others. The row is also the lock that keeps a sweep and a reuse of the same
+image apart.
+*/
+@Entity
+@Table(name = "image_release", indexes = @Index(name = "idx_image_release_eligible_at", columnList = "eligible_at"))
+public class ImageRelease {
+
+    @Id
+    private String name;
+
+    @Column(name = "eligible_at")
+    private long eligibleAt;
+
+    public ImageRelease() {
+    }
+
+    public ImageRelease(String name, long eligibleAt) {
+        this.name = name;
+        this.eligibleAt = eligibleAt;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getEligibleAt() {
+        return eligibleAt;
+    }
+}
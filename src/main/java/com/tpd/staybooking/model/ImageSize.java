@@ -0,0 +1,47 @@
+package com.tpd.staybooking.model;
+
+/*
+The fixed set of smaller versions every stay image gets, so lists and search pages do not download full-size
+photos. A variant is a JPEG whose longer side is at most maxSide pixels (smaller images are only recompressed). It
+is stored next to the original as "<name without extension>-<key>.jpg" and served from /images/<name>/<key>.
+*/
+public enum ImageSize {
+    THUMBNAIL("thumb", 320),
+    MEDIUM("medium", 1024);
+
+    private final String key;
+    private final int maxSide;
+
+    ImageSize(String key, int maxSide) {
+        this.key = key;
+        this.maxSide = maxSide;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getMaxSide() {
+        return maxSide;
+    }
+
+    // The size with this URL key, or null.
+    public static ImageSize fromKey(String key) {
+        for (ImageSize size : values()) {
+            if (size.key.equals(key)) {
+                return size;
+            }
+        }
+        return null;
+    }
+
+    // Where clients load this size of the image from (ImageController, generated on first use).
+    public String urlOf(String imageName) {
+        return "/images/" + imageName + "/" + key;
+    }
+
+    public String variantName(String imageName) {
+        int dot = imageName.lastIndexOf('.');
+        return (dot == -1 ? imageName : imageName.substring(0, dot)) + "-" + key + ".jpg";
+    }
+}
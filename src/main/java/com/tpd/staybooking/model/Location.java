@@ -1,12 +1,17 @@
 package com.tpd.staybooking.model;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.DateFormat;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
 import org.springframework.data.elasticsearch.annotations.GeoPointField;
+import org.springframework.data.elasticsearch.core.Range;
 import org.springframework.data.elasticsearch.core.geo.GeoPoint;
 
+import java.time.LocalDate;
+import java.util.List;
+
 /*part of a project that uses the Spring Data Elasticsearch library to interact with an Elasticsearch database.
 Elasticsearch is a search and analytics engine often used for indexing and querying large volumes of data.
 Use Elasticsearch because it has geo-indexing, which makes it convenient to index locations.
@@ -30,6 +35,21 @@ public class Location {
     @GeoPointField
     private GeoPoint geoPoint; // The Geopoint class has two fields—latitude and longitude.
 
+    @Field(type = FieldType.Integer)
+    private int guestNumber; // copy of Stay.guestNumber, so the capacity filter can run in Elasticsearch
+
+    // Analyzed copies of Stay.name and Stay.description for keyword search. The english analyzer also stems, so
+    // "cabins" finds "cabin".
+    @Field(type = FieldType.Text, analyzer = "english")
+    private String name;
+
+    @Field(type = FieldType.Text, analyzer = "english")
+    private String description;
+
+    // Reserved nights as [start, end) ranges, so one "intersects" range query removes the booked stays.
+    @Field(type = FieldType.Date_Range, format = DateFormat.date)
+    private List<Range<LocalDate>> reservedDates;
+
     public Location(Long id, GeoPoint geoPoint) {
         this.id = id;
         this.geoPoint = geoPoint;
@@ -42,4 +62,40 @@ public class Location {
     public GeoPoint getGeoPoint() {
         return geoPoint;
     }
+
+    public int getGuestNumber() {
+        return guestNumber;
+    }
+
+    public Location setGuestNumber(int guestNumber) {
+        this.guestNumber = guestNumber;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Location setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Location setDescription(String description) {
+        this.description = description;
+        return this;
+    }
+
+    public List<Range<LocalDate>> getReservedDates() {
+        return reservedDates;
+    }
+
+    public Location setReservedDates(List<Range<LocalDate>> reservedDates) {
+        this.reservedDates = reservedDates;
+        return this;
+    }
 }
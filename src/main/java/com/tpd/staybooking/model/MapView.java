@@ -0,0 +1,42 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/*
+The response of /search/map. Zoomed out it only has clusters, so the response size depends on the number of grid
+cells on screen and not on how many stays the region holds. Zoomed in far enough it has the stays themselves.
+*/
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MapView {
+    private final int precision;
+    private final List<GeoCluster> clusters;
+    private final List<StaySummary> stays;
+
+    private MapView(int precision, List<GeoCluster> clusters, List<StaySummary> stays) {
+        this.precision = precision;
+        this.clusters = clusters;
+        this.stays = stays;
+    }
+
+    public static MapView ofClusters(int precision, List<GeoCluster> clusters) {
+        return new MapView(precision, clusters, null);
+    }
+
+    public static MapView ofStays(int precision, List<StaySummary> stays) {
+        return new MapView(precision, null, stays);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public List<GeoCluster> getClusters() {
+        return clusters;
+    }
+
+    public List<StaySummary> getStays() {
+        return stays;
+    }
+}
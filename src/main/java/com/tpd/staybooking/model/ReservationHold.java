@@ -0,0 +1,66 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/*
+Nights of a stay kept free for one guest while they finish checking out. Holds only live in memory
+(ReservationHoldService), they are never written to MySQL.
+*/
+public class ReservationHold {
+
+    @JsonProperty("hold_id")
+    private final String id;
+
+    @JsonProperty("stay_id")
+    private final Long stayId;
+
+    @JsonIgnore
+    private final String guest; // username
+
+    @JsonProperty("checkin_date")
+    private final LocalDate checkinDate;
+
+    @JsonProperty("checkout_date")
+    private final LocalDate checkoutDate;
+
+    @JsonProperty("expires_at")
+    private final Instant expiresAt;
+
+    public ReservationHold(String id, Long stayId, String guest, LocalDate checkinDate, LocalDate checkoutDate,
+            Instant expiresAt) {
+        this.id = id;
+        this.stayId = stayId;
+        this.guest = guest;
+        this.checkinDate = checkinDate;
+        this.checkoutDate = checkoutDate;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getStayId() {
+        return stayId;
+    }
+
+    public String getGuest() {
+        return guest;
+    }
+
+    public LocalDate getCheckinDate() {
+        return checkinDate;
+    }
+
+    public LocalDate getCheckoutDate() {
+        return checkoutDate;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,49 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+What happened to one row of a bulk reservation import, written back as one line of the NDJSON response.
+line is the 1-based line number in the uploaded file (the CSV header counts as a line).
+*/
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ReservationImportResult {
+
+    public static final String CREATED = "created";
+    public static final String INVALID = "invalid";
+    public static final String STAY_NOT_FOUND = "stay_not_found";
+    public static final String COLLISION = "collision";
+    public static final String FAILED = "failed";
+
+    private final int line;
+    private final String status;
+
+    @JsonProperty("reservation_id")
+    private final Long reservationId;
+
+    private final String message;
+
+    public ReservationImportResult(int line, String status, Long reservationId, String message) {
+        this.line = line;
+        this.status = status;
+        this.reservationId = reservationId;
+        this.message = message;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Long getReservationId() {
+        return reservationId;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,31 @@
+package com.tpd.staybooking.model;
+
+import java.time.LocalDate;
+
+/*
+A run of reserved nights of one stay, [startDate, endDate). It is not an entity, it is what the reserved date
+storage hands out when the whole table has to be read, e.g. to rebuild the availability index.
+*/
+public class ReservedRange {
+    private final Long stayId;
+    private final LocalDate startDate;
+    private final LocalDate endDate;
+
+    public ReservedRange(Long stayId, LocalDate startDate, LocalDate endDate) {
+        this.stayId = stayId;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public Long getStayId() {
+        return stayId;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+}
@@ -0,0 +1,146 @@
+package com.tpd.staybooking.model;
+
+import java.time.LocalDate;
+
+// Everything a /search request asks for. Built by SearchController and passed down to SearchService as one object.
+// For /search/flexible, nights is the length of the stay and checkin/checkout are the window it has to fit in.
+public class SearchCriteria {
+    private final int guestNumber;
+    private final LocalDate checkinDate;
+    private final LocalDate checkoutDate;
+    private final double lat;
+    private final double lon;
+    private final String distance;
+    private final int pageSize;
+    private final String cursor;
+    private final int nights; // 0 for a search with fixed dates
+    private final String query; // keywords, null for a plain distance search
+
+    private SearchCriteria(Builder builder) {
+        this.guestNumber = builder.guestNumber;
+        this.checkinDate = builder.checkinDate;
+        this.checkoutDate = builder.checkoutDate;
+        this.lat = builder.lat;
+        this.lon = builder.lon;
+        this.distance = builder.distance;
+        this.pageSize = builder.pageSize;
+        this.cursor = builder.cursor;
+        this.nights = builder.nights;
+        this.query = builder.query;
+    }
+
+    public int getGuestNumber() {
+        return guestNumber;
+    }
+
+    public LocalDate getCheckinDate() {
+        return checkinDate;
+    }
+
+    public LocalDate getCheckoutDate() {
+        return checkoutDate;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public String getDistance() {
+        return distance;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public int getNights() {
+        return nights;
+    }
+
+    public boolean isFlexible() {
+        return nights > 0;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public boolean hasQuery() {
+        return query != null && !query.isBlank();
+    }
+
+    public static class Builder {
+        private int guestNumber;
+        private LocalDate checkinDate;
+        private LocalDate checkoutDate;
+        private double lat;
+        private double lon;
+        private String distance;
+        private int pageSize;
+        private String cursor;
+        private int nights;
+        private String query;
+
+        public Builder setGuestNumber(int guestNumber) {
+            this.guestNumber = guestNumber;
+            return this;
+        }
+
+        public Builder setCheckinDate(LocalDate checkinDate) {
+            this.checkinDate = checkinDate;
+            return this;
+        }
+
+        public Builder setCheckoutDate(LocalDate checkoutDate) {
+            this.checkoutDate = checkoutDate;
+            return this;
+        }
+
+        public Builder setLat(double lat) {
+            this.lat = lat;
+            return this;
+        }
+
+        public Builder setLon(double lon) {
+            this.lon = lon;
+            return this;
+        }
+
+        public Builder setDistance(String distance) {
+            this.distance = distance;
+            return this;
+        }
+
+        public Builder setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder setCursor(String cursor) {
+            this.cursor = cursor;
+            return this;
+        }
+
+        public Builder setNights(int nights) {
+            this.nights = nights;
+            return this;
+        }
+
+        public Builder setQuery(String query) {
+            this.query = query;
+            return this;
+        }
+
+        public SearchCriteria build() {
+            return new SearchCriteria(this);
+        }
+    }
+}
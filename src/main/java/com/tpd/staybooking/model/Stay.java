@@ -3,6 +3,7 @@ package com.tpd.staybooking.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import org.hibernate.annotations.BatchSize;
 
 import javax.persistence.*;
 import java.util.List;
@@ -36,8 +37,15 @@ public class Stay {
                                                                                       // it allows us to directly
                                                                                       // retrieve the information all at
                                                                                       // once.
+    @BatchSize(size = 100) // stays loaded together (e.g. a page of reservations) get their images in one query
     private List<StayImage> images;
 
+    @JsonIgnore
+    private Double latitude; // Geocoded when the stay is added. Kept in MySQL as well so the embedded location
+                             // backend can be loaded without Elasticsearch.
+    @JsonIgnore
+    private Double longitude;
+
     public Stay() {
     }
 
@@ -89,6 +97,20 @@ public class Stay {
         return reservedDates;
     }
 
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public Stay setCoordinates(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        return this;
+    }
+
     public static class Builder {
 
         @JsonProperty("id")
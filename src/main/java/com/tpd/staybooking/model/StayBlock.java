@@ -0,0 +1,62 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+
+/*
+Nights a host took off the market (maintenance, owner stays), [startDate, endDate). The nights are also written to
+the reserved date storage, so the collision check, search and the calendar treat them like booked nights; this table
+only remembers which reserved nights are blocks, so unblocking never releases a guest's nights.
+*/
+@Entity
+@Table(name = "stay_block", indexes = @Index(name = "idx_stay_block", columnList = "stay_id, start_date, end_date"))
+public class StayBlock {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO, generator = "stay_block_id")
+    @GenericGenerator(name = "stay_block_id", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "hibernate_sequence"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo") })
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "stay_id")
+    @JsonIgnore
+    private Stay stay;
+
+    @Column(name = "start_date")
+    private LocalDate startDate;
+
+    @Column(name = "end_date")
+    private LocalDate endDate; // exclusive
+
+    public StayBlock() {
+    }
+
+    public StayBlock(Stay stay, LocalDate startDate, LocalDate endDate) {
+        this.stay = stay;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Stay getStay() {
+        return stay;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+}
@@ -0,0 +1,88 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+The reserved nights of one stay between from (today) and to, in one of two compact forms:
+- reserved: runs of consecutive reserved nights, [start, end) like checkin and checkout.
+- months: one bitmap per calendar month, base64 of little-endian bytes where bit d - 1 is day d of the month.
+  Days before from are always 0.
+A year of a busy stay is a few dozen ranges or twelve 4-byte bitmaps instead of every reservation.
+*/
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StayCalendar {
+
+    @JsonProperty("stay_id")
+    private final Long stayId;
+
+    private final LocalDate from;
+    private final LocalDate to; // exclusive
+
+    private final List<DateRange> reserved;
+    private final List<Month> months;
+
+    public StayCalendar(Long stayId, LocalDate from, LocalDate to, List<DateRange> reserved, List<Month> months) {
+        this.stayId = stayId;
+        this.from = from;
+        this.to = to;
+        this.reserved = reserved;
+        this.months = months;
+    }
+
+    public Long getStayId() {
+        return stayId;
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public List<DateRange> getReserved() {
+        return reserved;
+    }
+
+    public List<Month> getMonths() {
+        return months;
+    }
+
+    // The ETag of the response: a CRC of the returned nights, so it changes when a night is booked or released.
+    public String etag() {
+        CRC32 crc = new CRC32();
+        StringBuilder content = new StringBuilder().append(from).append(to);
+        if (reserved != null) {
+            reserved.forEach(range -> content.append(range.getStart()).append(range.getEnd()));
+        } else {
+            months.forEach(month -> content.append(month.getMonth()).append(month.getBitmap()));
+        }
+        crc.update(content.toString().getBytes(StandardCharsets.UTF_8));
+        return "\"" + stayId + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    public static class Month {
+        private final String month; // yyyy-MM
+        private final String bitmap;
+
+        public Month(String month, String bitmap) {
+            this.month = month;
+            this.bitmap = bitmap;
+        }
+
+        public String getMonth() {
+            return month;
+        }
+
+        public String getBitmap() {
+            return bitmap;
+        }
+    }
+}
@@ -1,17 +1,37 @@
 package com.tpd.staybooking.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import javax.persistence.*;
 
 /*the StayImage class represents images associated with a stay. Each StayImage object has a URL,
 and it is associated with a specific Stay entity. This class is used to establish a relationship
-between stays and their images in a database table.*/
+between stays and their images in a database table.
+The name in the image store gives the URLs of the smaller sizes (see ImageSize). Images stored before the sizes
+existed have no name and only the original URL.
+Equal images are stored once (the name is their SHA-256), so several rows, of one stay or of many, can point at the
+same image and the URL is no longer a key. The index on name serves the reference count of the clean-up.*/
 @Entity
-@Table(name = "stay_image")
+@Table(name = "stay_image", indexes = @Index(name = "idx_stay_image_name", columnList = "name"))
 public class StayImage {
     @Id
+    @JsonIgnore
+    @GeneratedValue(strategy = GenerationType.AUTO, generator = "stay_image_id")
+    @GenericGenerator(name = "stay_image_id", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "hibernate_sequence"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo") })
+    private Long id;
+
     private String url;
 
+    @JsonIgnore
+    private String name;
+
     @ManyToOne
     @JoinColumn(name = "stay_id")
     @JsonIgnore
@@ -25,6 +45,16 @@ public class StayImage {
         this.stay = stay;
     }
 
+    public StayImage(String url, String name, Stay stay) {
+        this.url = url;
+        this.name = name;
+        this.stay = stay;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -34,6 +64,22 @@ public class StayImage {
         return this;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty("thumbnail_url")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getThumbnailUrl() {
+        return name == null ? null : ImageSize.THUMBNAIL.urlOf(name);
+    }
+
+    @JsonProperty("medium_url")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getMediumUrl() {
+        return name == null ? null : ImageSize.MEDIUM.urlOf(name);
+    }
+
     public Stay getStay() {
         return stay;
     }
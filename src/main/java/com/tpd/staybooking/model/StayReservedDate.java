@@ -1,12 +1,14 @@
 package com.tpd.staybooking.model;
 
+import org.springframework.data.domain.Persistable;
+
 import javax.persistence.*;
 
 /*an entity class that represents the relationship between Stay and ReservedDate entities using a join table named stay_reserved_date. */
 @Entity // This annotation marks the class as a JPA entity, indicating that it
         // corresponds to a table in the database.
 @Table(name = "stay_reserved_date")
-public class StayReservedDate {
+public class StayReservedDate implements Persistable<StayReservedDateKey> {
 
     @EmbeddedId // This annotation indicates that the field id is used as the embedded composite
                 // primary key for the table. The primary key is represented by the
@@ -20,6 +22,10 @@ public class StayReservedDate {
                // can be associated with one Stay entity.
     private Stay stay;
 
+    @Transient // The key is assigned by us, so without this save() would run a SELECT to find out whether the
+               // row exists before every INSERT.
+    private boolean isNew = true;
+
     public StayReservedDate() {
     }
 
@@ -35,4 +41,15 @@ public class StayReservedDate {
     public Stay getStay() {
         return stay;
     }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
 }
@@ -0,0 +1,64 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+
+/*
+Interval version of StayReservedDate: one row covers the nights [startDate, endDate) instead of one row per night,
+so a 30 night booking is a single insert. The (stay_id, start_date, end_date) index lets the overlap query
+(start_date < checkout AND end_date > checkin) be answered from the index alone.
+*/
+@Entity
+@Table(name = "stay_reserved_interval", indexes = @Index(name = "idx_stay_reserved_interval", columnList = "stay_id, start_date, end_date"))
+public class StayReservedInterval {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO, generator = "stay_reserved_interval_id")
+    // Same hibernate_sequence table as before, but 50 ids are reserved per round trip instead of one, so the rows
+    // of a bulk import can be inserted in JDBC batches without a sequence update per row.
+    @GenericGenerator(name = "stay_reserved_interval_id", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "hibernate_sequence"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo") })
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "stay_id")
+    @JsonIgnore
+    private Stay stay;
+
+    @Column(name = "start_date")
+    private LocalDate startDate;
+
+    @Column(name = "end_date")
+    private LocalDate endDate; // exclusive, same as the checkout date
+
+    public StayReservedInterval() {
+    }
+
+    public StayReservedInterval(Stay stay, LocalDate startDate, LocalDate endDate) {
+        this.stay = stay;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Stay getStay() {
+        return stay;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+}
@@ -0,0 +1,89 @@
+package com.tpd.staybooking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/*
+The few fields a list of stays shows: no address, description, host or image list. It is filled by a JPQL constructor
+expression (see StayRepository), so listing stays is one query instead of one query per stay for its images and host,
+and the response is a fraction of the size of the full Stay.
+*/
+@JsonInclude(JsonInclude.Include.NON_NULL) // the search specific fields are left out of other responses
+public class StaySummary {
+    private final Long id;
+    private final String name;
+    @JsonProperty("guest_number")
+    private final int guestNumber;
+    @JsonProperty("image_url")
+    private final String imageUrl; // the first image, null if the stay has none
+    @JsonProperty("thumbnail_url")
+    private final String thumbnailUrl; // the same image in ImageSize.THUMBNAIL, null for older images
+    private Double distance; // kilometers from the search point
+    private Double lat; // only for /search/map
+    private Double lon;
+    @JsonProperty("checkin_dates")
+    private List<LocalDate> checkinDates; // only for /search/flexible
+
+    public StaySummary(Long id, String name, int guestNumber, String imageUrl, String imageName) {
+        this.id = id;
+        this.name = name;
+        this.guestNumber = guestNumber;
+        this.imageUrl = imageUrl;
+        this.thumbnailUrl = imageName == null ? null : ImageSize.THUMBNAIL.urlOf(imageName);
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getGuestNumber() {
+        return guestNumber;
+    }
+
+    public String getImageUrl() {
+        return imageUrl;
+    }
+
+    public String getThumbnailUrl() {
+        return thumbnailUrl;
+    }
+
+    public Double getDistance() {
+        return distance;
+    }
+
+    public StaySummary setDistance(Double distance) {
+        this.distance = distance;
+        return this;
+    }
+
+    public Double getLat() {
+        return lat;
+    }
+
+    public Double getLon() {
+        return lon;
+    }
+
+    public StaySummary setCoordinates(double lat, double lon) {
+        this.lat = lat;
+        this.lon = lon;
+        return this;
+    }
+
+    public List<LocalDate> getCheckinDates() {
+        return checkinDates;
+    }
+
+    public StaySummary setCheckinDates(List<LocalDate> checkinDates) {
+        this.checkinDates = checkinDates;
+        return this;
+    }
+}
@@ -1,9 +1,54 @@
 package com.tpd.staybooking.repository;
 
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.GeoCluster;
+import com.tpd.staybooking.model.GeoHit;
+import com.tpd.staybooking.model.GeoPin;
+import com.tpd.staybooking.model.Location;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.SearchCriteria;
+
 import java.util.List;
+import java.util.Map;
 
 // Creating this CustomLocationRepository is to use the search API. How to implement the search API? You need to do it yourself. You need to write a class to implement this method.
+// There are two implementations: CustomLocationRepositoryImpl (Elasticsearch, the default) and
+// EmbeddedLocationRepository (in-process, location.backend=embedded). See LocationBackendConfig.
 public interface CustomLocationRepository {
 
-    List<Long> searchByDistance(double lat, double lon, String distance);
+    // Brings the mapping of an index created by an older version up to date with Location. Called once at startup,
+    // before any request is served. True if existing documents may lack fields and need a backfill.
+    boolean ensureMapping();
+
+    void index(Location location);
+
+    void remove(Long stayId);
+
+    // Nearest first. cursor is the next_cursor of the previous page, or null for the first page.
+    CursorPage<GeoHit> searchByDistance(double lat, double lon, String distance, int pageSize, String cursor);
+
+    // The stays inside the box, at most limit of them. left > right means the box crosses the antimeridian.
+    List<GeoPin> searchByBoundingBox(double top, double left, double bottom, double right, int limit);
+
+    // The stays inside the box grouped into geohash cells of the given precision (1-12), at most maxClusters of the
+    // fullest cells.
+    List<GeoCluster> clusterByBoundingBox(double top, double left, double bottom, double right, int precision,
+            int maxClusters);
+
+    // Same as above, but guest capacity and availability are filtered in the same query.
+    CursorPage<GeoHit> searchAvailable(SearchCriteria criteria);
+
+    // Keyword search over name and description inside the search radius. Hits are sorted by relevance, which
+    // decays with the distance from (lat, lon), then by id. Capacity and availability are not filtered.
+    CursorPage<GeoHit> searchText(SearchCriteria criteria);
+
+    // Replaces the reserved date ranges of one stay without rewriting the rest of its document.
+    void updateReservedDates(Long stayId, List<ReservedRange> reservedRanges);
+
+    // Same for many stays in one bulk request.
+    void updateReservedDates(Map<Long, List<ReservedRange>> reservedRangesByStay);
+
+    // Sets guestNumber, name, description and the reserved ranges of many stays in one bulk request, the geo
+    // points are left as they are. locations only carry those fields. Used by the backfill at startup.
+    void updateSearchFields(List<Location> locations, Map<Long, List<ReservedRange>> reservedRangesByStay);
 }
@@ -1,13 +1,51 @@
 package com.tpd.staybooking.repository;
 
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.GeoCluster;
+import com.tpd.staybooking.model.GeoHit;
+import com.tpd.staybooking.model.GeoPin;
 import com.tpd.staybooking.model.Location;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.SearchCriteria;
+import com.tpd.staybooking.util.GeoUtil;
+import com.tpd.staybooking.util.SearchCursor;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
 import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.GeoBoundingBoxQueryBuilder;
 import org.elasticsearch.index.query.GeoDistanceQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.geogrid.GeoGrid;
+import org.elasticsearch.search.aggregations.metrics.GeoCentroid;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchAggregations;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.index.AliasAction;
+import org.springframework.data.elasticsearch.core.index.AliasActionParameters;
+import org.springframework.data.elasticsearch.core.index.AliasActions;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.data.elasticsearch.core.reindex.ReindexRequest;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /*
@@ -17,6 +55,7 @@ the Spring Data Elasticsearch framework for querying the Elasticsearch database.
 
 public class CustomLocationRepositoryImpl implements CustomLocationRepository {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(CustomLocationRepositoryImpl.class);
     private static final String DEFAULT_DISTANCE = "50";
     private final ElasticsearchOperations elasticsearchOperations; // this class object interacts with the Elasticsearch
                                                                    // database
@@ -25,28 +64,267 @@ public class CustomLocationRepositoryImpl implements CustomLocationRepository {
         this.elasticsearchOperations = elasticsearchOperations;
     }
 
+    /*
+     * Spring Data only puts the mapping when it creates the index, so a "loc" index from before the search fields
+     * existed got them through dynamic mapping: reservedDates as an object with gte/lt subfields (the intersects
+     * query never matches it), name and description without the english analyzer. New fields are added with
+     * putMapping. A field that already has another type cannot be changed in place, so then the documents are
+     * reindexed into a new index "loc-<millis>" with the right mapping, and "loc" becomes an alias of it in one
+     * atomic alias request. The values of the old documents fit the new mapping ({gte, lt} objects are valid
+     * date ranges). In both cases the documents may lack the new fields, so true is returned and
+     * LocationSyncService.backfill() rewrites the search fields of every stay.
+     */
     @Override
-    public List<Long> searchByDistance(double lat, double lon, String distance) {
+    public boolean ensureMapping() {
+        IndexOperations indexOps = elasticsearchOperations.indexOps(Location.class);
+        if (!indexOps.exists()) {
+            indexOps.createWithMapping();
+            return false;
+        }
+        Document mapping = indexOps.createMapping();
+        try {
+            boolean fieldsAdded = !propertiesOf(indexOps.getMapping()).keySet()
+                    .containsAll(propertiesOf(mapping).keySet());
+            indexOps.putMapping(mapping);
+            return fieldsAdded;
+        } catch (RuntimeException conflict) {
+            LOGGER.info("The mapping of index {} cannot be updated in place, reindexing: {}",
+                    indexOps.getIndexCoordinates().getIndexName(), conflict.getMessage());
+        }
+        String alias = indexOps.getIndexCoordinates().getIndexName();
+        // The index that holds the documents: "loc" itself, or the index "loc" is an alias of after an earlier
+        // migration.
+        Set<String> oldIndices = indexOps.getAliases(alias).keySet();
+        String oldIndex = oldIndices.isEmpty() ? alias : oldIndices.iterator().next();
+        String newIndex = alias + "-" + System.currentTimeMillis();
+        elasticsearchOperations.indexOps(IndexCoordinates.of(newIndex))
+                .create(indexOps.createSettings(Location.class), mapping);
+        long copied = elasticsearchOperations.reindex(ReindexRequest
+                .builder(IndexCoordinates.of(oldIndex), IndexCoordinates.of(newIndex))
+                .withRefresh(true)
+                .build())
+                .getTotal();
+        indexOps.alias(new AliasActions(
+                new AliasAction.Add(AliasActionParameters.builder().withIndices(newIndex).withAliases(alias).build()),
+                new AliasAction.RemoveIndex(AliasActionParameters.builder().withIndices(oldIndex).build())));
+        LOGGER.info("Reindexed {} documents from {} into {}, {} is now an alias of it", copied, oldIndex, newIndex,
+                alias);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> propertiesOf(Map<String, Object> mapping) {
+        Object properties = mapping.get("properties");
+        return properties instanceof Map ? (Map<String, Object>) properties : Collections.emptyMap();
+    }
+
+    @Override
+    public void index(Location location) {
+        elasticsearchOperations.save(location);
+    }
+
+    @Override
+    public void remove(Long stayId) {
+        elasticsearchOperations.delete(String.valueOf(stayId), Location.class);
+    }
+
+    @Override
+    public List<GeoPin> searchByBoundingBox(double top, double left, double bottom, double right, int limit) {
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withFilter(new GeoBoundingBoxQueryBuilder("geoPoint").setCorners(top, left, bottom, right))
+                .withPageable(PageRequest.of(0, limit));
+        return elasticsearchOperations.search(queryBuilder.build(), Location.class).getSearchHits().stream()
+                .map(hit -> new GeoPin(hit.getContent().getId(), hit.getContent().getGeoPoint().getLat(),
+                        hit.getContent().getGeoPoint().getLon()))
+                .collect(Collectors.toList());
+    }
+
+    /*
+     * A geohash_grid aggregation over the stays in the box, with a geo_centroid per cell so the cluster is drawn
+     * where its stays are. No documents are returned, only the buckets.
+     */
+    @Override
+    public List<GeoCluster> clusterByBoundingBox(double top, double left, double bottom, double right, int precision,
+            int maxClusters) {
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withQuery(QueryBuilders.boolQuery()
+                        .filter(new GeoBoundingBoxQueryBuilder("geoPoint").setCorners(top, left, bottom, right)))
+                .withAggregations(AggregationBuilders.geohashGrid("cells")
+                        .field("geoPoint")
+                        .precision(precision)
+                        .size(maxClusters)
+                        .subAggregation(AggregationBuilders.geoCentroid("centroid").field("geoPoint")))
+                .withMaxResults(0)
+                .withTrackTotalHits(false);
+        SearchHits<Location> searchHits = elasticsearchOperations.search(queryBuilder.build(), Location.class);
+        if (searchHits.getAggregations() == null) {
+            return Collections.emptyList();
+        }
+        Aggregations aggregations = ((ElasticsearchAggregations) searchHits.getAggregations()).aggregations();
+        GeoGrid cells = aggregations.get("cells");
+        List<GeoCluster> clusters = new ArrayList<>();
+        for (GeoGrid.Bucket cell : cells.getBuckets()) {
+            GeoCentroid centroid = cell.getAggregations().get("centroid");
+            clusters.add(new GeoCluster(cell.getKeyAsString(), cell.getDocCount(), centroid.centroid().lat(),
+                    centroid.centroid().lon()));
+        }
+        return clusters;
+    }
+
+    /*
+     * Hits within the distance, sorted by distance from (lat, lon), with the id as a tie breaker
+     * so the order is total, and the sort values of the last hit become the cursor of the next page
+     * (search_after). The first sort value of every hit is its distance in kilometers.
+     */
+    @Override
+    public CursorPage<GeoHit> searchByDistance(double lat, double lon, String distance, int pageSize,
+            String cursor) {
+        return searchPage(geoDistanceFilter(lat, lon, distance), lat, lon, pageSize, cursor);
+    }
+
+    /*
+     * Geo, capacity and availability in one bool query. A stay is dropped when any of its reserved ranges
+     * intersects [checkin, checkout); "lt" keeps the checkout day itself bookable.
+     */
+    @Override
+    public CursorPage<GeoHit> searchAvailable(SearchCriteria criteria) {
+        BoolQueryBuilder filter = QueryBuilders.boolQuery()
+                .filter(geoDistanceFilter(criteria.getLat(), criteria.getLon(), criteria.getDistance()))
+                .filter(QueryBuilders.rangeQuery("guestNumber").gte(criteria.getGuestNumber()))
+                .mustNot(QueryBuilders.rangeQuery("reservedDates")
+                        .gte(criteria.getCheckinDate().toString())
+                        .lt(criteria.getCheckoutDate().toString())
+                        .relation("intersects"));
+        return searchPage(filter, criteria.getLat(), criteria.getLon(), criteria.getPageSize(), criteria.getCursor());
+    }
+
+    /*
+     * One bool query: the geo filter decides which stays qualify, multi_match scores the keywords (a match in the
+     * name counts double) and a gauss decay on the distance multiplies the score, halving it at half the radius.
+     * Sorted by score with the id as tie breaker, so search_after paging works the same as for distance.
+     */
+    @Override
+    public CursorPage<GeoHit> searchText(SearchCriteria criteria) {
+        String distance = criteria.getDistance() == null || criteria.getDistance().isEmpty() ? DEFAULT_DISTANCE
+                : criteria.getDistance();
+        double lat = criteria.getLat();
+        double lon = criteria.getLon();
+        FunctionScoreQueryBuilder query = QueryBuilders.functionScoreQuery(
+                QueryBuilders.boolQuery()
+                        .filter(geoDistanceFilter(lat, lon, distance))
+                        .must(QueryBuilders.multiMatchQuery(criteria.getQuery(), "name^2", "description")),
+                ScoreFunctionBuilders.gaussDecayFunction("geoPoint", lat + "," + lon,
+                        GeoUtil.parseDistanceKm(distance) / 2 + "km"))
+                .boostMode(CombineFunction.MULTIPLY);
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withQuery(query)
+                .withSorts(SortBuilders.scoreSort().order(SortOrder.DESC),
+                        SortBuilders.fieldSort("id").order(SortOrder.ASC))
+                .withPageable(PageRequest.of(0, criteria.getPageSize()))
+                .withTrackTotalHits(false);
+        if (criteria.getCursor() != null && !criteria.getCursor().isEmpty()) {
+            queryBuilder.withSearchAfter(SearchCursor.decode(criteria.getCursor()));
+        }
+
+        List<SearchHit<Location>> hits = elasticsearchOperations.search(queryBuilder.build(), Location.class)
+                .getSearchHits();
+        List<GeoHit> geoHits = hits.stream()
+                .map(hit -> new GeoHit(hit.getContent().getId(), GeoUtil.distanceKm(lat, lon,
+                        hit.getContent().getGeoPoint().getLat(), hit.getContent().getGeoPoint().getLon()),
+                        hit.getScore()))
+                .collect(Collectors.toList());
+        String nextCursor = hits.size() < criteria.getPageSize() ? null
+                : SearchCursor.encode(hits.get(hits.size() - 1).getSortValues());
+        return new CursorPage<>(geoHits, nextCursor);
+    }
+
+    @Override
+    public void updateReservedDates(Long stayId, List<ReservedRange> reservedRanges) {
+        Document document = Document.create();
+        document.put("reservedDates", toDateRanges(reservedRanges));
+        update(stayId, document);
+    }
+
+    @Override
+    public void updateReservedDates(Map<Long, List<ReservedRange>> reservedRangesByStay) {
+        if (reservedRangesByStay.isEmpty()) {
+            return;
+        }
+        List<UpdateQuery> updateQueries = new ArrayList<>();
+        reservedRangesByStay.forEach((stayId, reservedRanges) -> {
+            Document document = Document.create();
+            document.put("reservedDates", toDateRanges(reservedRanges));
+            updateQueries.add(updateQuery(stayId, document));
+        });
+        elasticsearchOperations.bulkUpdate(updateQueries,
+                elasticsearchOperations.getIndexCoordinatesFor(Location.class));
+    }
+
+    @Override
+    public void updateSearchFields(List<Location> locations, Map<Long, List<ReservedRange>> reservedRangesByStay) {
+        if (locations.isEmpty()) {
+            return;
+        }
+        List<UpdateQuery> updateQueries = new ArrayList<>();
+        for (Location location : locations) {
+            Document document = Document.create();
+            document.put("guestNumber", location.getGuestNumber());
+            document.put("name", location.getName());
+            document.put("description", location.getDescription());
+            document.put("reservedDates", toDateRanges(
+                    reservedRangesByStay.getOrDefault(location.getId(), Collections.emptyList())));
+            updateQueries.add(updateQuery(location.getId(), document));
+        }
+        elasticsearchOperations.bulkUpdate(updateQueries,
+                elasticsearchOperations.getIndexCoordinatesFor(Location.class));
+    }
+
+    // Partial update, the geo point and the other fields of the document are left as they are.
+    private void update(Long stayId, Document document) {
+        elasticsearchOperations.update(updateQuery(stayId, document),
+                elasticsearchOperations.getIndexCoordinatesFor(Location.class));
+    }
+
+    private static UpdateQuery updateQuery(Long stayId, Document document) {
+        return UpdateQuery.builder(String.valueOf(stayId))
+                .withDocument(document)
+                .withRetryOnConflict(3)
+                .build();
+    }
+
+    private List<Map<String, String>> toDateRanges(List<ReservedRange> reservedRanges) {
+        return reservedRanges.stream()
+                .map(range -> Map.of("gte", range.getStartDate().toString(), "lt", range.getEndDate().toString()))
+                .collect(Collectors.toList());
+    }
+
+    private GeoDistanceQueryBuilder geoDistanceFilter(double lat, double lon, String distance) {
         if (distance == null || distance.isEmpty()) {
             distance = DEFAULT_DISTANCE;
         }
-        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
-        queryBuilder.withFilter(
-                new GeoDistanceQueryBuilder("geoPoint").point(lat, lon).distance(distance, DistanceUnit.KILOMETERS));
+        return new GeoDistanceQueryBuilder("geoPoint").point(lat, lon).distance(distance, DistanceUnit.KILOMETERS);
+    }
+
+    private CursorPage<GeoHit> searchPage(QueryBuilder filter, double lat, double lon, int pageSize, String cursor) {
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withFilter(filter)
+                .withSorts(
+                        SortBuilders.geoDistanceSort("geoPoint", lat, lon).unit(DistanceUnit.KILOMETERS)
+                                .order(SortOrder.ASC),
+                        SortBuilders.fieldSort("id").order(SortOrder.ASC))
+                .withPageable(PageRequest.of(0, pageSize)) // always page 0, search_after moves the window
+                .withTrackTotalHits(false);
+        if (cursor != null && !cursor.isEmpty()) {
+            queryBuilder.withSearchAfter(SearchCursor.decode(cursor));
+        }
 
         SearchHits<Location> searchResult = elasticsearchOperations.search(queryBuilder.build(), Location.class);
-        return searchResult.getSearchHits().stream()
-                .map(hit -> hit.getContent().getId())
+        List<SearchHit<Location>> hits = searchResult.getSearchHits();
+        List<GeoHit> geoHits = hits.stream()
+                .map(hit -> new GeoHit(hit.getContent().getId(), ((Number) hit.getSortValues().get(0)).doubleValue()))
                 .collect(Collectors.toList());
-        /*
-         * // The above method does not need to create a new ArrayList. Instead, create
-         * a stream from searchResult and then map each element in the stream
-         * individually.
-         * List<Long> locationIDs = new ArrayList<>();
-         * for (SearchHit<Location> hit : searchResult.getSearchHits()) {
-         * LocationIDs.add(hit.getContent().getId());
-         * }
-         * return locationIDs；
-         */
-    }
-}
\ No newline at end of file
+        String nextCursor = hits.size() < pageSize ? null
+                : SearchCursor.encode(hits.get(hits.size() - 1).getSortValues());
+        return new CursorPage<>(geoHits, nextCursor);
+    }
+}
@@ -0,0 +1,375 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.GeoCluster;
+import com.tpd.staybooking.model.GeoHit;
+import com.tpd.staybooking.model.GeoPin;
+import com.tpd.staybooking.model.Location;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.SearchCriteria;
+import com.tpd.staybooking.util.GeoUtil;
+import com.tpd.staybooking.util.SearchCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/*
+In-process replacement for the Elasticsearch "loc" index, selected with location.backend=embedded.
+Every stay is put into a geohash grid cell (precision 5, about 4.9 km wide). A query only looks at the cells that
+overlap its bounding box and then checks the exact distance, so a search never leaves the JVM.
+The grid is loaded from the coordinates stored on the stay table at startup and kept up to date by StayService. The
+reserved nights, only read with search.filter=elasticsearch, come from the AvailabilityIndex through
+LocationSyncService, its backfill fills them in right after the load.
+Results and cursors are the same as the Elasticsearch implementation: nearest first, id as tie breaker.
+*/
+public class EmbeddedLocationRepository implements CustomLocationRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedLocationRepository.class);
+    private static final String DEFAULT_DISTANCE = "50";
+    private static final int PRECISION = 5;
+
+    private static final Comparator<GeoHit> NEAREST_FIRST = Comparator.comparingDouble(GeoHit::getDistance)
+            .thenComparing(GeoHit::getId);
+    private static final Comparator<GeoHit> MOST_RELEVANT_FIRST = Comparator.comparingDouble(GeoHit::getScore)
+            .reversed()
+            .thenComparing(GeoHit::getId);
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final StayRepository stayRepository;
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Long>> cells = new ConcurrentHashMap<>();
+
+    public EmbeddedLocationRepository(StayRepository stayRepository) {
+        this.stayRepository = stayRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(5) // after AvailabilityIndex.rebuild(), before LocationSyncService.backfill()
+    public void load() {
+        long startTime = System.currentTimeMillis();
+        for (Object[] row : stayRepository.findCoordinates()) {
+            Entry entry = new Entry((Long) row[0], (Double) row[1], (Double) row[2], (Integer) row[3]);
+            entry.setText((String) row[4], (String) row[5]);
+            put(entry);
+        }
+        LOGGER.info("Embedded location index loaded {} stays into {} cells in {} ms", entries.size(), cells.size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public boolean ensureMapping() {
+        return false; // nothing to migrate, the grid is built from MySQL at every start
+    }
+
+    @Override
+    public void index(Location location) {
+        Entry entry = new Entry(location.getId(), location.getGeoPoint().getLat(), location.getGeoPoint().getLon(),
+                location.getGuestNumber());
+        entry.setText(location.getName(), location.getDescription());
+        Entry previous = entries.get(location.getId());
+        if (previous != null) {
+            entry.reservedRanges = previous.reservedRanges;
+        }
+        put(entry);
+    }
+
+    @Override
+    public synchronized void remove(Long stayId) {
+        Entry entry = entries.remove(stayId);
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    @Override
+    public CursorPage<GeoHit> searchByDistance(double lat, double lon, String distance, int pageSize,
+            String cursor) {
+        return page(withinDistance(lat, lon, toKilometers(distance), entry -> true), pageSize, cursor);
+    }
+
+    @Override
+    public List<GeoPin> searchByBoundingBox(double top, double left, double bottom, double right, int limit) {
+        List<GeoPin> pins = new ArrayList<>();
+        for (Entry entry : inBox(top, left, bottom, right)) {
+            pins.add(new GeoPin(entry.id, entry.lat, entry.lon));
+            if (pins.size() == limit) {
+                break;
+            }
+        }
+        return pins;
+    }
+
+    // Counts per geohash cell, and the mean position of the stays in each cell as its centroid.
+    @Override
+    public List<GeoCluster> clusterByBoundingBox(double top, double left, double bottom, double right, int precision,
+            int maxClusters) {
+        Map<String, double[]> sums = new HashMap<>(); // cell -> [count, sum of lat, sum of lon]
+        for (Entry entry : inBox(top, left, bottom, right)) {
+            String cell = precision == PRECISION ? entry.cell : GeoUtil.geohash(entry.lat, entry.lon, precision);
+            double[] sum = sums.computeIfAbsent(cell, key -> new double[3]);
+            sum[0]++;
+            sum[1] += entry.lat;
+            sum[2] += entry.lon;
+        }
+        return sums.entrySet().stream()
+                .map(cell -> new GeoCluster(cell.getKey(), (long) cell.getValue()[0],
+                        cell.getValue()[1] / cell.getValue()[0], cell.getValue()[2] / cell.getValue()[0]))
+                .sorted(Comparator.comparingLong(GeoCluster::getCount).reversed()) // the fullest cells, like ES
+                .limit(maxClusters)
+                .collect(Collectors.toList());
+    }
+
+    private List<Entry> inBox(double top, double left, double bottom, double right) {
+        boolean crossesAntimeridian = left > right;
+        Collection<Long> candidates = crossesAntimeridian ? entries.keySet() : candidates(bottom, top, left, right);
+        List<Entry> inside = new ArrayList<>();
+        for (Long stayId : candidates) {
+            Entry entry = entries.get(stayId);
+            if (entry == null || entry.lat < bottom || entry.lat > top) {
+                continue;
+            }
+            boolean insideLon = crossesAntimeridian ? entry.lon >= left || entry.lon <= right
+                    : entry.lon >= left && entry.lon <= right;
+            if (insideLon) {
+                inside.add(entry);
+            }
+        }
+        return inside;
+    }
+
+    @Override
+    public CursorPage<GeoHit> searchAvailable(SearchCriteria criteria) {
+        LocalDate checkinDate = criteria.getCheckinDate();
+        LocalDate checkoutDate = criteria.getCheckoutDate();
+        Predicate<Entry> available = entry -> entry.guestNumber >= criteria.getGuestNumber()
+                && entry.reservedRanges.stream().noneMatch(range -> range.getStartDate().isBefore(checkoutDate)
+                        && range.getEndDate().isAfter(checkinDate));
+        List<GeoHit> hits = withinDistance(criteria.getLat(), criteria.getLon(),
+                toKilometers(criteria.getDistance()), available);
+        return page(hits, criteria.getPageSize(), criteria.getCursor());
+    }
+
+    /*
+     * A plain stand-in for the Elasticsearch query: a stay matches when its name or description contains one of
+     * the keywords, every keyword found in the name scores 2 and in the description 1, and the score is halved at
+     * half the radius like the gauss decay. There is no stemming, "cabins" does not find "cabin".
+     */
+    @Override
+    public CursorPage<GeoHit> searchText(SearchCriteria criteria) {
+        Set<String> keywords = tokens(criteria.getQuery());
+        double radiusKm = toKilometers(criteria.getDistance());
+        List<GeoHit> hits = new ArrayList<>();
+        for (GeoHit hit : withinDistance(criteria.getLat(), criteria.getLon(), radiusKm, entry -> true)) {
+            Entry entry = entries.get(hit.getId());
+            if (entry == null) {
+                continue;
+            }
+            int matches = 0;
+            for (String keyword : keywords) {
+                matches += (entry.nameTokens.contains(keyword) ? 2 : 0)
+                        + (entry.descriptionTokens.contains(keyword) ? 1 : 0);
+            }
+            if (matches > 0) {
+                double decay = Math.pow(0.5, Math.pow(hit.getDistance() / (radiusKm / 2), 2));
+                hits.add(new GeoHit(hit.getId(), hit.getDistance(), matches * decay));
+            }
+        }
+        hits.sort(MOST_RELEVANT_FIRST);
+        int from = 0;
+        if (criteria.getCursor() != null && !criteria.getCursor().isEmpty()) {
+            List<Object> after = SearchCursor.decode(criteria.getCursor()); // [score, id] of the previous last hit
+            GeoHit last = new GeoHit(((Number) after.get(1)).longValue(), 0, ((Number) after.get(0)).doubleValue());
+            while (from < hits.size() && MOST_RELEVANT_FIRST.compare(hits.get(from), last) <= 0) {
+                from++;
+            }
+        }
+        int pageSize = criteria.getPageSize();
+        List<GeoHit> page = new ArrayList<>(hits.subList(from, Math.min(from + pageSize, hits.size())));
+        String nextCursor = page.size() < pageSize ? null
+                : SearchCursor.encode(List.of(page.get(page.size() - 1).getScore(),
+                        page.get(page.size() - 1).getId()));
+        return new CursorPage<>(page, nextCursor);
+    }
+
+    @Override
+    public void updateReservedDates(Long stayId, List<ReservedRange> reservedRanges) {
+        Entry entry = entries.get(stayId);
+        if (entry != null) {
+            entry.reservedRanges = List.copyOf(reservedRanges);
+        }
+    }
+
+    @Override
+    public void updateReservedDates(Map<Long, List<ReservedRange>> reservedRangesByStay) {
+        reservedRangesByStay.forEach(this::updateReservedDates);
+    }
+
+    @Override
+    public void updateSearchFields(List<Location> locations, Map<Long, List<ReservedRange>> reservedRangesByStay) {
+        for (Location location : locations) {
+            Entry entry = entries.get(location.getId());
+            if (entry != null) {
+                entry.guestNumber = location.getGuestNumber();
+                entry.setText(location.getName(), location.getDescription());
+                entry.reservedRanges = List.copyOf(
+                        reservedRangesByStay.getOrDefault(location.getId(), Collections.emptyList()));
+            }
+        }
+    }
+
+    private synchronized void put(Entry entry) {
+        Entry previous = entries.put(entry.id, entry);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+        cells.computeIfAbsent(entry.cell, cell -> ConcurrentHashMap.newKeySet()).add(entry.id);
+    }
+
+    private void removeFromCell(Entry entry) {
+        Set<Long> cell = cells.get(entry.cell);
+        if (cell != null) {
+            cell.remove(entry.id);
+            if (cell.isEmpty()) {
+                cells.remove(entry.cell);
+            }
+        }
+    }
+
+    private List<GeoHit> withinDistance(double lat, double lon, double radiusKm, Predicate<Entry> filter) {
+        double dLat = Math.toDegrees(radiusKm / GeoUtil.EARTH_MEAN_RADIUS_KM);
+        double maxAbsLat = Math.abs(lat) + dLat;
+        Collection<Long> candidates;
+        if (maxAbsLat >= 90) { // the circle covers a pole, every longitude is in range
+            candidates = entries.keySet();
+        } else {
+            double dLon = dLat / Math.cos(Math.toRadians(maxAbsLat));
+            candidates = candidates(lat - dLat, lat + dLat, lon - dLon, lon + dLon);
+        }
+        List<GeoHit> hits = new ArrayList<>();
+        for (Long stayId : candidates) {
+            Entry entry = entries.get(stayId);
+            if (entry == null || !filter.test(entry)) {
+                continue;
+            }
+            double distance = GeoUtil.distanceKm(lat, lon, entry.lat, entry.lon);
+            if (distance <= radiusKm) {
+                hits.add(new GeoHit(entry.id, distance));
+            }
+        }
+        return hits;
+    }
+
+    // Ids in the grid cells overlapping the box. Falls back to every id when scanning is cheaper than probing.
+    private Collection<Long> candidates(double minLat, double maxLat, double minLon, double maxLon) {
+        if (minLon < -180 || maxLon > 180) { // wraps around the antimeridian
+            return entries.keySet();
+        }
+        double height = GeoUtil.cellHeight(PRECISION);
+        double width = GeoUtil.cellWidth(PRECISION);
+        double probes = ((maxLat - minLat) / height + 2) * ((maxLon - minLon) / width + 2);
+        if (probes > cells.size()) {
+            return entries.keySet();
+        }
+        List<Long> stayIds = new ArrayList<>();
+        Set<String> probed = new HashSet<>();
+        // Steps slightly smaller than a cell, so every cell row and column in the box gets at least one probe.
+        for (double y = minLat; ; y += height * 0.99) {
+            double lat = Math.min(y, maxLat);
+            for (double x = minLon; ; x += width * 0.99) {
+                double lon = Math.min(x, maxLon);
+                String cell = GeoUtil.geohash(lat, lon, PRECISION);
+                if (probed.add(cell)) {
+                    stayIds.addAll(cells.getOrDefault(cell, Collections.emptySet()));
+                }
+                if (x >= maxLon) {
+                    break;
+                }
+            }
+            if (y >= maxLat) {
+                break;
+            }
+        }
+        return stayIds;
+    }
+
+    private CursorPage<GeoHit> page(List<GeoHit> hits, int pageSize, String cursor) {
+        hits.sort(NEAREST_FIRST);
+        int from = 0;
+        if (cursor != null && !cursor.isEmpty()) {
+            List<Object> after = SearchCursor.decode(cursor); // [distance, id] of the last hit of the previous page
+            GeoHit last = new GeoHit(((Number) after.get(1)).longValue(), ((Number) after.get(0)).doubleValue());
+            while (from < hits.size() && NEAREST_FIRST.compare(hits.get(from), last) <= 0) {
+                from++;
+            }
+        }
+        List<GeoHit> page = new ArrayList<>(hits.subList(from, Math.min(from + pageSize, hits.size())));
+        String nextCursor = page.size() < pageSize ? null
+                : SearchCursor.encode(List.of(page.get(page.size() - 1).getDistance(),
+                        page.get(page.size() - 1).getId()));
+        return new CursorPage<>(page, nextCursor);
+    }
+
+    private double toKilometers(String distance) {
+        if (distance == null || distance.isEmpty()) {
+            distance = DEFAULT_DISTANCE;
+        }
+        return GeoUtil.parseDistanceKm(distance);
+    }
+
+    // Lower case words, the same for the stay text and the keywords.
+    private static Set<String> tokens(String text) {
+        if (text == null) {
+            return Collections.emptySet();
+        }
+        Set<String> tokens = new HashSet<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static class Entry {
+        private final Long id;
+        private final double lat;
+        private final double lon;
+        private final String cell;
+        private volatile int guestNumber;
+        private volatile List<ReservedRange> reservedRanges = Collections.emptyList();
+        private volatile Set<String> nameTokens = Collections.emptySet();
+        private volatile Set<String> descriptionTokens = Collections.emptySet();
+
+        private Entry(Long id, double lat, double lon, int guestNumber) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.cell = GeoUtil.geohash(lat, lon, PRECISION);
+            this.guestNumber = guestNumber;
+        }
+
+        private void setText(String name, String description) {
+            this.nameTokens = tokens(name);
+            this.descriptionTokens = tokens(description);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.tpd.staybooking.repository;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Acl;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.tpd.staybooking.exception.GCSUploadException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+Images in a Google Cloud Storage bucket that everyone can read, served by GCS itself. Every image is a resumable
+upload: the stream is written through a STREAM_BUFFER_BYTES buffer and GCS receives a chunk of STREAM_CHUNK_BYTES
+whenever one is full. write() blocks while a chunk is being sent, so the stream is only read as fast as GCS accepts
+it. A failed chunk is retried by the GCS client itself.
+*/
+@Repository
+@ConditionalOnProperty(name = "image.storage", havingValue = "gcs", matchIfMissing = true)
+public class GcsImageStore implements ImageStore {
+
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final int STREAM_CHUNK_BYTES = 1024 * 1024; // GCS takes resumable chunks in multiples of 256 KiB
+
+    @Value("${gcs.bucket}") // The name of the Google Cloud Storage bucket where the images are uploaded.
+    private String bucketName;
+
+    private final Storage storage; // provides methods to interact with Google Cloud Storage.
+
+    public GcsImageStore(Storage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public String save(String name, String contentType, InputStream in) throws IOException {
+        BlobInfo blobInfo = blobInfo(name, contentType);
+        try {
+            WriteChannel writer = storage.writer(blobInfo);
+            writer.setChunkSize(STREAM_CHUNK_BYTES);
+            byte[] buffer = new byte[STREAM_BUFFER_BYTES];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) {
+                    writer.write(bytes);
+                }
+            }
+            // Only closing creates the object. When anything above throws, the writer is left open and the
+            // unfinished upload expires on its own.
+            writer.close();
+        } catch (StorageException e) {
+            if (e.isRetryable()) {
+                throw new IOException(e);
+            }
+            throw new GCSUploadException("Failed to upload file to GCS");
+        }
+        return storage.get(BlobId.of(bucketName, name)).getMediaLink(); // the public URL of the uploaded image
+    }
+
+    @Override
+    public String find(String name) {
+        Blob blob = storage.get(BlobId.of(bucketName, name));
+        return blob == null ? null : blob.getMediaLink();
+    }
+
+    // A copy inside GCS followed by a delete, the bytes never leave Google.
+    @Override
+    public String rename(String from, String to) throws IOException {
+        try {
+            Blob source = storage.get(BlobId.of(bucketName, from));
+            Blob target = storage.copy(Storage.CopyRequest.newBuilder()
+                    .setSource(source.getBlobId())
+                    .setTarget(blobInfo(to, source.getContentType()))
+                    .build())
+                    .getResult();
+            storage.delete(source.getBlobId());
+            return target.getMediaLink();
+        } catch (StorageException e) {
+            if (e.isRetryable()) {
+                throw new IOException(e);
+            }
+            throw new GCSUploadException("Failed to upload file to GCS");
+        }
+    }
+
+    @Override
+    public InputStream open(String name) {
+        Blob blob = storage.get(BlobId.of(bucketName, name));
+        return blob == null ? null : Channels.newInputStream(blob.reader());
+    }
+
+    @Override
+    public void delete(String name) {
+        storage.delete(BlobId.of(bucketName, name));
+    }
+
+    private BlobInfo blobInfo(String name, String contentType) {
+        return BlobInfo // The builder pattern lets us set only the fields we need.
+                .newBuilder(bucketName, name)
+                .setContentType(contentType)
+                // Public read access, anyone can view the image without authentication.
+                .setAcl(new ArrayList<>(Arrays.asList(Acl.of(Acl.User.ofAllUsers(), Acl.Role.READER))))
+                .build();
+    }
+}
@@ -0,0 +1,42 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.ImageRelease;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.LockModeType;
+import java.util.List;
+
+@Repository
+public interface ImageReleaseRepository extends JpaRepository<ImageRelease, String> {
+
+    // Inserts the release, or moves a pending one to the later of both times, in one statement, so two instances
+    // releasing the same image do not collide. Its own transaction: releases are made in afterCommit() callbacks,
+    // where the committed transaction would still be joined.
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Modifying
+    @Query(value = "INSERT INTO image_release (name, eligible_at) VALUES (?1, ?2) "
+            + "ON DUPLICATE KEY UPDATE eligible_at = GREATEST(eligible_at, VALUES(eligible_at))", nativeQuery = true)
+    void upsert(String name, long eligibleAt);
+
+    // For an image that is being reused. The update waits while a sweep holds the row.
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE ImageRelease r SET r.eligibleAt = ?2 WHERE r.name = ?1")
+    int postpone(String name, long eligibleAt);
+
+    // The releases that are due, by name after the previous page: swept rows leave the result while it is read.
+    @Query(value = "SELECT r.name FROM ImageRelease r WHERE r.eligibleAt <= ?1 AND r.name > ?2 ORDER BY r.name")
+    List<String> findDue(long now, String afterName, Pageable pageable);
+
+    // SELECT ... FOR UPDATE: a reuse of the image waits until the sweep has deleted it or let it go.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "SELECT r FROM ImageRelease r WHERE r.name = ?1")
+    ImageRelease findByNameForUpdate(String name);
+}
@@ -0,0 +1,34 @@
+package com.tpd.staybooking.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Where stay images are kept. "image.storage=gcs" (default) uploads them to a public Google Cloud Storage bucket,
+"image.storage=local" writes them to a directory and serves them from GET /images/{name}, for on-prem
+deployments, benchmarks and running without the cloud. ImageStorageService decides the names (the SHA-256 of the
+content plus the extension of the content type, so equal images share one object) and handles retries, timeouts,
+size limits and the clean-up of images no stay uses any more on top of either store.
+*/
+public interface ImageStore {
+
+    /*
+     * Copies the stream into a new image called name and returns the URL clients load it from. The stream is read
+     * in fixed-size chunks, never as a whole. An IOException is worth retrying with a fresh stream. When this
+     * throws (including a RuntimeException from reading the stream), no image is left behind.
+     */
+    String save(String name, String contentType, InputStream in) throws IOException;
+
+    // The URL of the image, null if it does not exist.
+    String find(String name);
+
+    // Gives an image a new name without sending its bytes again and returns its new URL. An image that already
+    // has the new name is replaced.
+    String rename(String from, String to) throws IOException;
+
+    // The image as a stream, null if it does not exist. Used to make the smaller sizes of an image.
+    InputStream open(String name) throws IOException;
+
+    // Does nothing if the image does not exist.
+    void delete(String name);
+}
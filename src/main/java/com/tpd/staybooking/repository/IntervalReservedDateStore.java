@@ -0,0 +1,80 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayReservedInterval;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/*
+One stay_reserved_interval row per reserved range, so the number of statements and rows no longer grows with the
+length of a stay. Releasing part of an interval (e.g. a shorter stay) deletes it and writes back what is left on
+either side.
+*/
+@Repository
+@ConditionalOnProperty(name = "reservation.storage", havingValue = "interval")
+public class IntervalReservedDateStore implements ReservedDateStore {
+
+    private final StayReservedIntervalRepository stayReservedIntervalRepository;
+
+    public IntervalReservedDateStore(StayReservedIntervalRepository stayReservedIntervalRepository) {
+        this.stayReservedIntervalRepository = stayReservedIntervalRepository;
+    }
+
+    @Override
+    public Set<Long> findReservedStayIds(List<Long> stayIds, LocalDate start, LocalDate end) {
+        return stayReservedIntervalRepository.findOverlappingStayIds(stayIds, start, end);
+    }
+
+    @Override
+    public List<ReservedRange> findRanges(List<Long> stayIds, LocalDate start, LocalDate end) {
+        return stayReservedIntervalRepository.findOverlappingRanges(stayIds, start, end);
+    }
+
+    @Override
+    public void reserve(Stay stay, LocalDate start, LocalDate end) {
+        stayReservedIntervalRepository.save(new StayReservedInterval(stay, start, end));
+    }
+
+    // One insert per range, sent in groups of hibernate.jdbc.batch_size.
+    @Override
+    public void reserveAll(List<ReservedRange> ranges) {
+        List<StayReservedInterval> intervals = new ArrayList<>();
+        for (ReservedRange range : ranges) {
+            Stay stay = new Stay.Builder().setId(range.getStayId()).build(); // only the foreign key is written
+            intervals.add(new StayReservedInterval(stay, range.getStartDate(), range.getEndDate()));
+        }
+        stayReservedIntervalRepository.saveAll(intervals);
+    }
+
+    @Override
+    public void release(Long stayId, LocalDate start, LocalDate end) {
+        List<StayReservedInterval> overlapping = stayReservedIntervalRepository.findOverlapping(stayId, start, end);
+        List<StayReservedInterval> remainders = new ArrayList<>();
+        for (StayReservedInterval interval : overlapping) {
+            if (interval.getStartDate().isBefore(start)) {
+                remainders.add(new StayReservedInterval(interval.getStay(), interval.getStartDate(), start));
+            }
+            if (interval.getEndDate().isAfter(end)) {
+                remainders.add(new StayReservedInterval(interval.getStay(), end, interval.getEndDate()));
+            }
+        }
+        stayReservedIntervalRepository.deleteAllInBatch(overlapping);
+        stayReservedIntervalRepository.saveAll(remainders);
+    }
+
+    @Override
+    public void releaseAll(Long stayId) {
+        stayReservedIntervalRepository.deleteByStayId(stayId);
+    }
+
+    @Override
+    public List<ReservedRange> findRangesEndingAfter(LocalDate date) {
+        return stayReservedIntervalRepository.findRangesEndingAfter(date);
+    }
+}
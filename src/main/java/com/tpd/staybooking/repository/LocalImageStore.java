@@ -0,0 +1,121 @@
+package com.tpd.staybooking.repository;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/*
+Images as files in image.local.directory, served by ImageController. An image is written through a direct buffer
+into a FileChannel under a temporary name and moved to its real name once complete, so a reader never sees half an
+image and a failed upload leaves nothing behind. URLs are image.local.base-url + "/images/" + name; the default
+base URL is empty, which gives URLs relative to this server.
+*/
+@Repository
+@ConditionalOnProperty(name = "image.storage", havingValue = "local")
+public class LocalImageStore implements ImageStore {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9-]+(\\.[a-z0-9]+)?");
+
+    private final Path directory;
+    private final String baseUrl;
+
+    public LocalImageStore(@Value("${image.local.directory:images}") String directory,
+            @Value("${image.local.base-url:}") String baseUrl) {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.baseUrl = baseUrl;
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String save(String name, String contentType, InputStream in) throws IOException {
+        Path target = resolve(name);
+        if (target == null) {
+            throw new IllegalArgumentException("Invalid image name " + name);
+        }
+        Path temp = directory.resolve(name + ".part");
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        boolean done = false;
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                buffer.clear();
+            }
+            file.force(false);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return urlOf(name);
+    }
+
+    @Override
+    public String find(String name) {
+        Path file = resolve(name);
+        return file != null && Files.isRegularFile(file) ? urlOf(name) : null;
+    }
+
+    @Override
+    public String rename(String from, String to) throws IOException {
+        Path source = resolve(from);
+        Path target = resolve(to);
+        if (source == null || target == null) {
+            throw new IllegalArgumentException("Invalid image name " + (source == null ? from : to));
+        }
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        return urlOf(to);
+    }
+
+    @Override
+    public InputStream open(String name) throws IOException {
+        Path file = resolve(name);
+        return file == null || !Files.isRegularFile(file) ? null : Files.newInputStream(file);
+    }
+
+    @Override
+    public void delete(String name) {
+        Path file = resolve(name);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String urlOf(String name) {
+        return baseUrl + "/images/" + name;
+    }
+
+    // The file of an image, or null if the name cannot be an image of this store (e.g. "../x").
+    public Path resolve(String name) {
+        return NAME.matcher(name).matches() ? directory.resolve(name) : null;
+    }
+}
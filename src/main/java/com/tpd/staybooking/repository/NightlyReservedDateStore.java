@@ -0,0 +1,87 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayReservedDate;
+import com.tpd.staybooking.model.StayReservedDateKey;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// One stay_reserved_date row per night. The composite primary key (stay_id, date) rejects double booked nights.
+@Repository
+@ConditionalOnProperty(name = "reservation.storage", havingValue = "nightly", matchIfMissing = true)
+public class NightlyReservedDateStore implements ReservedDateStore {
+
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private final StayReservationDateRepository stayReservationDateRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    public NightlyReservedDateStore(StayReservationDateRepository stayReservationDateRepository,
+            JdbcTemplate jdbcTemplate) {
+        this.stayReservationDateRepository = stayReservationDateRepository;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public Set<Long> findReservedStayIds(List<Long> stayIds, LocalDate start, LocalDate end) {
+        return stayReservationDateRepository.findByIdInAndDateBetween(stayIds, start, end.minusDays(1));
+    }
+
+    @Override
+    public List<ReservedRange> findRanges(List<Long> stayIds, LocalDate start, LocalDate end) {
+        return stayReservationDateRepository.findKeysByStayIdInAndDateRange(stayIds, start, end).stream()
+                .map(key -> new ReservedRange(key.getStay_id(), key.getDate(), key.getDate().plusDays(1)))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void reserve(Stay stay, LocalDate start, LocalDate end) {
+        List<StayReservedDate> reservedDates = new ArrayList<>();
+        for (LocalDate date = start; date.isBefore(end); date = date.plusDays(1)) {
+            reservedDates.add(new StayReservedDate(new StayReservedDateKey(stay.getId(), date), stay));
+        }
+        stayReservationDateRepository.saveAll(reservedDates);
+    }
+
+    // Plain JDBC: a bulk import writes hundreds of thousands of nights, saveAll() would first load each of them to
+    // decide between insert and update.
+    @Override
+    public void reserveAll(List<ReservedRange> ranges) {
+        List<Object[]> nights = new ArrayList<>();
+        for (ReservedRange range : ranges) {
+            for (LocalDate date = range.getStartDate(); date.isBefore(range.getEndDate()); date = date.plusDays(1)) {
+                nights.add(new Object[] { range.getStayId(), Date.valueOf(date) });
+            }
+        }
+        for (int from = 0; from < nights.size(); from += INSERT_BATCH_SIZE) {
+            jdbcTemplate.batchUpdate("INSERT INTO stay_reserved_date (stay_id, date) VALUES (?, ?)",
+                    nights.subList(from, Math.min(from + INSERT_BATCH_SIZE, nights.size())));
+        }
+    }
+
+    @Override
+    public void release(Long stayId, LocalDate start, LocalDate end) {
+        stayReservationDateRepository.deleteByStayIdAndDateRange(stayId, start, end); // one statement, not one per night
+    }
+
+    @Override
+    public void releaseAll(Long stayId) {
+        // Nothing to do, Stay.reservedDates cascades the delete.
+    }
+
+    @Override
+    public List<ReservedRange> findRangesEndingAfter(LocalDate date) {
+        return stayReservationDateRepository.findKeysByDateFrom(date).stream()
+                .map(key -> new ReservedRange(key.getStay_id(), key.getDate(), key.getDate().plusDays(1)))
+                .collect(Collectors.toList());
+    }
+}
@@ -3,7 +3,9 @@ package com.tpd.staybooking.repository;
 import com.tpd.staybooking.model.Reservation;
 import com.tpd.staybooking.model.Stay;
 import com.tpd.staybooking.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
@@ -25,4 +27,25 @@ public interface ReservationRepository extends JpaRepository<Reservation, Long>
     Reservation findByIdAndGuest_Username(Long id, String username);
 
     List<Reservation> findByStayAndCheckoutDateAfter(Stay stay, LocalDate date);
+
+    // Keyset pages ordered by (checkinDate, id): the first page, then everything after the last row of the previous
+    // page, so a page costs the same however far the client has scrolled. Stay, host and guest come in the same
+    // query; the images of the page's stays follow in one more (see @BatchSize on Stay.images).
+    @Query(value = "SELECT r FROM Reservation r JOIN FETCH r.stay s JOIN FETCH s.host JOIN FETCH r.guest g "
+            + "WHERE g.username = ?1 ORDER BY r.checkinDate, r.id")
+    List<Reservation> findPageByGuest(String username, Pageable pageable);
+
+    @Query(value = "SELECT r FROM Reservation r JOIN FETCH r.stay s JOIN FETCH s.host JOIN FETCH r.guest g "
+            + "WHERE g.username = ?1 AND (r.checkinDate > ?2 OR (r.checkinDate = ?2 AND r.id > ?3)) "
+            + "ORDER BY r.checkinDate, r.id")
+    List<Reservation> findPageByGuestAfter(String username, LocalDate checkinDate, Long id, Pageable pageable);
+
+    @Query(value = "SELECT r FROM Reservation r JOIN FETCH r.stay s JOIN FETCH s.host JOIN FETCH r.guest "
+            + "WHERE s.id = ?1 ORDER BY r.checkinDate, r.id")
+    List<Reservation> findPageByStay(Long stayId, Pageable pageable);
+
+    @Query(value = "SELECT r FROM Reservation r JOIN FETCH r.stay s JOIN FETCH s.host JOIN FETCH r.guest "
+            + "WHERE s.id = ?1 AND (r.checkinDate > ?2 OR (r.checkinDate = ?2 AND r.id > ?3)) "
+            + "ORDER BY r.checkinDate, r.id")
+    List<Reservation> findPageByStayAfter(Long stayId, LocalDate checkinDate, Long id, Pageable pageable);
 }
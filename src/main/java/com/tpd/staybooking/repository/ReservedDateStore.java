@@ -0,0 +1,35 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+/*
+Where reserved nights are written. "reservation.storage=nightly" (default) keeps one stay_reserved_date row per
+night, "reservation.storage=interval" keeps one stay_reserved_interval row per booked range.
+All ranges are half-open [start, end), the same as [checkin, checkout).
+*/
+public interface ReservedDateStore {
+
+    // Returns the ids of the stays that have at least one reserved night in [start, end).
+    Set<Long> findReservedStayIds(List<Long> stayIds, LocalDate start, LocalDate end);
+
+    // Every reserved range of the given stays that overlaps [start, end), in one query.
+    List<ReservedRange> findRanges(List<Long> stayIds, LocalDate start, LocalDate end);
+
+    void reserve(Stay stay, LocalDate start, LocalDate end);
+
+    // Writes many ranges at once with JDBC batch statements, used by the bulk reservation import.
+    void reserveAll(List<ReservedRange> ranges);
+
+    void release(Long stayId, LocalDate start, LocalDate end);
+
+    // Must be called before the stay itself is deleted.
+    void releaseAll(Long stayId);
+
+    // Every reserved range that ends after the given date, used to rebuild the availability index.
+    List<ReservedRange> findRangesEndingAfter(LocalDate date);
+}
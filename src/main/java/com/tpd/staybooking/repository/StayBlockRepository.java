@@ -0,0 +1,22 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.StayBlock;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Repository
+public interface StayBlockRepository extends JpaRepository<StayBlock, Long> {
+
+    // Every block of the given stays that overlaps [startDate, endDate), in one query.
+    @Query(value = "SELECT b FROM StayBlock b WHERE b.stay.id IN ?1 AND b.startDate < ?3 AND b.endDate > ?2")
+    List<StayBlock> findOverlapping(List<Long> stayIds, LocalDate startDate, LocalDate endDate);
+
+    @Modifying
+    @Query(value = "DELETE FROM StayBlock b WHERE b.stay.id = ?1")
+    void deleteByStayId(Long stayId);
+}
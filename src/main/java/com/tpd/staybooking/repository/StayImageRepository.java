@@ -0,0 +1,15 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.StayImage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface StayImageRepository extends JpaRepository<StayImage, Long> {
+
+    // Which of the given image names some stay still uses, in one query.
+    @Query(value = "SELECT DISTINCT i.name FROM StayImage i WHERE i.name IN ?1")
+    List<String> findReferencedNames(Collection<String> names);
+}
@@ -0,0 +1,46 @@
+package com.tpd.staybooking.repository;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.ResultSet;
+
+/*
+stay_image used to have url as its primary key. Since equal images are stored once, several rows share a URL, and
+ddl-auto=update does not move an existing primary key to the new id column: on such a database the second stay that
+reuses an image would fail with a duplicate key. Instead of failing uploads one by one, the application does not
+start until db/stay_image_id.sql has been run.
+*/
+@Component
+public class StayImageSchemaCheck {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public StayImageSchemaCheck(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(1)
+    public void check() {
+        Boolean keyedByUrl = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            try (ResultSet keys = connection.getMetaData().getPrimaryKeys(connection.getCatalog(), null,
+                    "stay_image")) {
+                while (keys.next()) {
+                    if ("url".equalsIgnoreCase(keys.getString("COLUMN_NAME"))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        if (Boolean.TRUE.equals(keyedByUrl)) {
+            throw new IllegalStateException("stay_image still has url as its primary key, "
+                    + "run src/main/resources/db/stay_image_id.sql to move it to the id column");
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package com.tpd.staybooking.repository;
 
 import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StaySummary;
 import com.tpd.staybooking.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.LockModeType;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -19,4 +27,57 @@ public interface StayRepository extends JpaRepository<Stay, Long> {
     Stay findByIdAndHost(Long id, User host);
 
     List<Stay> findByIdInAndGuestNumberGreaterThanEqual(List<Long> ids, int guestNumber);
+
+    // SELECT ... FOR UPDATE: bookings of the same stay wait for each other until commit, also across instances.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "SELECT s FROM Stay s WHERE s.id = ?1")
+    Stay findByIdForUpdate(Long id);
+
+    // The same row locks for many stays at once. In id order, so two callers locking overlapping sets cannot
+    // deadlock.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = "SELECT s FROM Stay s WHERE s.id IN ?1 ORDER BY s.id")
+    List<Stay> findAllByIdForUpdate(Collection<Long> ids);
+
+    // Which of the given ids belong to the host, without loading the stays.
+    @Query(value = "SELECT s.id FROM Stay s WHERE s.id IN ?1 AND s.host.username = ?2")
+    List<Long> findIdsByIdInAndHost(List<Long> ids, String username);
+
+    // Which of the given ids exist, without loading the stays.
+    @Query(value = "SELECT s.id FROM Stay s WHERE s.id IN ?1")
+    List<Long> findExistingIds(List<Long> ids);
+
+    // Summaries instead of entities: one query, and neither the images nor the host are loaded. The image is the
+    // stay's first one (lowest id), stays without images are kept by the LEFT JOIN with a null image.
+    @Query(value = "SELECT new com.tpd.staybooking.model.StaySummary(s.id, s.name, s.guestNumber, i.url, i.name) "
+            + "FROM Stay s LEFT JOIN s.images i "
+            + "WHERE s.id IN ?1 AND s.guestNumber >= ?2 "
+            + "AND (i.id IS NULL OR i.id = (SELECT MIN(other.id) FROM StayImage other WHERE other.stay = s))")
+    List<StaySummary> findSummariesByIdInAndGuestNumberGreaterThanEqual(List<Long> ids, int guestNumber);
+
+    @Query(value = "SELECT new com.tpd.staybooking.model.StaySummary(s.id, s.name, s.guestNumber, i.url, i.name) "
+            + "FROM Stay s LEFT JOIN s.images i "
+            + "WHERE s.host.username = ?1 "
+            + "AND (i.id IS NULL OR i.id = (SELECT MIN(other.id) FROM StayImage other WHERE other.stay = s)) "
+            + "ORDER BY s.id")
+    List<StaySummary> findSummariesByHost(String username);
+
+    // [id, guestNumber, name, description] rows, without loading the images and host of every stay.
+    @Query(value = "SELECT s.id, s.guestNumber, s.name, s.description FROM Stay s ORDER BY s.id")
+    List<Object[]> findSearchFields(Pageable pageable);
+
+    // [id, latitude, longitude, guestNumber, name, description] of every geocoded stay, to load the embedded
+    // location backend.
+    @Query(value = "SELECT s.id, s.latitude, s.longitude, s.guestNumber, s.name, s.description FROM Stay s "
+            + "WHERE s.latitude IS NOT NULL")
+    List<Object[]> findCoordinates();
+
+    // [id, address] of the stays added before the coordinates were stored, from the one after afterId on.
+    @Query(value = "SELECT s.id, s.address FROM Stay s WHERE s.latitude IS NULL AND s.id > ?1 ORDER BY s.id")
+    List<Object[]> findWithoutCoordinates(Long afterId, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE Stay s SET s.latitude = ?2, s.longitude = ?3 WHERE s.id = ?1")
+    int updateCoordinates(Long id, double latitude, double longitude);
 }
\ No newline at end of file
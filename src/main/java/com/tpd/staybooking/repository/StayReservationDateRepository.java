@@ -3,6 +3,7 @@ package com.tpd.staybooking.repository;
 import com.tpd.staybooking.model.StayReservedDate;
 import com.tpd.staybooking.model.StayReservedDateKey;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.stereotype.Repository;
 import org.springframework.data.jpa.repository.Query;
 
@@ -25,4 +26,17 @@ public interface StayReservationDateRepository extends JpaRepository<StayReserve
     // date BETWEEN ?1 AND ?2", nativeQuery = true) // It can also be written like
     // this.
     Set<Long> findByIdInAndDateBetween(List<Long> stayIds, LocalDate startDate, LocalDate endDate);
+
+    // Only the keys are selected so rebuilding the availability index does not load a Stay for every row.
+    @Query(value = "SELECT srd.id FROM StayReservedDate srd WHERE srd.id.date >= ?1")
+    List<StayReservedDateKey> findKeysByDateFrom(LocalDate startDate);
+
+    @Query(value = "SELECT srd.id FROM StayReservedDate srd WHERE srd.id.stay_id IN ?1 AND srd.id.date >= ?2 AND srd.id.date < ?3")
+    List<StayReservedDateKey> findKeysByStayIdInAndDateRange(List<Long> stayIds, LocalDate startDate,
+            LocalDate endDate);
+
+    // A bulk delete, instead of deleteById() which selects and then deletes every night on its own.
+    @Modifying
+    @Query(value = "DELETE FROM StayReservedDate srd WHERE srd.id.stay_id = ?1 AND srd.id.date >= ?2 AND srd.id.date < ?3")
+    int deleteByStayIdAndDateRange(Long stayId, LocalDate startDate, LocalDate endDate);
 }
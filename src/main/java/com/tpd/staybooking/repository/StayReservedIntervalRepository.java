@@ -0,0 +1,33 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.StayReservedInterval;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+@Repository
+public interface StayReservedIntervalRepository extends JpaRepository<StayReservedInterval, Long> {
+
+    // Two half-open ranges overlap when each one starts before the other one ends.
+    @Query(value = "SELECT DISTINCT sri.stay.id FROM StayReservedInterval sri WHERE sri.stay.id IN ?1 AND sri.startDate < ?3 AND sri.endDate > ?2")
+    Set<Long> findOverlappingStayIds(List<Long> stayIds, LocalDate startDate, LocalDate endDate);
+
+    @Query(value = "SELECT sri FROM StayReservedInterval sri WHERE sri.stay.id = ?1 AND sri.startDate < ?3 AND sri.endDate > ?2")
+    List<StayReservedInterval> findOverlapping(Long stayId, LocalDate startDate, LocalDate endDate);
+
+    @Query(value = "SELECT new com.tpd.staybooking.model.ReservedRange(sri.stay.id, sri.startDate, sri.endDate) FROM StayReservedInterval sri WHERE sri.stay.id IN ?1 AND sri.startDate < ?3 AND sri.endDate > ?2")
+    List<ReservedRange> findOverlappingRanges(List<Long> stayIds, LocalDate startDate, LocalDate endDate);
+
+    @Query(value = "SELECT new com.tpd.staybooking.model.ReservedRange(sri.stay.id, sri.startDate, sri.endDate) FROM StayReservedInterval sri WHERE sri.endDate > ?1")
+    List<ReservedRange> findRangesEndingAfter(LocalDate date);
+
+    @Modifying
+    @Query(value = "DELETE FROM StayReservedInterval sri WHERE sri.stay.id = ?1")
+    void deleteByStayId(Long stayId);
+}
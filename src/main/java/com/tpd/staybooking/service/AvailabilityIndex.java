@@ -0,0 +1,160 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.util.DateBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/*
+In-process copy of the reserved date storage: one DateBitmap per stay that has at least one reserved night.
+It is rebuilt from MySQL when the application starts and kept in sync by ReservationService after each commit,
+so SearchService can filter thousands of candidate stays without a SQL round trip.
+Stays without a bitmap have no reserved nights.
+Nights held by a ReservationHold are kept in a second set of bitmaps, so a hold can be dropped without touching the
+reserved nights; the availability checks treat held nights like reserved ones.
+*/
+@Component
+public class AvailabilityIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvailabilityIndex.class);
+
+    private final ReservedDateStore reservedDateStore;
+    private final ConcurrentMap<Long, DateBitmap> bitmaps = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, DateBitmap> held = new ConcurrentHashMap<>();
+    private final LocalDate origin = LocalDate.now(); // nights before startup can no longer be searched
+    private volatile boolean ready; // until the first load finishes, callers should fall back to MySQL
+
+    public AvailabilityIndex(ReservedDateStore reservedDateStore) {
+        this.reservedDateStore = reservedDateStore;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(0)
+    public void rebuild() {
+        long startTime = System.currentTimeMillis();
+        List<ReservedRange> ranges = reservedDateStore.findRangesEndingAfter(origin);
+        for (ReservedRange range : ranges) {
+            bitmapOf(range.getStayId()).set(range.getStartDate(), range.getEndDate());
+        }
+        ready = true;
+        LOGGER.info("Availability index loaded {} reserved ranges for {} stays in {} ms", ranges.size(),
+                bitmaps.size(), System.currentTimeMillis() - startTime);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void reserve(Long stayId, LocalDate start, LocalDate end) {
+        bitmapOf(stayId).set(start, end);
+    }
+
+    public void release(Long stayId, LocalDate start, LocalDate end) {
+        DateBitmap bitmap = bitmaps.get(stayId);
+        if (bitmap != null) {
+            bitmap.clear(start, end);
+        }
+    }
+
+    public void remove(Long stayId) {
+        bitmaps.remove(stayId);
+        held.remove(stayId);
+    }
+
+    public void hold(Long stayId, LocalDate start, LocalDate end) {
+        held.computeIfAbsent(stayId, id -> new DateBitmap(origin)).set(start, end);
+    }
+
+    public void releaseHold(Long stayId, LocalDate start, LocalDate end) {
+        DateBitmap bitmap = held.get(stayId);
+        if (bitmap != null) {
+            bitmap.clear(start, end);
+        }
+    }
+
+    // checkout is exclusive, a guest can check in on the day the previous guest checks out.
+    public boolean isAvailable(Long stayId, LocalDate checkinDate, LocalDate checkoutDate) {
+        DateBitmap bitmap = bitmaps.get(stayId);
+        return (bitmap == null || !bitmap.intersects(checkinDate, checkoutDate))
+                && !isHeld(stayId, checkinDate, checkoutDate);
+    }
+
+    // Held nights only. Works before the index is loaded, holds only ever live in memory.
+    public boolean isHeld(Long stayId, LocalDate checkinDate, LocalDate checkoutDate) {
+        DateBitmap bitmap = held.get(stayId);
+        return bitmap != null && bitmap.intersects(checkinDate, checkoutDate);
+    }
+
+    public List<ReservedRange> heldRanges(Long stayId) {
+        DateBitmap bitmap = held.get(stayId);
+        if (bitmap == null) {
+            return Collections.emptyList();
+        }
+        List<ReservedRange> ranges = new ArrayList<>();
+        bitmap.forEachRange((start, end) -> ranges.add(new ReservedRange(stayId, start, end)));
+        return ranges;
+    }
+
+    // Every check-in date in the window that leaves `nights` free nights before windowEnd (the latest checkout).
+    public List<LocalDate> feasibleCheckins(Long stayId, LocalDate windowStart, LocalDate windowEnd, int nights) {
+        DateBitmap heldBitmap = held.get(stayId);
+        if (heldBitmap == null || heldBitmap.isEmpty()) {
+            return feasibleCheckins(bitmaps.get(stayId), windowStart, windowEnd, nights);
+        }
+        DateBitmap unavailable = new DateBitmap(origin); // reserved or held, rare enough to build on the fly
+        heldBitmap.forEachRange(unavailable::set);
+        DateBitmap reserved = bitmaps.get(stayId);
+        if (reserved != null) {
+            reserved.forEachRange(unavailable::set);
+        }
+        return feasibleCheckins(unavailable, windowStart, windowEnd, nights);
+    }
+
+    /*
+     * One pass over the free runs of the window instead of one check per candidate date: a free run [a, b) of at
+     * least `nights` nights allows every check-in from a to b - nights. A null bitmap means nothing is reserved.
+     */
+    static List<LocalDate> feasibleCheckins(DateBitmap bitmap, LocalDate windowStart, LocalDate windowEnd,
+            int nights) {
+        List<LocalDate> checkins = new ArrayList<>();
+        BiConsumer<LocalDate, LocalDate> addCheckins = (start, end) -> {
+            for (LocalDate date = start; !date.plusDays(nights).isAfter(end); date = date.plusDays(1)) {
+                checkins.add(date);
+            }
+        };
+        if (bitmap == null) {
+            addCheckins.accept(windowStart, windowEnd);
+        } else {
+            bitmap.forEachFreeRange(windowStart, windowEnd, addCheckins);
+        }
+        return checkins;
+    }
+
+    // The reserved nights of a stay from today on, as runs of consecutive nights.
+    public List<ReservedRange> reservedRanges(Long stayId) {
+        DateBitmap bitmap = bitmaps.get(stayId);
+        if (bitmap == null) {
+            return Collections.emptyList();
+        }
+        List<ReservedRange> ranges = new ArrayList<>();
+        bitmap.forEachRange((start, end) -> ranges.add(new ReservedRange(stayId, start, end)));
+        return ranges;
+    }
+
+    private DateBitmap bitmapOf(Long stayId) {
+        return bitmaps.computeIfAbsent(stayId, id -> new DateBitmap(origin));
+    }
+}
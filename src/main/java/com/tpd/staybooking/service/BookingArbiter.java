@@ -0,0 +1,169 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.ReservationCollisionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+Decides the order of concurrent bookings. Without it two requests for the same nights both pass the collision check
+and then race on the stay_reserved_date primary key, and the loser gets an unmapped persistence error.
+Every stay maps to one of a fixed number of locks (lock striping), so bookings for one stay run one at a time while
+bookings for other stays go ahead in parallel; a few stays sharing a lock only costs a little waiting.
+The lock only covers this JVM. Between application instances the row lock ReservationService takes on the stay and
+the primary key still decide, and a request that loses there is retried a bounded number of times: the retry sees
+the winner's nights and ends in a ReservationCollisionException (409) like any other collision. Only duplicate keys
+and lock failures count as such a loss; any other integrity violation (a missing foreign key, a NOT NULL column) is
+a bug or bad input, and is thrown as it is instead of being retried and reported as a collision.
+The action has to include its own transaction so the lock is held until the commit.
+*/
+@Component
+public class BookingArbiter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingArbiter.class);
+    private static final long RETRY_BACKOFF_MILLIS = 20;
+    private static final int MYSQL_DUPLICATE_ENTRY = 1062;
+
+    private final ReentrantLock[] locks;
+    private final int maxAttempts;
+    private final long lockTimeoutMillis;
+
+    public BookingArbiter(@Value("${booking.lock-stripes:1024}") int lockStripes,
+            @Value("${booking.max-attempts:3}") int maxAttempts,
+            @Value("${booking.lock-timeout-ms:2000}") long lockTimeoutMillis) {
+        this.locks = new ReentrantLock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.maxAttempts = maxAttempts;
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    public <T> T book(Long stayId, Supplier<T> action) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return withStayLock(stayId, action);
+            } catch (DataIntegrityViolationException | TransientDataAccessException exception) {
+                // Another instance wrote the same nights (duplicate key) or MySQL gave up on a lock (deadlock,
+                // lock wait timeout). Both are worth another try, the next check sees the committed state.
+                if (!isRetryable(exception)) {
+                    throw exception;
+                }
+                if (attempt >= maxAttempts) {
+                    LOGGER.info("Booking of stay {} failed after {} attempts", stayId, attempt, exception);
+                    throw new ReservationCollisionException("Duplicate reservation");
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    /*
+     * Same as book(), for an action that writes several stays in one transaction (the bulk import). The locks are
+     * always taken in ascending order, so two such actions cannot deadlock, and a single booking only ever holds one.
+     */
+    public <T> T bookAll(Collection<Long> stayIds, Supplier<T> action) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Long stayId : stayIds) {
+            stripes.add(stripeOf(stayId));
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return withStripeLocks(stripes.iterator(), action);
+            } catch (DataIntegrityViolationException | TransientDataAccessException exception) {
+                if (!isRetryable(exception)) {
+                    throw exception;
+                }
+                if (attempt >= maxAttempts) {
+                    LOGGER.info("Booking of {} stays failed after {} attempts", stayIds.size(), attempt, exception);
+                    throw new ReservationCollisionException("Duplicate reservation");
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private <T> T withStripeLocks(Iterator<Integer> stripes, Supplier<T> action) {
+        if (!stripes.hasNext()) {
+            return action.get();
+        }
+        ReentrantLock lock = locks[stripes.next()];
+        lock(lock);
+        try {
+            return withStripeLocks(stripes, action);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T withStayLock(Long stayId, Supplier<T> action) {
+        ReentrantLock lock = locks[stripeOf(stayId)];
+        lock(lock);
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int stripeOf(Long stayId) {
+        return (int) Math.floorMod(stayId, (long) locks.length);
+    }
+
+    private void lock(ReentrantLock lock) {
+        boolean locked;
+        try {
+            locked = lock.tryLock(lockTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReservationCollisionException("Stay is being booked by someone else, please try again");
+        }
+        if (!locked) { // a long queue for one stay, answer instead of holding the request thread
+            throw new ReservationCollisionException("Stay is being booked by someone else, please try again");
+        }
+    }
+
+    /*
+     * JdbcTemplate translates a duplicate key into DuplicateKeyException, but through JPA Hibernate's
+     * ConstraintViolationException only becomes a plain DataIntegrityViolationException, so the SQLException
+     * underneath is checked as well: MySQL error 1062 (ER_DUP_ENTRY), or SQLState 23505 on other databases.
+     */
+    private static boolean isRetryable(RuntimeException exception) {
+        if (exception instanceof TransientDataAccessException || exception instanceof DuplicateKeyException) {
+            return true;
+        }
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                if (sqlException.getErrorCode() == MYSQL_DUPLICATE_ENTRY
+                        || "23505".equals(sqlException.getSQLState())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            // Random jitter so instances that collided do not retry in lock step.
+            Thread.sleep(RETRY_BACKOFF_MILLIS * attempt + ThreadLocalRandom.current().nextLong(RETRY_BACKOFF_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReservationCollisionException("Stay is being booked by someone else, please try again");
+        }
+    }
+}
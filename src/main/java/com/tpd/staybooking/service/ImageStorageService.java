@@ -1,80 +1,346 @@
 package com.tpd.staybooking.service;
 
-import com.google.cloud.storage.Acl;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
 import com.tpd.staybooking.exception.GCSUploadException;
+import com.tpd.staybooking.exception.ImageTooLargeException;
+import com.tpd.staybooking.model.ImageRelease;
+import com.tpd.staybooking.model.ImageSize;
+import com.tpd.staybooking.repository.ImageReleaseRepository;
+import com.tpd.staybooking.repository.ImageStore;
+import com.tpd.staybooking.repository.StayImageRepository;
+import com.tpd.staybooking.util.BoundedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
+/*
+Saves stay images to the configured ImageStore (Google Cloud Storage or the local disk, see ImageStore) and deletes
+them once no stay uses them. Images are content addressed: the name is the SHA-256 of the bytes plus the extension of
+the content type, hashed while the image is read. An image that is already stored is not stored again, the new
+StayImage rows just point at the same object, so hosts who re-list or clone stays do not upload the same photos
+over and over. A name never gets other content, so an image can still be cached forever.
+
+Because images are shared, nothing deletes one directly. Images that may have lost their last user (a deleted stay,
+a failed listing) are released into the image_release table; a scheduled sweep deletes those that no StayImage row
+references after image.cleanup.delay-seconds. An upload that reuses a released image restarts its delay, so the
+image is not deleted while the new stay is still being saved. The sweep deletes an image while it holds its
+image_release row, and the reuse has to update that row, so a reuse either comes first and keeps the image or
+comes after the delete and stores the image again. The StayImage rows are the reference count, there is no counter
+that could drift from them.
+*/
 @Service
 public class ImageStorageService {
 
-    @Value("${gcs.bucket}") // This annotation is used to inject the value of the gcs.bucket property from
-                            // the application.properties file. It represents the name of the Google Cloud
-                            // Storage bucket where the images will be uploaded.
-    private String bucketName; // In the entire project, the bucket name will definitely not change, and if the
-                               // bucket...
-                               // If the name changes, the consequences could be severe. The preferred approach
-                               // is to make this a final field and create it in the constructor.
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageStorageService.class);
+    private static final int NAMES_PER_QUERY = 500;
+
+    // The image types clients can upload and the extensions they are stored under, anything else is saved as JPEG.
+    private static final Map<String, String> EXTENSIONS = Map.of(
+            "image/jpeg", "jpg",
+            "image/png", "png",
+            "image/gif", "gif",
+            "image/webp", "webp");
+
+    private final ImageStore imageStore;
+    private final BoundedExecutor uploadExecutor;
+    private final StayImageRepository stayImageRepository;
+    private final ImageVariantService imageVariantService;
+    private final ImageReleaseRepository imageReleaseRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${image.upload.timeout-ms:60000}") // for one image, all attempts included
+    private long uploadTimeoutMillis;
 
-    private final Storage storage; // an instance of the Storage class, which provides methods to interact with
-                                   // Google Cloud Storage.
+    @Value("${image.upload.max-attempts:3}")
+    private int maxAttempts;
 
-    public ImageStorageService(Storage storage) {
-        this.storage = storage;
+    @Value("${image.cleanup.delay-seconds:300}")
+    private long cleanupDelaySeconds;
+
+    public ImageStorageService(ImageStore imageStore,
+            @Qualifier("imageUploadExecutor") BoundedExecutor uploadExecutor,
+            StayImageRepository stayImageRepository, ImageVariantService imageVariantService,
+            ImageReleaseRepository imageReleaseRepository, TransactionTemplate transactionTemplate) {
+        this.imageStore = imageStore;
+        this.uploadExecutor = uploadExecutor;
+        this.stayImageRepository = stayImageRepository;
+        this.imageVariantService = imageVariantService;
+        this.imageReleaseRepository = imageReleaseRepository;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /*
+     * Uploads the non-empty images at the same time on the upload executor and waits for all of them. Each upload
+     * is retried with a short backoff when the store reports a retryable error and has uploadTimeoutMillis in
+     * total. An image is hashed from the local copy of the request first, and only uploaded if the store does not
+     * have it yet. If any image fails, the ones already saved are released and GCSUploadException is thrown, so a
+     * failed listing does not leave images behind (an upload that is still running past its deadline may).
+     */
+    public List<StoredImage> saveAll(MultipartFile[] images) throws GCSUploadException {
+        List<CompletableFuture<StoredImage>> uploads = new ArrayList<>();
+        for (MultipartFile image : images) {
+            if (!image.isEmpty()) {
+                uploads.add(uploadExecutor.supply(() -> saveWithRetries(image), uploadTimeoutMillis));
+            }
+        }
+        List<StoredImage> stored = new ArrayList<>();
+        RuntimeException failure = null;
+        for (CompletableFuture<StoredImage> upload : uploads) {
+            try {
+                stored.add(upload.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RejectedExecutionException) {
+                    failure = (RejectedExecutionException) e.getCause(); // answered with 503, not retried here
+                } else {
+                    failure = e.getCause() instanceof TimeoutException
+                            ? new GCSUploadException("Image upload timed out")
+                            : new GCSUploadException("Failed to upload image");
+                }
+            }
+        }
+        if (failure != null) {
+            release(names(stored));
+            throw failure;
+        }
+        return stored;
     }
 
-    public String save(MultipartFile file) throws GCSUploadException { // Images can be sent from the frontend as
-                                                                       // multiple files, so use multipart file.
-        String filename = UUID.randomUUID().toString(); // UUID
-        BlobInfo blobInfo = null; // BlobInfo file
+    /*
+     * Saves one image straight from a stream that is read only once, e.g. a part of a streamed multipart request.
+     * The stream is never buffered as a whole, so one upload needs the same memory whatever the size of the image,
+     * and it cannot be retried. The digest is only known at the end, so the image is written under a temporary
+     * name while it is hashed and then renamed to its digest name, or deleted if the store has that image already
+     * (the transfer is not saved then, the storage is). An image over maxBytes fails with ImageTooLargeException and
+     * is not stored. Returns null for an empty stream.
+     */
+    public StoredImage saveStream(InputStream in, String contentType, long maxBytes)
+            throws GCSUploadException, IOException {
+        PushbackInputStream image = new PushbackInputStream(in, 1);
+        int first = image.read();
+        if (first == -1) {
+            return null;
+        }
+        image.unread(first);
+        String type = EXTENSIONS.containsKey(contentType) ? contentType : "image/jpeg";
+        String tempName = "upload-" + UUID.randomUUID() + "." + EXTENSIONS.get(type);
+        MessageDigest digest = sha256();
+        imageStore.save(tempName, type, new DigestInputStream(new SizeLimitedInputStream(image, maxBytes), digest));
+        String name = nameOf(digest, type);
         try {
-            blobInfo = storage.createFrom( // This is the file upload functionality. This block of code creates a new
-                                           // BlobInfo instance and uploads it.
-                                           // the image file to the GCS bucket. The BlobInfo defines metadata for the
-                                           // uploaded object, such as its filename, content type, and access control.
-                    BlobInfo // Below are the file attributes definition - here, build...
-                             // Using a pattern is very convenient. It allows you to define the required
-                             // fields and set others to default values without mentioning them, resulting in
-                             // cleaner code."
-                            .newBuilder(bucketName, filename)
-                            .setContentType("image/jpeg")
-                            .setAcl(new ArrayList<>(Arrays.asList(Acl.of(Acl.User.ofAllUsers(), Acl.Role.READER)))) // This
-                                                                                                                    // grants
-                                                                                                                    // public
-                                                                                                                    // read
-                                                                                                                    // access
-                                                                                                                    // to
-                                                                                                                    // the
-                                                                                                                    // uploaded
-                                                                                                                    // image,
-                                                                                                                    // allowing
-                                                                                                                    // anyone
-                                                                                                                    // to
-                                                                                                                    // view
-                                                                                                                    // it
-                                                                                                                    // without
-                                                                                                                    // needing
-                                                                                                                    // authentication.
-                            .build(),
-                    file.getInputStream()); // Convert the file into a binary data stream before uploading it.
-        } catch (IOException exception) {
-            throw new GCSUploadException("Failed to upload file to GCS");
-        }
-
-        return blobInfo.getMediaLink(); // After the upload is successful, the method returns the media link URL of the
-                                        // uploaded image
+            String url = imageStore.find(name);
+            if (url != null && reuse(name)) {
+                imageStore.delete(tempName);
+                return new StoredImage(name, url);
+            }
+            return new StoredImage(name, imageStore.rename(tempName, name));
+        } catch (IOException | RuntimeException e) {
+            try {
+                imageStore.delete(tempName);
+            } catch (RuntimeException ignored) {
+                // an orphaned temporary image costs storage only, no stay points at it
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Images that a stay no longer uses, or that a failed listing saved. Each one is deleted by the next sweep after
+     * image.cleanup.delay-seconds if no StayImage references it then.
+     */
+    public void release(Collection<String> names) {
+        long eligibleAt = System.currentTimeMillis() + cleanupDelaySeconds * 1000;
+        for (String name : names) {
+            imageReleaseRepository.upsert(name, eligibleAt); // a later release of the same image restarts its delay
+        }
     }
-}
 
-// The above operations involve recording the media link after uploading.
-// The next step is to inject imageStorage into the image service. When we
-// finish uploading a stay, we will retrieve all images, upload them to Google
-// Cloud, and store the image URLs in the database.
\ No newline at end of file
+    public static List<String> names(Collection<StoredImage> images) {
+        List<String> names = new ArrayList<>(images.size());
+        images.forEach(image -> names.add(image.getName()));
+        return names;
+    }
+
+    // Deletes the released images whose delay is over and which no stay references, with one query per
+    // NAMES_PER_QUERY images. Each image is deleted in its own short transaction that holds its image_release row.
+    // An image that cannot be deleted keeps its row and is tried again by the next sweep, of any instance.
+    @Scheduled(fixedDelayString = "${image.cleanup.interval-ms:60000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        List<String> due;
+        String lastName = "";
+        do {
+            due = imageReleaseRepository.findDue(now, lastName, PageRequest.of(0, NAMES_PER_QUERY));
+            if (due.isEmpty()) {
+                return;
+            }
+            Set<String> referenced = new HashSet<>(stayImageRepository.findReferencedNames(due));
+            for (String name : due) {
+                lastName = name;
+                try {
+                    transactionTemplate.executeWithoutResult(status -> sweepOne(name, now, referenced.contains(name)));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not delete image {}", name, e);
+                }
+            }
+        } while (due.size() == NAMES_PER_QUERY);
+    }
+
+    private void sweepOne(String name, long now, boolean referenced) {
+        ImageRelease release = imageReleaseRepository.findByNameForUpdate(name);
+        if (release == null || release.getEligibleAt() > now) {
+            return; // swept by another instance, or reused since the query: its delay starts over
+        }
+        if (!referenced) {
+            delete(name); // still holding the row, so a reuse of the image waits until it is gone
+        }
+        imageReleaseRepository.delete(release); // a stay still uses it, a later release brings it back
+    }
+
+    /*
+     * Restarts the delay of an image that is found in the store and used for a new stay. The update waits while a
+     * sweep holds the image's row, so the image is looked up again afterwards: false if the sweep deleted it in the
+     * meantime and it has to be stored again.
+     */
+    private boolean reuse(String name) {
+        imageReleaseRepository.postpone(name, System.currentTimeMillis() + cleanupDelaySeconds * 1000);
+        return imageStore.find(name) != null;
+    }
+
+    private void delete(String name) {
+        imageStore.delete(name);
+        for (ImageSize size : ImageSize.values()) {
+            imageStore.delete(size.variantName(name));
+        }
+        imageVariantService.evict(name);
+    }
+
+    private StoredImage saveWithRetries(MultipartFile file) {
+        String type = EXTENSIONS.containsKey(file.getContentType()) ? file.getContentType() : "image/jpeg";
+        String name;
+        try {
+            name = digestName(file, type);
+        } catch (IOException e) {
+            throw new GCSUploadException("Failed to read image");
+        }
+        for (int attempt = 1;; attempt++) {
+            try (InputStream in = file.getInputStream()) { // Images can be sent from the frontend as multiple
+                                                           // files, so use multipart file.
+                String url = imageStore.find(name); // checked on every attempt, another upload may have stored it
+                return url != null && reuse(name) ? new StoredImage(name, url)
+                        : new StoredImage(name, imageStore.save(name, type, in));
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw new GCSUploadException("Failed to upload image");
+                }
+            }
+            try {
+                Thread.sleep(200L * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GCSUploadException("Failed to upload image");
+            }
+        }
+    }
+
+    // Reads the local copy of the upload once, before anything is sent to the store.
+    private static String digestName(MultipartFile file, String contentType) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(file.getInputStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return nameOf(digest, contentType);
+    }
+
+    private static String nameOf(MessageDigest digest, String contentType) {
+        return HexFormat.of().formatHex(digest.digest()) + "." + EXTENSIONS.get(contentType);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    // An uploaded image: its name in the store and the public URL stored in StayImage.
+    public static class StoredImage {
+        private final String name;
+        private final String url;
+
+        public StoredImage(String name, String url) {
+            this.name = name;
+            this.url = url;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    // Fails the read that goes past maxBytes, so the store gives up on the image before it is complete.
+    private static class SizeLimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long count;
+
+        private SizeLimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int bytes) {
+            count += bytes;
+            if (count > maxBytes) {
+                throw new ImageTooLargeException("Images can be at most " + maxBytes + " bytes");
+            }
+        }
+    }
+}
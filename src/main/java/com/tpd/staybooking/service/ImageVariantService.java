@@ -0,0 +1,286 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.GCSUploadException;
+import com.tpd.staybooking.model.ImageSize;
+import com.tpd.staybooking.repository.ImageStore;
+import com.tpd.staybooking.util.BoundedExecutor;
+import com.tpd.staybooking.util.SingleFlight;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+
+/*
+The smaller sizes of stay images (see ImageSize). They are made right after a stay is saved, on the bounded
+imageVariantExecutor, and stored next to the originals. A size that is missing anyway (older images, a failed
+generation, another instance) is made on its first request. Served variants are kept in an LRU cache of at most
+image.variant.cache.max-bytes, so a popular search page does not go to the store for every thumbnail, and
+concurrent first requests for the same variant share one generation (SingleFlight).
+*/
+@Service
+public class ImageVariantService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageVariantService.class);
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9-]+\\.[a-z0-9]+");
+    private static final float JPEG_QUALITY = 0.8f;
+    private static final long MAX_SOURCE_PIXELS = 100_000_000; // a 100 MP photo, larger than any camera's
+    private static final int LARGEST_SIDE = Arrays.stream(ImageSize.values()).mapToInt(ImageSize::getMaxSide).max()
+            .orElseThrow();
+
+    private final ImageStore imageStore;
+    private final BoundedExecutor variantExecutor;
+    private final SingleFlight<String, byte[]> inFlight = new SingleFlight<>();
+    private final long maxCacheBytes;
+    private final long timeoutMillis;
+
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long cachedBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public ImageVariantService(ImageStore imageStore,
+            @Qualifier("imageVariantExecutor") BoundedExecutor variantExecutor, MeterRegistry meterRegistry,
+            @Value("${image.variant.cache.max-bytes:67108864}") long maxCacheBytes,
+            @Value("${image.variant.timeout-ms:10000}") long timeoutMillis) {
+        this.imageStore = imageStore;
+        this.variantExecutor = variantExecutor;
+        this.maxCacheBytes = maxCacheBytes;
+        this.timeoutMillis = timeoutMillis;
+        ImageIO.setUseCache(false); // decode in memory, not through temp files
+        this.hits = meterRegistry.counter("image.variant.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("image.variant.cache.requests", "result", "miss");
+        Gauge.builder("image.variant.cache.memory", this, ImageVariantService::cachedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    // The JPEG bytes of one size of an image, or null if there is no such image.
+    public byte[] get(String imageName, ImageSize size) {
+        if (!NAME.matcher(imageName).matches() || isVariant(imageName)) {
+            return null;
+        }
+        String variantName = size.variantName(imageName);
+        byte[] cached = cached(variantName);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        byte[] bytes = inFlight.execute(variantName, () -> load(imageName, size));
+        if (bytes != null) {
+            cache(variantName, bytes);
+        }
+        return bytes;
+    }
+
+    // Makes every size of the images in the background, the caller does not wait. Failures are only logged, the
+    // sizes are made on first request then. A reused image (see ImageStorageService) has its sizes already.
+    public void generateAsync(List<String> imageNames) {
+        for (String imageName : imageNames) {
+            variantExecutor.supply(() -> hasAllSizes(imageName) ? null : generateAll(imageName), timeoutMillis)
+                    .exceptionally(e -> {
+                        LOGGER.warn("Could not make the sizes of image {}", imageName, e);
+                        return null;
+                    });
+        }
+    }
+
+    // Drops the cached sizes of a deleted image.
+    public synchronized void evict(String imageName) {
+        for (ImageSize size : ImageSize.values()) {
+            byte[] bytes = cache.remove(size.variantName(imageName));
+            if (bytes != null) {
+                cachedBytes -= bytes.length;
+            }
+        }
+    }
+
+    private boolean hasAllSizes(String imageName) {
+        for (ImageSize size : ImageSize.values()) {
+            if (imageStore.find(size.variantName(imageName)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Variants have no variants of their own.
+    private static boolean isVariant(String imageName) {
+        for (ImageSize size : ImageSize.values()) {
+            if (imageName.endsWith("-" + size.getKey() + ".jpg")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // From the store if it was made before, otherwise made now on the variant executor.
+    private byte[] load(String imageName, ImageSize size) {
+        try (InputStream stored = imageStore.open(size.variantName(imageName))) {
+            if (stored != null) {
+                return stored.readAllBytes();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            return variantExecutor.supply(() -> generateAll(imageName).get(size), timeoutMillis).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    // Decodes the original once and stores every size of it. Empty if the original is missing or not an image.
+    private Map<ImageSize, byte[]> generateAll(String imageName) {
+        Map<ImageSize, byte[]> variants = new EnumMap<>(ImageSize.class);
+        BufferedImage original;
+        try (InputStream in = imageStore.open(imageName)) {
+            original = in == null ? null : decode(in, imageName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (original == null) {
+            return variants;
+        }
+        for (ImageSize size : ImageSize.values()) {
+            byte[] bytes = encodeJpeg(resize(original, size.getMaxSide()));
+            try {
+                imageStore.save(size.variantName(imageName), "image/jpeg", new ByteArrayInputStream(bytes));
+            } catch (IOException | GCSUploadException e) { // still served, and made again on the next miss
+                LOGGER.warn("Could not store size {} of image {}", size.getKey(), imageName, e);
+            }
+            variants.put(size, bytes);
+        }
+        return variants;
+    }
+
+    /*
+     * The dimensions are read from the header before any pixel is decoded: a small compressed file can declare
+     * 30000 x 30000 pixels, which ImageIO.read() would allocate in full (several GB) for any anonymous request of
+     * a size. Images over MAX_SOURCE_PIXELS are refused, the others are decoded with source subsampling down to
+     * about twice the largest size, which is all resize() needs. Null if the bytes are not an image.
+     */
+    private static BufferedImage decode(InputStream in, String imageName) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_SOURCE_PIXELS) {
+                    LOGGER.warn("Image {} has {} x {} pixels, no sizes are made of it", imageName, width, height);
+                    return null;
+                }
+                int step = Math.max(1, Math.max(width, height) / (2 * LARGEST_SIDE));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Halves the image until it is less than twice the target and then scales the rest in one bilinear step. A
+     * single bilinear step from a 4000 px photo to 320 px would skip most pixels and look jagged. Transparent
+     * parts become white, JPEG has no alpha.
+     */
+    private static BufferedImage resize(BufferedImage image, int maxSide) {
+        int longSide = Math.max(image.getWidth(), image.getHeight());
+        double scale = Math.min(1.0, (double) maxSide / longSide);
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage current = image;
+        do {
+            current = draw(current, Math.max(targetWidth, current.getWidth() / 2),
+                    Math.max(targetHeight, current.getHeight() / 2));
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return target;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized byte[] cached(String variantName) {
+        return cache.get(variantName);
+    }
+
+    private synchronized void cache(String variantName, byte[] bytes) {
+        if (bytes.length > maxCacheBytes) {
+            return;
+        }
+        byte[] previous = cache.put(variantName, bytes);
+        cachedBytes += bytes.length - (previous == null ? 0 : previous.length);
+        Iterator<byte[]> eldest = cache.values().iterator(); // least recently used first
+        while (cachedBytes > maxCacheBytes) {
+            cachedBytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+}
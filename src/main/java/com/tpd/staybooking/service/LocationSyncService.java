@@ -0,0 +1,225 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.model.Location;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.repository.CustomLocationRepository;
+import com.tpd.staybooking.repository.StayRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.geo.GeoPoint;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/*
+Keeps the guestNumber and reservedDates fields of the "loc" documents (or of the embedded backend) in step with
+MySQL, so that with search.filter=elasticsearch the whole search filter runs as one Elasticsearch query. With the
+default search.filter=index availability is never read from the location backend, so reservations are not synced.
+The reserved ranges are read from the AvailabilityIndex, which is updated first, so no query hits MySQL. Until the
+index has finished loading it would return no ranges at all, so changes before that are not synced one by one:
+the backfill, which runs after the load, writes the ranges of every stay. The backfill also copies name and
+description into documents indexed before keyword search existed. It only runs when it has something to repair,
+see backfill().
+*/
+@Service
+public class LocationSyncService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocationSyncService.class);
+    private static final int BACKFILL_PAGE_SIZE = 500;
+    private static final int LOCK_STRIPES = 64;
+
+    private final CustomLocationRepository locationRepository;
+    private final StayRepository stayRepository;
+    private final AvailabilityIndex availabilityIndex;
+    private final GeoCodingService geoCodingService;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    private final boolean indexMigrated;
+
+    @Value("${location.backend:elasticsearch}")
+    private String locationBackend;
+
+    @Value("${search.filter:index}")
+    private String searchFilter;
+
+    @Value("${location.backfill-on-startup:false}") // e.g. once after switching search.filter to elasticsearch
+    private boolean backfillOnStartup;
+
+    public LocationSyncService(CustomLocationRepository locationRepository, StayRepository stayRepository,
+            AvailabilityIndex availabilityIndex, GeoCodingService geoCodingService) {
+        this.locationRepository = locationRepository;
+        this.stayRepository = stayRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.geoCodingService = geoCodingService;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        // During startup, the web server does not take requests yet.
+        this.indexMigrated = locationRepository.ensureMapping();
+    }
+
+    // Call after the reservation change is committed and applied to the AvailabilityIndex.
+    public void syncReservedDates(Long stayId) {
+        if (!availabilityInLocationBackend() || !availabilityIndex.isReady()) {
+            return; // not read, or the backfill writes it
+        }
+        // Reading the index and writing the document under one lock means a later change can never be
+        // overwritten by an earlier one that reached Elasticsearch late.
+        ReentrantLock lock = locks[stripeOf(stayId)];
+        lock.lock();
+        try {
+            locationRepository.updateReservedDates(stayId, availabilityIndex.reservedRanges(stayId));
+        } catch (RuntimeException exception) {
+            // The booking itself is committed, a stale document only shows a stay that will fail the
+            // collision check. It is repaired by the next change or the next backfill.
+            LOGGER.warn("Failed to sync reserved dates of stay {} to Elasticsearch", stayId, exception);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same for many stays, as one bulk request. The locks of all stays are held while the index is read and the
+    // request is sent.
+    public void syncReservedDates(Collection<Long> stayIds) {
+        if (!availabilityInLocationBackend() || !availabilityIndex.isReady()) {
+            return;
+        }
+        try {
+            withLocks(stayIds, () -> locationRepository.updateReservedDates(reservedRangesOf(stayIds)));
+        } catch (RuntimeException exception) {
+            LOGGER.warn("Failed to sync reserved dates of {} stays to Elasticsearch", stayIds.size(), exception);
+        }
+    }
+
+    private boolean availabilityInLocationBackend() {
+        return "elasticsearch".equals(searchFilter);
+    }
+
+    private Map<Long, List<ReservedRange>> reservedRangesOf(Collection<Long> stayIds) {
+        Map<Long, List<ReservedRange>> reservedRangesByStay = new HashMap<>();
+        for (Long stayId : stayIds) {
+            reservedRangesByStay.put(stayId, availabilityIndex.reservedRanges(stayId));
+        }
+        return reservedRangesByStay;
+    }
+
+    // The locks are taken in ascending stripe order, so two callers with overlapping stays cannot deadlock.
+    private void withLocks(Collection<Long> stayIds, Runnable action) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Long stayId : stayIds) {
+            stripes.add(stripeOf(stayId));
+        }
+        List<ReentrantLock> held = new ArrayList<>();
+        try {
+            for (Integer stripe : stripes) {
+                locks[stripe].lock();
+                held.add(locks[stripe]);
+            }
+            action.run();
+        } finally {
+            for (ReentrantLock lock : held) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static int stripeOf(Long stayId) {
+        return (int) Math.floorMod(stayId, (long) LOCK_STRIPES);
+    }
+
+    /*
+     * The embedded backend is loaded from the latitude and longitude columns of the stay table, which stays added
+     * before those columns existed do not have. Their addresses are geocoded again and the coordinates stored, so
+     * they are not missing from every search. If a stay still has no coordinates afterwards (the geocoding API is
+     * down or not configured), the application does not start, rather than serve searches without those stays.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(3) // before EmbeddedLocationRepository.load()
+    public void backfillCoordinates() {
+        if (!"embedded".equals(locationBackend)) {
+            return; // Elasticsearch keeps the geo point in the "loc" documents
+        }
+        int updated = 0;
+        List<Long> failed = new ArrayList<>();
+        List<Object[]> page;
+        Long lastId = 0L;
+        do {
+            // By id, not by page number: geocoded rows leave the result while it is read.
+            page = stayRepository.findWithoutCoordinates(lastId, PageRequest.of(0, BACKFILL_PAGE_SIZE));
+            for (Object[] row : page) {
+                Long stayId = (Long) row[0];
+                lastId = stayId;
+                try {
+                    GeoPoint geoPoint = geoCodingService.getLatLng(stayId, (String) row[1]).getGeoPoint();
+                    stayRepository.updateCoordinates(stayId, geoPoint.getLat(), geoPoint.getLon());
+                    updated++;
+                } catch (RuntimeException exception) {
+                    LOGGER.warn("Failed to geocode the address of stay {}", stayId, exception);
+                    failed.add(stayId);
+                }
+            }
+        } while (page.size() == BACKFILL_PAGE_SIZE);
+        if (updated > 0) {
+            LOGGER.info("Backfilled the coordinates of {} stays", updated);
+        }
+        if (!failed.isEmpty()) {
+            throw new IllegalStateException("location.backend=embedded needs the coordinates of every stay, "
+                    + failed.size() + " could not be geocoded: " + failed);
+        }
+    }
+
+    /*
+     * Writes the search fields and reserved ranges of every stay, one bulk request per page of stays. The cost
+     * grows with the number of stays, so it only runs when something needs it:
+     * - Elasticsearch, when ensureMapping() migrated the index: the documents indexed before the fields existed.
+     *   location.backfill-on-startup=true forces it, e.g. to pick up the ranges of reservations made while
+     *   search.filter=index or while the application was down.
+     * - the embedded backend with search.filter=elasticsearch: it gets its reserved nights this way at every
+     *   start, its load only reads the stay table.
+     * It also covers the reservation changes that were not synced because the AvailabilityIndex was not ready yet.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(10) // after AvailabilityIndex.rebuild() and EmbeddedLocationRepository.load()
+    public void backfill() {
+        boolean needed = "embedded".equals(locationBackend)
+                ? availabilityInLocationBackend()
+                : indexMigrated || backfillOnStartup;
+        if (!needed) {
+            return;
+        }
+        int updated = 0;
+        List<Object[]> page;
+        int pageNumber = 0;
+        do {
+            page = stayRepository.findSearchFields(PageRequest.of(pageNumber++, BACKFILL_PAGE_SIZE));
+            List<Location> locations = new ArrayList<>(page.size());
+            for (Object[] row : page) {
+                locations.add(new Location((Long) row[0], null)
+                        .setGuestNumber((Integer) row[1])
+                        .setName((String) row[2])
+                        .setDescription((String) row[3]));
+            }
+            List<Long> stayIds = locations.stream().map(Location::getId).collect(Collectors.toList());
+            try {
+                withLocks(stayIds, () -> locationRepository.updateSearchFields(locations,
+                        reservedRangesOf(stayIds)));
+                updated += locations.size();
+            } catch (RuntimeException exception) {
+                LOGGER.warn("Failed to backfill the location documents of {} stays", locations.size(), exception);
+            }
+        } while (page.size() == BACKFILL_PAGE_SIZE);
+        LOGGER.info("Backfilled the search fields of {} stays", updated);
+    }
+}
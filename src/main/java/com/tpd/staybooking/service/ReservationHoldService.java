@@ -0,0 +1,150 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.ReservationCollisionException;
+import com.tpd.staybooking.exception.TooManyHoldsException;
+import com.tpd.staybooking.model.ReservationHold;
+import com.tpd.staybooking.util.TimerWheel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+Temporary holds: the nights stay free for one guest for a few minutes while they check out, without writing
+anything to MySQL. Every hold is in a TimerWheel that a scheduled tick advances, so expiring thousands of holds
+costs one bucket per tick instead of a scan of all holds. A held night counts as taken for the collision check of
+other guests, for new holds and (through the AvailabilityIndex overlay) for search.
+ReservationService places and confirms holds under the BookingArbiter lock of the stay, so a hold and a booking of
+the same nights cannot both pass their checks. Holds are per instance: with several instances behind a load
+balancer the requests of one checkout must reach the same instance, otherwise only MySQL decides.
+*/
+@Service
+public class ReservationHoldService {
+
+    private static final int WHEEL_SIZE = 512; // with 1 s ticks one turn is about 8.5 minutes
+
+    private final AvailabilityIndex availabilityIndex;
+    private final SearchResultCache searchResultCache;
+    private final TimerWheel<ReservationHold> expiries;
+    private final int maxPerGuest;
+
+    private final Map<String, Entry> holds = new HashMap<>();
+    private final Map<Long, List<ReservationHold>> holdsByStay = new HashMap<>();
+    private final Map<String, Integer> countByGuest = new HashMap<>();
+
+    public ReservationHoldService(AvailabilityIndex availabilityIndex, SearchResultCache searchResultCache,
+            MeterRegistry meterRegistry,
+            @Value("${reservation.hold.tick-ms:1000}") long tickMillis,
+            @Value("${reservation.hold.max-per-guest:3}") int maxPerGuest) {
+        this.availabilityIndex = availabilityIndex;
+        this.searchResultCache = searchResultCache;
+        this.expiries = new TimerWheel<>(tickMillis, WHEEL_SIZE, System.currentTimeMillis());
+        this.maxPerGuest = maxPerGuest;
+        Gauge.builder("reservation.holds.active", this, ReservationHoldService::size).register(meterRegistry);
+    }
+
+    // The caller holds the BookingArbiter lock of the stay and has checked the nights against MySQL.
+    public ReservationHold place(Long stayId, String username, LocalDate checkinDate, LocalDate checkoutDate,
+            int minutes) {
+        ReservationHold hold;
+        synchronized (this) {
+            if (isHeld(stayId, checkinDate, checkoutDate, null)) {
+                throw new ReservationCollisionException("Dates are held by another guest");
+            }
+            if (countByGuest.getOrDefault(username, 0) >= maxPerGuest) {
+                throw new TooManyHoldsException("At most " + maxPerGuest + " holds per guest");
+            }
+            Instant expiresAt = Instant.now().plusSeconds(minutes * 60L);
+            hold = new ReservationHold(UUID.randomUUID().toString(), stayId, username, checkinDate, checkoutDate,
+                    expiresAt);
+            holds.put(hold.getId(), new Entry(hold, expiries.schedule(hold, expiresAt.toEpochMilli())));
+            holdsByStay.computeIfAbsent(stayId, id -> new ArrayList<>()).add(hold);
+            countByGuest.merge(username, 1, Integer::sum);
+            availabilityIndex.hold(stayId, checkinDate, checkoutDate);
+        }
+        searchResultCache.invalidateStay(stayId);
+        return hold;
+    }
+
+    // True if a hold overlaps [checkinDate, checkoutDate), holds of exceptGuest (if not null) do not count.
+    public synchronized boolean isHeld(Long stayId, LocalDate checkinDate, LocalDate checkoutDate,
+            String exceptGuest) {
+        for (ReservationHold hold : holdsByStay.getOrDefault(stayId, List.of())) {
+            if (!hold.getGuest().equals(exceptGuest) && hold.getCheckinDate().isBefore(checkoutDate)
+                    && checkinDate.isBefore(hold.getCheckoutDate())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The guest's hold, or null if it expired, was released or belongs to someone else.
+    public synchronized ReservationHold find(String holdId, String username) {
+        Entry entry = holds.get(holdId);
+        return entry == null || !entry.hold.getGuest().equals(username) ? null : entry.hold;
+    }
+
+    // Returns false if the hold is already gone.
+    public boolean release(ReservationHold hold) {
+        synchronized (this) {
+            Entry entry = holds.get(hold.getId());
+            if (entry == null) {
+                return false;
+            }
+            expiries.cancel(entry.timeout);
+            remove(hold);
+        }
+        searchResultCache.invalidateRelease(hold.getStayId(), hold.getCheckinDate(), hold.getCheckoutDate());
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${reservation.hold.tick-ms:1000}")
+    public void expire() {
+        List<ReservationHold> expired = new ArrayList<>();
+        synchronized (this) {
+            for (ReservationHold hold : expiries.advance(System.currentTimeMillis())) {
+                if (holds.containsKey(hold.getId())) {
+                    remove(hold);
+                    expired.add(hold);
+                }
+            }
+        }
+        for (ReservationHold hold : expired) {
+            searchResultCache.invalidateRelease(hold.getStayId(), hold.getCheckinDate(), hold.getCheckoutDate());
+        }
+    }
+
+    public synchronized int size() {
+        return holds.size();
+    }
+
+    private void remove(ReservationHold hold) {
+        holds.remove(hold.getId());
+        List<ReservationHold> stayHolds = holdsByStay.get(hold.getStayId());
+        stayHolds.remove(hold);
+        if (stayHolds.isEmpty()) {
+            holdsByStay.remove(hold.getStayId());
+        }
+        countByGuest.computeIfPresent(hold.getGuest(), (guest, count) -> count == 1 ? null : count - 1);
+        availabilityIndex.releaseHold(hold.getStayId(), hold.getCheckinDate(), hold.getCheckoutDate());
+    }
+
+    private static class Entry {
+        private final ReservationHold hold;
+        private final TimerWheel.Timeout<ReservationHold> timeout;
+
+        private Entry(ReservationHold hold, TimerWheel.Timeout<ReservationHold> timeout) {
+            this.hold = hold;
+            this.timeout = timeout;
+        }
+    }
+}
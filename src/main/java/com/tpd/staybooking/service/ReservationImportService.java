@@ -0,0 +1,362 @@
+package com.tpd.staybooking.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tpd.staybooking.exception.InvalidReservationImportException;
+import com.tpd.staybooking.exception.ReservationCollisionException;
+import com.tpd.staybooking.model.Reservation;
+import com.tpd.staybooking.model.ReservationImportResult;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.User;
+import com.tpd.staybooking.repository.ReservationRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayRepository;
+import com.tpd.staybooking.util.DateBitmap;
+import com.tpd.staybooking.util.TransactionUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/*
+Bulk import of reservations, e.g. the bookings a channel manager exports from other platforms. Posting them one by
+one costs a request, a collision query and a handful of inserts per booking; here the whole file is checked at once:
+1. Every row is parsed and validated on its own (dates, stay id).
+2. The stays are looked up and their reserved nights are loaded into one DateBitmap per stay, from the
+   AvailabilityIndex when it is loaded, otherwise with one query per chunk of stays.
+3. The rows are checked in file order against those bitmaps, and every accepted row is added to them, so two rows
+   of the same file that overlap are caught without touching MySQL.
+4. The accepted rows are written in chunks, one transaction per chunk, with JDBC batch inserts. Each chunk holds the
+   BookingArbiter locks of its stays and checks them once more against MySQL, for bookings committed since step 2.
+The result of every row is handed to the consumer as soon as it is known, the controller streams them back.
+*/
+@Service
+public class ReservationImportService {
+
+    private static final int LOOKUP_CHUNK_SIZE = 1000; // ids per IN (...) list
+
+    private final ReservationRepository reservationRepository;
+    private final ReservedDateStore reservedDateStore;
+    private final StayRepository stayRepository;
+    private final AvailabilityIndex availabilityIndex;
+    private final LocationSyncService locationSyncService;
+    private final SearchResultCache searchResultCache;
+    private final BookingArbiter bookingArbiter;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final ReservationHoldService reservationHoldService;
+    private final int maxRows;
+    private final int chunkSize;
+
+    public ReservationImportService(ReservationRepository reservationRepository,
+            ReservedDateStore reservedDateStore, StayRepository stayRepository, AvailabilityIndex availabilityIndex,
+            LocationSyncService locationSyncService, SearchResultCache searchResultCache,
+            BookingArbiter bookingArbiter, TransactionTemplate transactionTemplate, ObjectMapper objectMapper,
+            ReservationHoldService reservationHoldService,
+            @Value("${reservation.import.max-rows:200000}") int maxRows,
+            @Value("${reservation.import.chunk-size:1000}") int chunkSize) {
+        this.reservationRepository = reservationRepository;
+        this.reservedDateStore = reservedDateStore;
+        this.stayRepository = stayRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.locationSyncService = locationSyncService;
+        this.searchResultCache = searchResultCache;
+        this.bookingArbiter = bookingArbiter;
+        this.transactionTemplate = transactionTemplate;
+        this.objectMapper = objectMapper;
+        this.reservationHoldService = reservationHoldService;
+        this.maxRows = maxRows;
+        this.chunkSize = chunkSize;
+    }
+
+    /*
+     * Reads the file line by line, the raw upload is never held in memory. NDJSON lines look like
+     * {"stay_id": 1, "checkin_date": "2024-05-01", "checkout_date": "2024-05-03"}, CSV lines like
+     * 1,2024-05-01,2024-05-03 with an optional stay_id,checkin_date,checkout_date header (in any column order).
+     */
+    public List<Row> parse(InputStream input, boolean csv) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        List<Row> rows = new ArrayList<>();
+        int[] columns = { 0, 1, 2 }; // stay_id, checkin_date, checkout_date
+        int lineNumber = 0;
+        boolean firstLine = true; // the header, if there is one, is the first non-blank line
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            if (csv && firstLine && isHeader(line)) {
+                firstLine = false;
+                columns = headerColumns(line);
+                continue;
+            }
+            firstLine = false;
+            if (rows.size() == maxRows) {
+                throw new InvalidReservationImportException("At most " + maxRows + " reservations per import");
+            }
+            rows.add(csv ? parseCsv(lineNumber, line, columns) : parseJson(lineNumber, line));
+        }
+        return rows;
+    }
+
+    public void importRows(List<Row> rows, String username, Consumer<ReservationImportResult> results) {
+        LocalDate today = LocalDate.now();
+        List<Row> validRows = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.error == null
+                    && (!row.checkinDate.isBefore(row.checkoutDate) || row.checkinDate.isBefore(today))) {
+                row.error = "Invalid date for reservation";
+            }
+            if (row.error != null) {
+                results.accept(new ReservationImportResult(row.line, ReservationImportResult.INVALID, null,
+                        row.error));
+            } else {
+                validRows.add(row);
+            }
+        }
+        if (validRows.isEmpty()) {
+            return;
+        }
+
+        Set<Long> stayIds = new LinkedHashSet<>();
+        LocalDate start = validRows.get(0).checkinDate;
+        LocalDate end = validRows.get(0).checkoutDate;
+        for (Row row : validRows) {
+            stayIds.add(row.stayId);
+            start = row.checkinDate.isBefore(start) ? row.checkinDate : start;
+            end = row.checkoutDate.isAfter(end) ? row.checkoutDate : end;
+        }
+        Set<Long> existingIds = findExistingIds(new ArrayList<>(stayIds));
+        Map<Long, DateBitmap> reserved = loadReserved(existingIds, start, end);
+
+        List<Row> accepted = new ArrayList<>();
+        for (Row row : validRows) {
+            if (!existingIds.contains(row.stayId)) {
+                results.accept(new ReservationImportResult(row.line, ReservationImportResult.STAY_NOT_FOUND, null,
+                        "Stay doesn't exist"));
+                continue;
+            }
+            DateBitmap bitmap = reserved.get(row.stayId);
+            if (bitmap.intersects(row.checkinDate, row.checkoutDate)) {
+                results.accept(new ReservationImportResult(row.line, ReservationImportResult.COLLISION, null,
+                        "Duplicate reservation"));
+                continue;
+            }
+            bitmap.set(row.checkinDate, row.checkoutDate); // later rows of the file see this one
+            accepted.add(row);
+        }
+
+        User guest = new User.Builder().setUsername(username).build();
+        for (int from = 0; from < accepted.size(); from += chunkSize) {
+            List<Row> chunk = accepted.subList(from, Math.min(from + chunkSize, accepted.size()));
+            List<ReservationImportResult> chunkResults;
+            try {
+                chunkResults = writeChunk(chunk, guest);
+            } catch (ReservationCollisionException exception) { // the locks or the retries ran out
+                chunkResults = new ArrayList<>();
+                for (Row row : chunk) {
+                    chunkResults.add(new ReservationImportResult(row.line, ReservationImportResult.FAILED, null,
+                            exception.getMessage()));
+                }
+            }
+            chunkResults.forEach(results);
+        }
+    }
+
+    private List<ReservationImportResult> writeChunk(List<Row> chunk, User guest) {
+        Set<Long> stayIds = new HashSet<>();
+        LocalDate start = chunk.get(0).checkinDate;
+        LocalDate end = chunk.get(0).checkoutDate;
+        for (Row row : chunk) {
+            stayIds.add(row.stayId);
+            start = row.checkinDate.isBefore(start) ? row.checkinDate : start;
+            end = row.checkoutDate.isAfter(end) ? row.checkoutDate : end;
+        }
+        LocalDate chunkStart = start;
+        LocalDate chunkEnd = end;
+        return bookingArbiter.bookAll(stayIds, () -> transactionTemplate.execute(status -> {
+            // The arbiter only covers this instance. Like a single booking, the chunk also locks its stay rows, so
+            // bookings and imports on other instances wait until it commits.
+            stayRepository.findAllByIdForUpdate(stayIds);
+            // Bookings committed after the file was checked, and holds of other guests. Rows of the same file never
+            // overlap each other here.
+            Map<Long, DateBitmap> committed = new HashMap<>();
+            for (ReservedRange range : reservedDateStore.findRanges(new ArrayList<>(stayIds), chunkStart, chunkEnd)) {
+                committed.computeIfAbsent(range.getStayId(), id -> new DateBitmap(chunkStart))
+                        .set(range.getStartDate(), range.getEndDate());
+            }
+            List<ReservationImportResult> chunkResults = new ArrayList<>();
+            List<Row> writtenRows = new ArrayList<>();
+            List<ReservedRange> ranges = new ArrayList<>();
+            List<Reservation> reservations = new ArrayList<>();
+            for (Row row : chunk) {
+                DateBitmap bitmap = committed.get(row.stayId);
+                if (bitmap != null && bitmap.intersects(row.checkinDate, row.checkoutDate)
+                        || reservationHoldService.isHeld(row.stayId, row.checkinDate, row.checkoutDate,
+                                guest.getUsername())) {
+                    chunkResults.add(new ReservationImportResult(row.line, ReservationImportResult.COLLISION,
+                            null, "Duplicate reservation"));
+                    continue;
+                }
+                writtenRows.add(row);
+                ranges.add(new ReservedRange(row.stayId, row.checkinDate, row.checkoutDate));
+                reservations.add(new Reservation.Builder()
+                        .setCheckinDate(row.checkinDate)
+                        .setCheckoutDate(row.checkoutDate)
+                        .setStay(new Stay.Builder().setId(row.stayId).build()) // only the foreign key is written
+                        .setGuest(guest)
+                        .build());
+            }
+            reservedDateStore.reserveAll(ranges);
+            reservationRepository.saveAll(reservations); // batched by hibernate.jdbc.batch_size
+            for (int i = 0; i < writtenRows.size(); i++) {
+                chunkResults.add(new ReservationImportResult(writtenRows.get(i).line,
+                        ReservationImportResult.CREATED, reservations.get(i).getId(), null));
+            }
+            TransactionUtil.afterCommit(() -> {
+                Set<Long> changedStayIds = new HashSet<>();
+                for (ReservedRange range : ranges) {
+                    availabilityIndex.reserve(range.getStayId(), range.getStartDate(), range.getEndDate());
+                    changedStayIds.add(range.getStayId());
+                }
+                locationSyncService.syncReservedDates(changedStayIds); // one bulk request
+                changedStayIds.forEach(searchResultCache::invalidateStay);
+            });
+            return chunkResults;
+        }));
+    }
+
+    private Set<Long> findExistingIds(List<Long> stayIds) {
+        Set<Long> existingIds = new HashSet<>();
+        for (int from = 0; from < stayIds.size(); from += LOOKUP_CHUNK_SIZE) {
+            existingIds.addAll(stayRepository.findExistingIds(
+                    stayIds.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, stayIds.size()))));
+        }
+        return existingIds;
+    }
+
+    // A private bitmap per stay, so the rows of this file do not show up in the shared index before they commit.
+    private Map<Long, DateBitmap> loadReserved(Set<Long> stayIds, LocalDate start, LocalDate end) {
+        Map<Long, DateBitmap> reserved = new HashMap<>();
+        for (Long stayId : stayIds) {
+            reserved.put(stayId, new DateBitmap(start));
+        }
+        if (availabilityIndex.isReady()) {
+            for (Long stayId : stayIds) {
+                for (ReservedRange range : availabilityIndex.reservedRanges(stayId)) {
+                    reserved.get(stayId).set(range.getStartDate(), range.getEndDate());
+                }
+            }
+            return reserved;
+        }
+        List<Long> ids = new ArrayList<>(stayIds);
+        for (int from = 0; from < ids.size(); from += LOOKUP_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, ids.size()));
+            for (ReservedRange range : reservedDateStore.findRanges(chunk, start, end)) {
+                reserved.get(range.getStayId()).set(range.getStartDate(), range.getEndDate());
+            }
+        }
+        return reserved;
+    }
+
+    private Row parseJson(int lineNumber, String line) {
+        try {
+            JsonNode node = objectMapper.readTree(line);
+            return Row.of(lineNumber, text(node, "stay_id"), text(node, "checkin_date"), text(node, "checkout_date"));
+        } catch (IOException exception) {
+            return Row.invalid(lineNumber, "Malformed JSON");
+        }
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private static Row parseCsv(int lineNumber, String line, int[] columns) {
+        String[] cells = line.split(",", -1);
+        String[] values = new String[3];
+        for (int i = 0; i < 3; i++) {
+            values[i] = columns[i] < cells.length ? cells[columns[i]].trim() : null;
+        }
+        return Row.of(lineNumber, values[0], values[1], values[2]);
+    }
+
+    private static boolean isHeader(String line) {
+        String first = line.split(",", -1)[0].trim();
+        return !first.isEmpty() && !Character.isDigit(first.charAt(0));
+    }
+
+    private static int[] headerColumns(String line) {
+        String[] names = line.split(",", -1);
+        int[] columns = { -1, -1, -1 };
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().toLowerCase();
+            if (name.equals("stay_id")) {
+                columns[0] = i;
+            } else if (name.equals("checkin_date")) {
+                columns[1] = i;
+            } else if (name.equals("checkout_date")) {
+                columns[2] = i;
+            }
+        }
+        for (int column : columns) {
+            if (column < 0) {
+                throw new InvalidReservationImportException(
+                        "The CSV header needs stay_id, checkin_date and checkout_date columns");
+            }
+        }
+        return columns;
+    }
+
+    // One line of the file. error is set when the line cannot be imported on its own.
+    public static class Row {
+        private final int line;
+        private Long stayId;
+        private LocalDate checkinDate;
+        private LocalDate checkoutDate;
+        private String error;
+
+        private Row(int line) {
+            this.line = line;
+        }
+
+        static Row invalid(int line, String error) {
+            Row row = new Row(line);
+            row.error = error;
+            return row;
+        }
+
+        static Row of(int line, String stayId, String checkinDate, String checkoutDate) {
+            if (stayId == null || checkinDate == null || checkoutDate == null) {
+                return invalid(line, "stay_id, checkin_date and checkout_date are required");
+            }
+            Row row = new Row(line);
+            try {
+                row.stayId = Long.valueOf(stayId);
+                row.checkinDate = LocalDate.parse(checkinDate);
+                row.checkoutDate = LocalDate.parse(checkoutDate);
+            } catch (NumberFormatException | DateTimeParseException exception) {
+                return invalid(line, "Invalid stay_id or date");
+            }
+            return row;
+        }
+    }
+}
@@ -1,40 +1,76 @@
 package com.tpd.staybooking.service;
 
+import com.tpd.staybooking.exception.InvalidReservationDateException;
+import com.tpd.staybooking.exception.InvalidSearchPageException;
 import com.tpd.staybooking.exception.ReservationCollisionException;
 import com.tpd.staybooking.exception.ReservationNotFoundException;
+import com.tpd.staybooking.exception.StayNotExistException;
 import com.tpd.staybooking.model.*;
 import com.tpd.staybooking.repository.ReservationRepository;
-import com.tpd.staybooking.repository.StayReservationDateRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayRepository;
+import com.tpd.staybooking.util.SearchCursor;
+import com.tpd.staybooking.util.TransactionUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.transaction.Transactional;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 
 @Service
 public class ReservationService {
     private final ReservationRepository reservationRepository;
-    private final StayReservationDateRepository stayReservationDateRepository;
+    private final ReservedDateStore reservedDateStore;
+    private final AvailabilityIndex availabilityIndex;
+    private final LocationSyncService locationSyncService;
+    private final SearchResultCache searchResultCache;
+    private final StayRepository stayRepository;
+    private final BookingArbiter bookingArbiter;
+    private final TransactionTemplate transactionTemplate;
+    private final ReservationHoldService reservationHoldService;
 
     @Autowired
     // @Autowired automatically injects the dependencies (reservationRepository and
-    // stayReservationDateRepository) when the service is instantiated. You asked me
+    // reservedDateStore) when the service is instantiated. You asked me
     // to automatically connect with it. However, the fields in the current code are
     // all final, so even if not explicitly written, the connection will be
     // automatically provided.
     public ReservationService(ReservationRepository reservationRepository,
-            StayReservationDateRepository stayReservationDateRepository) {
+            ReservedDateStore reservedDateStore, AvailabilityIndex availabilityIndex,
+            LocationSyncService locationSyncService, SearchResultCache searchResultCache,
+            StayRepository stayRepository, BookingArbiter bookingArbiter, TransactionTemplate transactionTemplate,
+            ReservationHoldService reservationHoldService) {
         this.reservationRepository = reservationRepository;
-        this.stayReservationDateRepository = stayReservationDateRepository;
+        this.reservedDateStore = reservedDateStore;
+        this.availabilityIndex = availabilityIndex;
+        this.locationSyncService = locationSyncService;
+        this.searchResultCache = searchResultCache;
+        this.stayRepository = stayRepository;
+        this.bookingArbiter = bookingArbiter;
+        this.transactionTemplate = transactionTemplate;
+        this.reservationHoldService = reservationHoldService;
     }
 
-    // This method retrieves a list of reservations associated with a guest's
-    // username using the reservationRepository.
-    public List<Reservation> listByGuest(String username) {
-        return reservationRepository.findByGuest_Username(username);
+    // This method retrieves a page of reservations associated with a guest's
+    // username using the reservationRepository, earliest check-in first.
+    public CursorPage<Reservation> listByGuest(String username, int pageSize, String cursor) {
+        PageRequest limit = PageRequest.of(0, pageSize);
+        if (cursor == null || cursor.isEmpty()) {
+            return toPage(reservationRepository.findPageByGuest(username, limit), pageSize);
+        }
+        List<Object> after = decodeCursor(cursor);
+        return toPage(reservationRepository.findPageByGuestAfter(username,
+                LocalDate.ofEpochDay((Long) after.get(0)), (Long) after.get(1), limit), pageSize);
         // return reservationRepository.findByGuest(new
         // User.Builder().setUsername(username).build()); =>
         // This is not good because the newly created user is not complete. A User has
@@ -44,67 +80,308 @@ public class ReservationService {
         // it can easily cause issues. It's not a good practice.
     }
 
-    // This method retrieves a list of reservations associated with a particular
-    // stay ID using the reservationRepository.
-    public List<Reservation> listByStay(Long stayId) {
-        return reservationRepository.findByStay_Id(stayId);
-        // return reservationRepository.findByStay(new
-        // Stay.Builder().setId(stayId).build());
+    // This method retrieves a page of reservations associated with a particular
+    // stay ID using the reservationRepository, earliest check-in first.
+    public CursorPage<Reservation> listByStay(Long stayId, int pageSize, String cursor) {
+        PageRequest limit = PageRequest.of(0, pageSize);
+        if (cursor == null || cursor.isEmpty()) {
+            return toPage(reservationRepository.findPageByStay(stayId, limit), pageSize);
+        }
+        List<Object> after = decodeCursor(cursor);
+        return toPage(reservationRepository.findPageByStayAfter(stayId,
+                LocalDate.ofEpochDay((Long) after.get(0)), (Long) after.get(1), limit), pageSize);
+    }
+
+    /*
+     * The reserved nights of a stay from today to the end of the month `months` from now, see StayCalendar.
+     * Read from the AvailabilityIndex once it is loaded, so a calendar costs no query beyond the existence check.
+     */
+    public StayCalendar calendar(Long stayId, int months, boolean bitmaps) {
+        if (!stayRepository.existsById(stayId)) {
+            throw new StayNotExistException("Stay doesn't exist");
+        }
+        LocalDate from = LocalDate.now();
+        LocalDate to = from.withDayOfMonth(1).plusMonths(months);
+        List<ReservedRange> reservedRanges = availabilityIndex.isReady()
+                ? availabilityIndex.reservedRanges(stayId)
+                : reservedDateStore.findRanges(List.of(stayId), from, to);
+        reservedRanges = new ArrayList<>(reservedRanges);
+        reservedRanges.sort(Comparator.comparing(ReservedRange::getStartDate));
+
+        // Clip to [from, to) and join touching ranges, the nightly store hands out one range per night.
+        List<DateRange> ranges = new ArrayList<>();
+        LocalDate runStart = null;
+        LocalDate runEnd = null;
+        for (ReservedRange range : reservedRanges) {
+            LocalDate start = range.getStartDate().isBefore(from) ? from : range.getStartDate();
+            LocalDate end = range.getEndDate().isAfter(to) ? to : range.getEndDate();
+            if (!start.isBefore(end)) {
+                continue;
+            }
+            if (runEnd != null && !start.isAfter(runEnd)) {
+                runEnd = end.isAfter(runEnd) ? end : runEnd;
+                continue;
+            }
+            if (runEnd != null) {
+                ranges.add(new DateRange(runStart, runEnd));
+            }
+            runStart = start;
+            runEnd = end;
+        }
+        if (runEnd != null) {
+            ranges.add(new DateRange(runStart, runEnd));
+        }
+        if (!bitmaps) {
+            return new StayCalendar(stayId, from, to, ranges, null);
+        }
+
+        LocalDate firstMonth = from.withDayOfMonth(1);
+        int[] monthBits = new int[months]; // at most 31 days, one int per month
+        for (DateRange range : ranges) {
+            for (LocalDate date = range.getStart(); date.isBefore(range.getEnd()); date = date.plusDays(1)) {
+                int month = (int) ChronoUnit.MONTHS.between(firstMonth, date.withDayOfMonth(1));
+                monthBits[month] |= 1 << (date.getDayOfMonth() - 1);
+            }
+        }
+        List<StayCalendar.Month> monthList = new ArrayList<>();
+        for (int i = 0; i < months; i++) {
+            byte[] bytes = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(monthBits[i])
+                    .array();
+            monthList.add(new StayCalendar.Month(YearMonth.from(firstMonth.plusMonths(i)).toString(),
+                    Base64.getEncoder().encodeToString(bytes)));
+        }
+        return new StayCalendar(stayId, from, to, null, monthList);
+    }
+
+    // The cursor is the (checkin date, id) of the last reservation of the previous page.
+    private static CursorPage<Reservation> toPage(List<Reservation> reservations, int pageSize) {
+        if (reservations.size() < pageSize) {
+            return new CursorPage<>(reservations, null);
+        }
+        Reservation last = reservations.get(reservations.size() - 1);
+        return new CursorPage<>(reservations,
+                SearchCursor.encode(List.of(last.getCheckinDate().toEpochDay(), last.getId())));
+    }
+
+    private static List<Object> decodeCursor(String cursor) {
+        List<Object> after = SearchCursor.decode(cursor);
+        if (after.size() != 2 || !(after.get(0) instanceof Long) || !(after.get(1) instanceof Long)) {
+            throw new InvalidSearchPageException("Invalid cursor");
+        }
+        return after;
     }
 
     // This method is used to add a new reservation. It checks for any collision
     // with existing reservations using the
-    // stayReservationDateRepository, and if no collisions are found, it saves the
+    // reservedDateStore, and if no collisions are found, it saves the
     // reservation and updates the stay reservation dates accordingly.
-    @Transactional
+    // The BookingArbiter runs the check and the writes for one stay at a time, and the transaction is opened inside
+    // its lock (TransactionTemplate instead of @Transactional) so the next booking only checks after this commit.
     public void add(Reservation reservation) throws ReservationCollisionException {
-        Set<Long> stayIds = stayReservationDateRepository.findByIdInAndDateBetween( // Pass in 3 args
-                List.of(reservation.getStay().getId()), // id Construct it into a list.
-                                                        // Because in StayReservationDateRepository, stayIds is a list.
+        Long stayId = reservation.getStay().getId();
+        bookingArbiter.book(stayId, () -> transactionTemplate.execute(status -> {
+            addInTransaction(reservation);
+            return null;
+        }));
+    }
+
+    private void addInTransaction(Reservation reservation) {
+        Long stayId = reservation.getStay().getId();
+        if (stayRepository.findByIdForUpdate(stayId) == null) { // row lock, for bookings on other instances
+            throw new StayNotExistException("Stay doesn't exist");
+        }
+        Set<Long> stayIds = reservedDateStore.findReservedStayIds( // Pass in 3 args
+                List.of(stayId), // id Construct it into a list.
+                                 // Because in ReservedDateStore, stayIds is a list.
                 reservation.getCheckinDate(), // The check-in and check-out of the reservation also need to be passed
                                               // in.
-                reservation.getCheckoutDate().minusDays(1) // The minusDays means that check-in and check-out can be on
-                                                           // the same day.
+                reservation.getCheckoutDate() // The checkout date is exclusive, so check-in and check-out can be on
+                                              // the same day.
         );
         if (!stayIds.isEmpty()) {
             throw new ReservationCollisionException("Duplicate reservation");
         }
+        if (reservationHoldService.isHeld(stayId, reservation.getCheckinDate(), reservation.getCheckoutDate(),
+                reservation.getGuest().getUsername())) { // the guest's own holds do not block them
+            throw new ReservationCollisionException("Dates are held by another guest");
+        }
 
-        List<StayReservedDate> reservedDates = new ArrayList<>();
         LocalDate start = reservation.getCheckinDate();
         LocalDate end = reservation.getCheckoutDate();
-        for (LocalDate date = start; date.isBefore(end); date = date.plusDays(1)) {
-            StayReservedDateKey id = new StayReservedDateKey(reservation.getStay().getId(), date); // stay reserved date
-                                                                                                   // is a composite
-                                                                                                   // key, therefore add
-                                                                                                   // two factors needed
-                                                                                                   // to build a key
-                                                                                                   // first
-            StayReservedDate reservedDate = new StayReservedDate(id, reservation.getStay()); // and add the key to the
-                                                                                             // list
-            reservedDates.add(reservedDate);
-        }
-        stayReservationDateRepository.saveAll(reservedDates);
+        reservedDateStore.reserve(reservation.getStay(), start, end); // one row per night or one interval row,
+                                                                      // depending on reservation.storage
         reservationRepository.save(reservation);
+        TransactionUtil.afterCommit(() -> {
+            availabilityIndex.reserve(stayId, start, end);
+            locationSyncService.syncReservedDates(stayId);
+            searchResultCache.invalidateStay(stayId);
+        });
+    }
+
+    /*
+     * Moves a reservation to new dates in one transaction, touching only the nights that change: nights that are
+     * only in the new range are checked and reserved, nights that are only in the old one are released, the nights
+     * in both keep their rows. Extending a two week stay by one night writes one night row and the reservation.
+     */
+    public Reservation changeDates(Long reservationId, String username, LocalDate checkinDate,
+            LocalDate checkoutDate) {
+        Reservation current = reservationRepository.findByIdAndGuest_Username(reservationId, username);
+        if (current == null) {
+            throw new ReservationNotFoundException("Reservation is not available");
+        }
+        Long stayId = current.getStay().getId();
+        return bookingArbiter.book(stayId, () -> transactionTemplate.execute(status -> {
+            Stay stay = stayRepository.findByIdForUpdate(stayId);
+            Reservation reservation = reservationRepository.findByIdAndGuest_Username(reservationId, username);
+            if (stay == null || reservation == null) { // deleted while waiting for the lock
+                throw new ReservationNotFoundException("Reservation is not available");
+            }
+            LocalDate oldCheckin = reservation.getCheckinDate();
+            LocalDate oldCheckout = reservation.getCheckoutDate();
+            // A stay that already started can still be extended, but nights in the past cannot be added.
+            if (!checkinDate.equals(oldCheckin) && checkinDate.isBefore(LocalDate.now())
+                    || !checkoutDate.isAfter(LocalDate.now())) {
+                throw new InvalidReservationDateException("Invalid date for reservation");
+            }
+            List<ReservedRange> added = subtract(stayId, checkinDate, checkoutDate, oldCheckin, oldCheckout);
+            List<ReservedRange> removed = subtract(stayId, oldCheckin, oldCheckout, checkinDate, checkoutDate);
+            for (ReservedRange range : added) {
+                if (!reservedDateStore.findReservedStayIds(List.of(stayId), range.getStartDate(),
+                        range.getEndDate()).isEmpty()
+                        || reservationHoldService.isHeld(stayId, range.getStartDate(), range.getEndDate(),
+                                username)) {
+                    throw new ReservationCollisionException("Duplicate reservation");
+                }
+            }
+            for (ReservedRange range : removed) {
+                reservedDateStore.release(stayId, range.getStartDate(), range.getEndDate());
+            }
+            for (ReservedRange range : added) {
+                reservedDateStore.reserve(stay, range.getStartDate(), range.getEndDate());
+            }
+            reservation.setDates(checkinDate, checkoutDate); // one UPDATE at commit, the entity is managed
+            TransactionUtil.afterCommit(() -> {
+                removed.forEach(range -> availabilityIndex.release(stayId, range.getStartDate(), range.getEndDate()));
+                added.forEach(range -> availabilityIndex.reserve(stayId, range.getStartDate(), range.getEndDate()));
+                locationSyncService.syncReservedDates(stayId);
+                searchResultCache.invalidateStay(stayId);
+                removed.forEach(range -> searchResultCache.invalidateRelease(stayId, range.getStartDate(),
+                        range.getEndDate()));
+            });
+            return reservation;
+        }));
+    }
+
+    // The parts of [start, end) outside [otherStart, otherEnd): none, one or two ranges.
+    private static List<ReservedRange> subtract(Long stayId, LocalDate start, LocalDate end, LocalDate otherStart,
+            LocalDate otherEnd) {
+        List<ReservedRange> ranges = new ArrayList<>();
+        if (!otherStart.isBefore(end) || !start.isBefore(otherEnd)) { // no overlap
+            ranges.add(new ReservedRange(stayId, start, end));
+            return ranges;
+        }
+        if (start.isBefore(otherStart)) {
+            ranges.add(new ReservedRange(stayId, start, otherStart));
+        }
+        if (otherEnd.isBefore(end)) {
+            ranges.add(new ReservedRange(stayId, otherEnd, end));
+        }
+        return ranges;
+    }
+
+    // Keeps the nights free for the guest for `minutes` minutes, see ReservationHoldService. Nothing is written,
+    // the lock only makes sure no booking of the same nights is between its check and its commit.
+    public ReservationHold placeHold(Reservation reservation, int minutes) {
+        Long stayId = reservation.getStay().getId();
+        LocalDate start = reservation.getCheckinDate();
+        LocalDate end = reservation.getCheckoutDate();
+        return bookingArbiter.book(stayId, () -> {
+            if (!stayRepository.existsById(stayId)) {
+                throw new StayNotExistException("Stay doesn't exist");
+            }
+            if (!reservedDateStore.findReservedStayIds(List.of(stayId), start, end).isEmpty()) {
+                throw new ReservationCollisionException("Duplicate reservation");
+            }
+            return reservationHoldService.place(stayId, reservation.getGuest().getUsername(), start, end, minutes);
+        });
+    }
+
+    /*
+     * Turns a hold into a reservation. There is no collision query: while the hold exists no other booking or hold
+     * of its nights can pass the check, and the hold is checked again under the stay lock in case it expired while
+     * waiting. The hold is dropped after the commit, once the reservation is in the index.
+     */
+    public void confirmHold(String holdId, String username) {
+        ReservationHold hold = reservationHoldService.find(holdId, username);
+        if (hold == null) {
+            throw new ReservationNotFoundException("Hold is not available");
+        }
+        Long stayId = hold.getStayId();
+        LocalDate start = hold.getCheckinDate();
+        LocalDate end = hold.getCheckoutDate();
+        bookingArbiter.book(stayId, () -> transactionTemplate.execute(status -> {
+            if (reservationHoldService.find(holdId, username) == null) {
+                throw new ReservationNotFoundException("Hold has expired");
+            }
+            Stay stay = stayRepository.findByIdForUpdate(stayId);
+            if (stay == null) {
+                throw new StayNotExistException("Stay doesn't exist");
+            }
+            reservedDateStore.reserve(stay, start, end);
+            reservationRepository.save(new Reservation.Builder()
+                    .setCheckinDate(start)
+                    .setCheckoutDate(end)
+                    .setStay(stay)
+                    .setGuest(new User.Builder().setUsername(username).build())
+                    .build());
+            TransactionUtil.afterCommit(() -> {
+                availabilityIndex.reserve(stayId, start, end);
+                reservationHoldService.release(hold);
+                locationSyncService.syncReservedDates(stayId);
+                searchResultCache.invalidateStay(stayId);
+            });
+            return null;
+        }));
+    }
+
+    public void releaseHold(String holdId, String username) {
+        ReservationHold hold = reservationHoldService.find(holdId, username);
+        if (hold == null || !reservationHoldService.release(hold)) {
+            throw new ReservationNotFoundException("Hold is not available");
+        }
     }
 
     // This method is used to delete a reservation. It retrieves the reservation
     // using the reservationRepository and username, then deletes the reservation
     // and updates the stay reservation dates
-    @Transactional
+    // The first read only finds the stay to lock. The reservation is read again under the lock, like in
+    // changeDates(), so the nights released are the ones it has at the commit, not the ones it had before a
+    // concurrent change of dates, and a second delete of the same reservation gets a 404 instead of failing.
     public void delete(Long reservationId, String username) {
-        Reservation reservation = reservationRepository.findByIdAndGuest_Username(reservationId, username);
+        Reservation current = reservationRepository.findByIdAndGuest_Username(reservationId, username);
         // Reservation reservation =
         // reservationRepository.findByIdAndGuest(reservationId, new
         // User.Builder().setUsername(username).build());
-        if (reservation == null) {
+        if (current == null) {
             throw new ReservationNotFoundException("Reservation is not available");
         }
-        LocalDate start = reservation.getCheckinDate();
-        LocalDate end = reservation.getCheckoutDate();
-        for (LocalDate date = start; date.isBefore(end); date = date.plusDays(1)) {
-            stayReservationDateRepository.deleteById(new StayReservedDateKey(reservation.getStay().getId(), date));
-        }
-        reservationRepository.deleteById(reservationId);
+        Long stayId = current.getStay().getId();
+        bookingArbiter.book(stayId, () -> transactionTemplate.execute(status -> {
+            stayRepository.findByIdForUpdate(stayId); // row lock, for changes on other instances
+            Reservation reservation = reservationRepository.findByIdAndGuest_Username(reservationId, username);
+            if (reservation == null) { // deleted while waiting for the lock
+                throw new ReservationNotFoundException("Reservation is not available");
+            }
+            LocalDate start = reservation.getCheckinDate();
+            LocalDate end = reservation.getCheckoutDate();
+            reservedDateStore.release(stayId, start, end);
+            reservationRepository.delete(reservation);
+            TransactionUtil.afterCommit(() -> {
+                availabilityIndex.release(stayId, start, end);
+                locationSyncService.syncReservedDates(stayId);
+                searchResultCache.invalidateRelease(stayId, start, end);
+            });
+            return null;
+        }));
     }
 }
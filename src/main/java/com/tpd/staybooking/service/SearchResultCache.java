@@ -0,0 +1,304 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.SearchCriteria;
+import com.tpd.staybooking.model.StaySummary;
+import com.tpd.staybooking.util.GeoUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/*
+Keeps recent /search pages in memory so that refreshes and popular searches (same city center, same weekend) do
+not go to Elasticsearch and MySQL again. Only identical searches share an entry: the coordinates are not rounded,
+since the search center decides the radius and the distance of every result. Entries are dropped when they are
+older than the TTL, when the cache is full (least recently used first), and as soon as a change to one of their
+stays is committed:
+- a reservation is added or a stay is deleted: every entry whose geo page contained that stay.
+- a reservation is deleted: the same, plus every entry whose dates overlap when Elasticsearch filtered
+  availability, because then the freed stay was never part of the page.
+- a stay is added: every entry whose search circle contains the new stay.
+A search that was running while an invalidation happened is not cached if that invalidation would have dropped its
+entry (it may have read the old data). The last MAX_RECENT_INVALIDATIONS invalidations are kept for that check, so
+a booking elsewhere does not stop unrelated pages from being cached; a search older than all of them is not cached.
+*/
+@Component
+public class SearchResultCache {
+
+    private static final long ENTRY_BYTES = 256; // rough sizes used for the memory gauge
+    private static final long CANDIDATE_BYTES = 48;
+    private static final long RESULT_BYTES = 224; // a StaySummary with its name, image and thumbnail URLs
+    private static final int MAX_RECENT_INVALIDATIONS = 4096; // searches finish within seconds
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final boolean availabilityInLocationBackend;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private final Map<Long, Set<String>> keysByStay = new HashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ArrayDeque<Invalidation> recentInvalidations = new ArrayDeque<>(); // oldest first
+    private long estimatedBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+    private final Counter evictions;
+
+    public SearchResultCache(MeterRegistry meterRegistry,
+            @Value("${search.cache.enabled:true}") boolean enabled,
+            @Value("${search.cache.max-entries:10000}") int maxEntries,
+            @Value("${search.cache.ttl-seconds:60}") long ttlSeconds,
+            @Value("${search.filter:index}") String searchFilter) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.availabilityInLocationBackend = "elasticsearch".equals(searchFilter);
+        this.hits = meterRegistry.counter("search.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("search.cache.requests", "result", "miss");
+        this.invalidations = meterRegistry.counter("search.cache.invalidations");
+        this.evictions = meterRegistry.counter("search.cache.evictions");
+        Gauge.builder("search.cache.size", this, SearchResultCache::size).register(meterRegistry);
+        Gauge.builder("search.cache.memory", this, SearchResultCache::estimatedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("search.cache.hit.ratio", this, SearchResultCache::hitRatio).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CursorPage<StaySummary> get(SearchCriteria criteria) {
+        String key = keyOf(criteria);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                removeEntry(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.page;
+        }
+    }
+
+    // Read before the search runs and pass it to put(), see the class comment.
+    public long version() {
+        return version.get();
+    }
+
+    /*
+     * candidateIds are all stays the search looked at, not only the ones in the page: a reservation on any of them
+     * can change what the page would contain.
+     */
+    public void put(SearchCriteria criteria, CursorPage<StaySummary> page, Collection<Long> candidateIds,
+            long versionAtStart) {
+        String key = keyOf(criteria);
+        Entry entry = new Entry(page, Set.copyOf(candidateIds), criteria.getLat(), criteria.getLon(),
+                radiusKm(criteria.getDistance()), criteria.getCheckinDate(),
+                criteria.getCheckoutDate(), System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            if (invalidatedSince(versionAtStart, entry)) {
+                return;
+            }
+            removeEntry(key);
+            entries.put(key, entry);
+            for (Long stayId : entry.candidateIds) {
+                keysByStay.computeIfAbsent(stayId, id -> new HashSet<>()).add(key);
+            }
+            estimatedBytes += entry.estimatedBytes;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries && eldest.hasNext()) {
+                Map.Entry<String, Entry> eldestEntry = eldest.next();
+                eldest.remove();
+                unlink(eldestEntry.getKey(), eldestEntry.getValue());
+                evictions.increment();
+            }
+        }
+    }
+
+    // A reservation was added to the stay, or the stay was deleted.
+    public synchronized void invalidateStay(Long stayId) {
+        record(entry -> entry.candidateIds.contains(stayId));
+        Set<String> keys = keysByStay.get(stayId);
+        if (keys != null) {
+            invalidate(new ArrayList<>(keys));
+        }
+    }
+
+    // A reservation of the stay was deleted, the stay may now show up in searches that filtered it out.
+    public synchronized void invalidateRelease(Long stayId, LocalDate start, LocalDate end) {
+        Predicate<Entry> affected = entry -> entry.candidateIds.contains(stayId)
+                || availabilityInLocationBackend && entry.checkinDate.isBefore(end)
+                        && start.isBefore(entry.checkoutDate);
+        record(affected);
+        Set<String> keys = new HashSet<>(keysByStay.getOrDefault(stayId, Set.of()));
+        if (availabilityInLocationBackend) {
+            entries.forEach((key, entry) -> {
+                if (affected.test(entry)) {
+                    keys.add(key);
+                }
+            });
+        }
+        invalidate(keys);
+    }
+
+    // A stay was added at (lat, lon).
+    public synchronized void invalidateLocation(double lat, double lon) {
+        Predicate<Entry> affected = entry -> GeoUtil.distanceKm(entry.lat, entry.lon, lat, lon) <= entry.radiusKm;
+        record(affected);
+        List<String> keys = new ArrayList<>();
+        entries.forEach((key, entry) -> {
+            if (affected.test(entry)) {
+                keys.add(key);
+            }
+        });
+        invalidate(keys);
+    }
+
+    private void record(Predicate<Entry> affected) {
+        recentInvalidations.addLast(new Invalidation(version.incrementAndGet(), affected));
+        if (recentInvalidations.size() > MAX_RECENT_INVALIDATIONS) {
+            recentInvalidations.removeFirst();
+        }
+    }
+
+    // True if an invalidation after versionAtStart would have dropped the entry, or if that can no longer be told.
+    private boolean invalidatedSince(long versionAtStart, Entry entry) {
+        if (version.get() == versionAtStart) {
+            return false;
+        }
+        Invalidation oldest = recentInvalidations.peekFirst();
+        if (oldest == null || oldest.version > versionAtStart + 1) {
+            return true; // some of the invalidations since the search started are no longer known
+        }
+        Iterator<Invalidation> newestFirst = recentInvalidations.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Invalidation invalidation = newestFirst.next();
+            if (invalidation.version <= versionAtStart) {
+                return false;
+            }
+            if (invalidation.affected.test(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invalidate(Collection<String> keys) {
+        for (String key : keys) {
+            if (removeEntry(key) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    private Entry removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unlink(key, entry);
+        }
+        return entry;
+    }
+
+    private void unlink(String key, Entry entry) {
+        for (Long stayId : entry.candidateIds) {
+            removeKey(stayId, key);
+        }
+        estimatedBytes -= entry.estimatedBytes;
+    }
+
+    private void removeKey(Long stayId, String key) {
+        Set<String> keys = keysByStay.get(stayId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByStay.remove(stayId);
+            }
+        }
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    // Without a distance the location backend picks its default, treat the circle as unbounded.
+    private static double radiusKm(String distance) {
+        return distance == null || distance.isEmpty() ? Double.MAX_VALUE : GeoUtil.parseDistanceKm(distance);
+    }
+
+    // Every parameter of a search, also used by SearchService to recognize identical searches in flight.
+    static String keyOf(SearchCriteria criteria) {
+        return criteria.getLat() + "|" + criteria.getLon() + "|" + criteria.getDistance() + "|"
+                + criteria.getCheckinDate() + "|" + criteria.getCheckoutDate() + "|" + criteria.getGuestNumber()
+                + "|" + criteria.getPageSize() + "|" + criteria.getCursor() + "|" + criteria.getNights()
+                + "|" + criteria.getQuery();
+    }
+
+    private static class Invalidation {
+        private final long version;
+        private final Predicate<Entry> affected;
+
+        private Invalidation(long version, Predicate<Entry> affected) {
+            this.version = version;
+            this.affected = affected;
+        }
+    }
+
+    private static class Entry {
+        private final CursorPage<StaySummary> page;
+        private final Set<Long> candidateIds;
+        private final double lat;
+        private final double lon;
+        private final double radiusKm;
+        private final LocalDate checkinDate;
+        private final LocalDate checkoutDate;
+        private final long expiresAt;
+        private final long estimatedBytes;
+
+        private Entry(CursorPage<StaySummary> page, Set<Long> candidateIds, double lat, double lon, double radiusKm,
+                LocalDate checkinDate, LocalDate checkoutDate, long expiresAt) {
+            this.page = page;
+            this.candidateIds = candidateIds;
+            this.lat = lat;
+            this.lon = lon;
+            this.radiusKm = radiusKm;
+            this.checkinDate = checkinDate;
+            this.checkoutDate = checkoutDate;
+            this.expiresAt = expiresAt;
+            this.estimatedBytes = ENTRY_BYTES + CANDIDATE_BYTES * candidateIds.size()
+                    + RESULT_BYTES * page.getItems().size();
+        }
+    }
+}
@@ -1,15 +1,44 @@
 package com.tpd.staybooking.service;
 
-import com.tpd.staybooking.model.Stay;
-import com.tpd.staybooking.repository.LocationRepository;
+import com.tpd.staybooking.exception.SearchTimeoutException;
+import com.tpd.staybooking.model.AvailabilityMatrix;
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.DateRange;
+import com.tpd.staybooking.model.GeoHit;
+import com.tpd.staybooking.model.GeoPin;
+import com.tpd.staybooking.model.MapView;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.SearchCriteria;
+import com.tpd.staybooking.model.StaySummary;
+import com.tpd.staybooking.repository.CustomLocationRepository;
 import com.tpd.staybooking.repository.StayRepository;
-import com.tpd.staybooking.repository.StayReservationDateRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.util.BoundedExecutor;
+import com.tpd.staybooking.util.DateBitmap;
+import com.tpd.staybooking.util.SingleFlight;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /*
@@ -18,41 +47,339 @@ check-out dates, and location. The service interacts with different repositories
 */
 @Service
 public class SearchService {
+    private static final int MAX_MAP_STAYS = 500;
+    private static final int MAX_MAP_CLUSTERS = 1000;
+
     private final StayRepository stayRepository;
-    private final StayReservationDateRepository stayReservationDateRepository;
-    private final LocationRepository locationRepository;
+    private final ReservedDateStore reservedDateStore;
+    private final CustomLocationRepository locationRepository;
+    private final AvailabilityIndex availabilityIndex;
+    private final SearchResultCache searchResultCache;
+    private final BoundedExecutor searchExecutor;
+    private final SingleFlight<String, CursorPage<StaySummary>> inFlightSearches = new SingleFlight<>();
+
+    @Value("${search.filter:index}") // "index": availability from AvailabilityIndex, capacity from MySQL.
+                                     // "elasticsearch": geo, capacity and availability in one ES query.
+    private String searchFilter;
+
+    @Value("${search.stage.timeout-ms:2000}")
+    private long stageTimeoutMillis;
+
+    @Value("${search.chunk-size:50}")
+    private int chunkSize;
 
-    public SearchService(StayRepository stayRepository, StayReservationDateRepository stayReservationDateRepository,
-            LocationRepository locationRepository) {
+    @Value("${search.map.stays-precision:7}") // geohash precision 7 cells are about 150 m wide
+    private int mapStaysPrecision;
+
+    public SearchService(StayRepository stayRepository, ReservedDateStore reservedDateStore,
+            CustomLocationRepository locationRepository, AvailabilityIndex availabilityIndex,
+            SearchResultCache searchResultCache, @Qualifier("searchExecutor") BoundedExecutor searchExecutor,
+            MeterRegistry meterRegistry) {
         this.stayRepository = stayRepository;
-        this.stayReservationDateRepository = stayReservationDateRepository;
+        this.reservedDateStore = reservedDateStore;
         this.locationRepository = locationRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.searchResultCache = searchResultCache;
+        this.searchExecutor = searchExecutor;
+        FunctionCounter.builder("search.requests.collapsed", inFlightSearches, SingleFlight::collapsed)
+                .description("Searches that waited for an identical search in flight instead of running")
+                .register(meterRegistry);
+        Gauge.builder("search.requests.in.flight", inFlightSearches, SingleFlight::inFlight)
+                .register(meterRegistry);
     }
 
-    public List<Stay> search(int guestNumber, LocalDate checkinDate, LocalDate checkoutDate, double lat, double lon,
-            String distance) {
-        List<Long> stayIds = locationRepository.searchByDistance(lat, lon, distance);
-        if (stayIds == null || stayIds.isEmpty()) {
-            return Collections.emptyList(); // Return an empty list that everyone can use. This approach is memory
-                                            // efficient, and if you try to add items to it externally, it will throw an
-                                            // exception.
-                                            // Exception, because this API is immutable and can only be read, not
-                                            // modified.
-        }
-        Set<Long> reservedStayIds = stayReservationDateRepository.findByIdInAndDateBetween(stayIds, checkinDate,
-                checkoutDate.minusDays(1));
-        List<Long> filteredStayIds = stayIds.stream() // Convert stayIds into a stream.
-                .filter(stayId -> !reservedStayIds.contains(stayId))
-                .collect(Collectors.toList()); //
-        /*
-         * The frequent API in the previous line can also be written as:
-         * List<Long> filteredStayIds = new ArrayList<>();
-         * for (Long stayId : stayIds) {
-         * if (!reservationStayIds.contains(stayId) {
-         * filteredStayIds.add(stayId);
-         * }
-         * }
-         */
-        return stayRepository.findByIdInAndGuestNumberGreaterThanEqual(filteredStayIds, guestNumber);
+    /*
+     * Returns one page of available stays, nearest first (most relevant first with keywords). The geo page is
+     * fetched first and then filtered, so a page can hold fewer than page_size stays (or none) while next_cursor
+     * still points at the following page.
+     */
+    public CursorPage<StaySummary> search(SearchCriteria criteria) {
+        if (!searchResultCache.isEnabled()) {
+            return inFlightSearches.execute(SearchResultCache.keyOf(criteria), () -> execute(criteria).page);
+        }
+        CursorPage<StaySummary> cached = searchResultCache.get(criteria);
+        if (cached != null) {
+            return cached;
+        }
+        // In a burst the same search misses the cache many times before the first one fills it. Only one of them
+        // runs, the others get its page, so Elasticsearch and MySQL see one query per distinct search.
+        return inFlightSearches.execute(SearchResultCache.keyOf(criteria), () -> {
+            long version = searchResultCache.version();
+            SearchOutcome outcome = execute(criteria);
+            searchResultCache.put(criteria, outcome.page, outcome.candidateIds, version);
+            return outcome.page;
+        });
+    }
+
+    private SearchOutcome execute(SearchCriteria criteria) {
+        if (criteria.isFlexible()) {
+            return searchFlexible(criteria);
+        }
+        if (criteria.hasQuery()) { // keywords are always matched by the location backend, ordered by relevance
+            return filterPage(criteria, await(stage(() -> locationRepository.searchText(criteria))));
+        }
+        if ("elasticsearch".equals(searchFilter)) {
+            return searchInElasticsearch(criteria);
+        }
+        return filterPage(criteria, await(stage(() -> locationRepository.searchByDistance(criteria.getLat(),
+                criteria.getLon(), criteria.getDistance(), criteria.getPageSize(), criteria.getCursor()))));
+    }
+
+    // Drops the hits of a geo page that are too small or reserved, keeping the order of the page.
+    private SearchOutcome filterPage(SearchCriteria criteria, CursorPage<GeoHit> geoPage) {
+        List<GeoHit> hits = geoPage.getItems();
+        if (hits == null || hits.isEmpty()) {
+            return new SearchOutcome(new CursorPage<>(Collections.emptyList(), null), // Return an empty list that
+                                                                                     // everyone can use. This
+                                                                                     // approach is memory efficient,
+                                                                                     // and the list is immutable and
+                                                                                     // can only be read.
+                    Collections.emptyList());
+        }
+        List<Long> stayIds = hits.stream().map(GeoHit::getId).collect(Collectors.toList());
+        // Capacity and availability both only need the geo ids, so they run at the same time instead of one after
+        // the other. The summaries of reserved stays are loaded too and dropped below, which is cheaper than waiting.
+        CompletableFuture<Map<Long, StaySummary>> summaries = loadSummaries(stayIds, criteria.getGuestNumber());
+        CompletableFuture<Set<Long>> reserved = findReserved(stayIds, criteria.getCheckinDate(),
+                criteria.getCheckoutDate());
+        Map<Long, StaySummary> stays = await(summaries);
+        stays.keySet().removeAll(await(reserved));
+
+        return new SearchOutcome(new CursorPage<>(toResults(hits, stays), geoPage.getNextCursor()), stayIds);
+    }
+
+    // Every hit already matches (the guest number is checked again for free), MySQL is only asked for the stays of
+    // this page by primary key.
+    private SearchOutcome searchInElasticsearch(SearchCriteria criteria) {
+        CursorPage<GeoHit> geoPage = await(stage(() -> locationRepository.searchAvailable(criteria)));
+        List<Long> stayIds = geoPage.getItems().stream().map(GeoHit::getId).collect(Collectors.toList());
+        if (stayIds.isEmpty()) {
+            return new SearchOutcome(new CursorPage<>(Collections.emptyList(), geoPage.getNextCursor()), stayIds);
+        }
+        Map<Long, StaySummary> stays = await(loadSummaries(stayIds, criteria.getGuestNumber()));
+        // Holds are not indexed in Elasticsearch, they change too often and only live in memory.
+        stays.keySet().removeIf(stayId -> availabilityIndex.isHeld(stayId, criteria.getCheckinDate(),
+                criteria.getCheckoutDate()));
+        return new SearchOutcome(new CursorPage<>(toResults(geoPage.getItems(), stays), geoPage.getNextCursor()),
+                stayIds);
+    }
+
+    /*
+     * Flexible dates: the geo page and the capacity query are the same as for fixed dates, but instead of a yes/no
+     * per stay every feasible check-in date in the window is worked out from the free runs of the stay, so the
+     * client needs one request instead of one per possible check-in date. Stays without any are left out.
+     * This always uses the geo search, Elasticsearch cannot answer "N free nights somewhere in the window".
+     */
+    private SearchOutcome searchFlexible(SearchCriteria criteria) {
+        CursorPage<GeoHit> geoPage = await(stage(() -> locationRepository.searchByDistance(criteria.getLat(),
+                criteria.getLon(), criteria.getDistance(), criteria.getPageSize(), criteria.getCursor())));
+        List<GeoHit> hits = geoPage.getItems();
+        if (hits == null || hits.isEmpty()) {
+            return new SearchOutcome(new CursorPage<>(Collections.emptyList(), null), Collections.emptyList());
+        }
+        List<Long> stayIds = hits.stream().map(GeoHit::getId).collect(Collectors.toList());
+        CompletableFuture<Map<Long, StaySummary>> summaries = loadSummaries(stayIds, criteria.getGuestNumber());
+        CompletableFuture<Map<Long, List<LocalDate>>> checkins = findFeasibleCheckins(stayIds,
+                criteria.getCheckinDate(), criteria.getCheckoutDate(), criteria.getNights());
+        Map<Long, StaySummary> stays = await(summaries);
+        Map<Long, List<LocalDate>> checkinsByStay = await(checkins);
+        stays.values().forEach(stay -> stay.setCheckinDates(checkinsByStay.get(stay.getId())));
+        stays.values().removeIf(stay -> stay.getCheckinDates().isEmpty());
+
+        return new SearchOutcome(new CursorPage<>(toResults(hits, stays), geoPage.getNextCursor()), stayIds);
+    }
+
+    /*
+     * Map viewport: below search.map.stays-precision the stays in the box are only counted per geohash cell, so
+     * panning over a region with thousands of stays still returns at most MAX_MAP_CLUSTERS small objects. From that
+     * precision on the map is zoomed in far enough to draw the stays themselves.
+     */
+    public MapView searchMap(double top, double left, double bottom, double right, int precision) {
+        if (precision < mapStaysPrecision) {
+            return MapView.ofClusters(precision, await(stage(() -> locationRepository.clusterByBoundingBox(top, left,
+                    bottom, right, precision, MAX_MAP_CLUSTERS))));
+        }
+        List<GeoPin> pins = await(stage(() -> locationRepository.searchByBoundingBox(top, left, bottom, right,
+                MAX_MAP_STAYS)));
+        if (pins.isEmpty()) {
+            return MapView.ofStays(precision, Collections.emptyList());
+        }
+        Map<Long, StaySummary> stays = await(loadSummaries(
+                pins.stream().map(GeoPin::getId).collect(Collectors.toList()), 0));
+        List<StaySummary> results = new ArrayList<>();
+        for (GeoPin pin : pins) {
+            StaySummary stay = stays.get(pin.getId());
+            if (stay != null) {
+                results.add(stay.setCoordinates(pin.getLat(), pin.getLon()));
+            }
+        }
+        return MapView.ofStays(precision, results);
+    }
+
+    /*
+     * Partner integrations: which of these stays are free for each of these ranges. The matrix is read from the
+     * availability index; until it is loaded, the reserved ranges over the span of all ranges are fetched with one
+     * query per chunk of stays and laid out in throwaway bitmaps. Either way the number of queries depends only on
+     * the number of chunks, never on the number of stays or ranges.
+     */
+    public AvailabilityMatrix checkAvailability(List<Long> stayIds, List<DateRange> ranges) {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(stayIds));
+        CompletableFuture<List<Long>> existing = inChunks(ids, stayRepository::findExistingIds);
+        CompletableFuture<Map<Long, DateBitmap>> unavailable = availabilityIndex.isReady()
+                ? CompletableFuture.completedFuture(null)
+                : findUnavailable(ids, ranges);
+        Set<Long> found = new HashSet<>(await(existing));
+        Map<Long, DateBitmap> bitmaps = await(unavailable);
+
+        List<Long> foundIds = new ArrayList<>();
+        List<String> rows = new ArrayList<>();
+        List<Long> notFound = new ArrayList<>();
+        for (Long stayId : ids) {
+            if (!found.contains(stayId)) {
+                notFound.add(stayId);
+                continue;
+            }
+            StringBuilder row = new StringBuilder(ranges.size());
+            DateBitmap bitmap = bitmaps == null ? null : bitmaps.get(stayId);
+            for (DateRange range : ranges) {
+                boolean free = bitmaps == null
+                        ? availabilityIndex.isAvailable(stayId, range.getStart(), range.getEnd())
+                        : bitmap == null || !bitmap.intersects(range.getStart(), range.getEnd());
+                row.append(free ? '1' : '0');
+            }
+            foundIds.add(stayId);
+            rows.add(row.toString());
+        }
+        return new AvailabilityMatrix(ranges, foundIds, rows, notFound);
+    }
+
+    // Reserved and held nights per stay between the earliest start and the latest end of the ranges.
+    private CompletableFuture<Map<Long, DateBitmap>> findUnavailable(List<Long> stayIds, List<DateRange> ranges) {
+        LocalDate start = ranges.stream().map(DateRange::getStart).min(LocalDate::compareTo).orElseThrow();
+        LocalDate end = ranges.stream().map(DateRange::getEnd).max(LocalDate::compareTo).orElseThrow();
+        return inChunks(stayIds, chunk -> reservedDateStore.findRanges(chunk, start, end))
+                .thenApply(reserved -> {
+                    Map<Long, DateBitmap> bitmaps = new HashMap<>();
+                    List<ReservedRange> unavailable = new ArrayList<>(reserved);
+                    stayIds.forEach(stayId -> unavailable.addAll(availabilityIndex.heldRanges(stayId)));
+                    for (ReservedRange range : unavailable) {
+                        bitmaps.computeIfAbsent(range.getStayId(), id -> new DateBitmap(start))
+                                .set(range.getStartDate(), range.getEndDate());
+                    }
+                    return bitmaps;
+                });
+    }
+
+    private List<StaySummary> toResults(List<GeoHit> hits, Map<Long, StaySummary> stays) {
+        List<StaySummary> results = new ArrayList<>();
+        for (GeoHit hit : hits) { // MySQL returns the stays in any order, put them back in page order.
+            StaySummary stay = stays.get(hit.getId());
+            if (stay != null) {
+                results.add(stay.setDistance(hit.getDistance()));
+            }
+        }
+        return results;
+    }
+
+    private CompletableFuture<Map<Long, StaySummary>> loadSummaries(List<Long> stayIds, int guestNumber) {
+        return inChunks(stayIds,
+                chunk -> stayRepository.findSummariesByIdInAndGuestNumberGreaterThanEqual(chunk, guestNumber))
+                .thenApply(summaries -> summaries.stream()
+                        .collect(Collectors.toMap(StaySummary::getId, stay -> stay)));
+    }
+
+    private CompletableFuture<Set<Long>> findReserved(List<Long> stayIds, LocalDate checkinDate,
+            LocalDate checkoutDate) {
+        if (availabilityIndex.isReady()) { // Checked in memory, MySQL is only used until the index is loaded.
+            return CompletableFuture.completedFuture(stayIds.stream() // Convert stayIds into a stream.
+                    .filter(stayId -> !availabilityIndex.isAvailable(stayId, checkinDate, checkoutDate))
+                    .collect(Collectors.toSet()));
+            /*
+             * The frequent API in the previous line can also be written as:
+             * Set<Long> reservedStayIds = new HashSet<>();
+             * for (Long stayId : stayIds) {
+             * if (!availabilityIndex.isAvailable(stayId, checkinDate, checkoutDate) {
+             * reservedStayIds.add(stayId);
+             * }
+             * }
+             */
+        }
+        return inChunks(stayIds, chunk -> reservedDateStore.findReservedStayIds(chunk, checkinDate, checkoutDate))
+                .thenApply(reserved -> {
+                    Set<Long> unavailable = new HashSet<>(reserved);
+                    stayIds.stream() // holds are only in memory
+                            .filter(stayId -> availabilityIndex.isHeld(stayId, checkinDate, checkoutDate))
+                            .forEach(unavailable::add);
+                    return unavailable;
+                });
+    }
+
+    private CompletableFuture<Map<Long, List<LocalDate>>> findFeasibleCheckins(List<Long> stayIds,
+            LocalDate windowStart, LocalDate windowEnd, int nights) {
+        if (availabilityIndex.isReady()) {
+            return CompletableFuture.completedFuture(stayIds.stream().collect(Collectors.toMap(stayId -> stayId,
+                    stayId -> availabilityIndex.feasibleCheckins(stayId, windowStart, windowEnd, nights))));
+        }
+        // Until the index is loaded: the reserved ranges of all stays in one query per chunk, laid out in
+        // throwaway bitmaps so the same one-pass scan can be used.
+        return inChunks(stayIds, chunk -> reservedDateStore.findRanges(chunk, windowStart, windowEnd))
+                .thenApply(ranges -> {
+                    Map<Long, DateBitmap> bitmaps = new HashMap<>();
+                    List<ReservedRange> unavailable = new ArrayList<>(ranges);
+                    stayIds.forEach(stayId -> unavailable.addAll(availabilityIndex.heldRanges(stayId)));
+                    for (ReservedRange range : unavailable) {
+                        bitmaps.computeIfAbsent(range.getStayId(), id -> new DateBitmap(windowStart))
+                                .set(range.getStartDate(), range.getEndDate());
+                    }
+                    return stayIds.stream().collect(Collectors.toMap(stayId -> stayId, stayId -> AvailabilityIndex
+                            .feasibleCheckins(bitmaps.get(stayId), windowStart, windowEnd, nights)));
+                });
+    }
+
+    // Splits a long id list into chunks of search.chunk-size and queries them concurrently.
+    private <T> CompletableFuture<List<T>> inChunks(List<Long> stayIds,
+            Function<List<Long>, Collection<T>> query) {
+        List<CompletableFuture<Collection<T>>> futures = new ArrayList<>();
+        for (int from = 0; from < stayIds.size(); from += chunkSize) {
+            List<Long> chunk = stayIds.subList(from, Math.min(from + chunkSize, stayIds.size()));
+            futures.add(stage(() -> query.apply(chunk)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(done -> futures.stream()
+                        .flatMap(future -> future.join().stream())
+                        .collect(Collectors.toList()));
+    }
+
+    // Every stage gets its own deadline, a slow MySQL or Elasticsearch call fails the search instead of hanging it.
+    private <T> CompletableFuture<T> stage(Supplier<T> supplier) {
+        return searchExecutor.supply(supplier, stageTimeoutMillis);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new SearchTimeoutException("Search is taking too long, please try again");
+            }
+            if (e.getCause() instanceof RejectedExecutionException) { // every search thread and queue slot is taken
+                throw new SearchTimeoutException("Search is busy, please try again");
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause(); // e.g. InvalidSearchPageException from a bad cursor
+            }
+            throw e;
+        }
+    }
+
+    // A page together with every stay that was considered for it, which is what the cache invalidates on.
+    private static class SearchOutcome {
+        private final CursorPage<StaySummary> page;
+        private final List<Long> candidateIds;
+
+        private SearchOutcome(CursorPage<StaySummary> page, List<Long> candidateIds) {
+            this.page = page;
+            this.candidateIds = candidateIds;
+        }
     }
 }
@@ -0,0 +1,249 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.StayNotExistException;
+import com.tpd.staybooking.model.BlockResult;
+import com.tpd.staybooking.model.DateRange;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayBlock;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayBlockRepository;
+import com.tpd.staybooking.repository.StayRepository;
+import com.tpd.staybooking.util.DateBitmap;
+import com.tpd.staybooking.util.TransactionUtil;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+Hosts block nights of many stays at once (maintenance, owner stays) and unblock them again. A block reserves only
+the nights that are still free: booked or held nights are left to the guest and reported as skipped. The stays are
+handled STAYS_PER_TRANSACTION at a time, each group in one transaction under the BookingArbiter locks of its stays,
+with one query for the reserved nights of the whole group and batch inserts for the new rows. The availability
+index is updated after each commit, so the next search already sees the change.
+*/
+@Service
+public class StayBlockService {
+
+    private static final int STAYS_PER_TRANSACTION = 100;
+
+    private final StayRepository stayRepository;
+    private final StayBlockRepository stayBlockRepository;
+    private final ReservedDateStore reservedDateStore;
+    private final AvailabilityIndex availabilityIndex;
+    private final LocationSyncService locationSyncService;
+    private final SearchResultCache searchResultCache;
+    private final BookingArbiter bookingArbiter;
+    private final TransactionTemplate transactionTemplate;
+
+    public StayBlockService(StayRepository stayRepository, StayBlockRepository stayBlockRepository,
+            ReservedDateStore reservedDateStore, AvailabilityIndex availabilityIndex,
+            LocationSyncService locationSyncService, SearchResultCache searchResultCache,
+            BookingArbiter bookingArbiter, TransactionTemplate transactionTemplate) {
+        this.stayRepository = stayRepository;
+        this.stayBlockRepository = stayBlockRepository;
+        this.reservedDateStore = reservedDateStore;
+        this.availabilityIndex = availabilityIndex;
+        this.locationSyncService = locationSyncService;
+        this.searchResultCache = searchResultCache;
+        this.bookingArbiter = bookingArbiter;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    public List<BlockResult> block(String username, List<Long> stayIds, List<DateRange> ranges) {
+        List<Long> ids = ownedStayIds(username, stayIds);
+        List<DateRange> futureRanges = fromToday(ranges);
+        List<BlockResult> results = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += STAYS_PER_TRANSACTION) {
+            List<Long> chunk = ids.subList(from, Math.min(from + STAYS_PER_TRANSACTION, ids.size()));
+            results.addAll(bookingArbiter.bookAll(chunk,
+                    () -> transactionTemplate.execute(status -> blockInTransaction(chunk, futureRanges))));
+        }
+        return results;
+    }
+
+    public List<BlockResult> unblock(String username, List<Long> stayIds, List<DateRange> ranges) {
+        List<Long> ids = ownedStayIds(username, stayIds);
+        List<DateRange> futureRanges = fromToday(ranges);
+        List<BlockResult> results = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += STAYS_PER_TRANSACTION) {
+            List<Long> chunk = ids.subList(from, Math.min(from + STAYS_PER_TRANSACTION, ids.size()));
+            results.addAll(bookingArbiter.bookAll(chunk,
+                    () -> transactionTemplate.execute(status -> unblockInTransaction(chunk, futureRanges))));
+        }
+        return results;
+    }
+
+    private List<BlockResult> blockInTransaction(List<Long> stayIds, List<DateRange> ranges) {
+        if (ranges.isEmpty()) {
+            return List.of();
+        }
+        LocalDate start = earliestStart(ranges);
+        LocalDate end = latestEnd(ranges);
+        // unavailable: every night that cannot be blocked (booked, held or already blocked).
+        // guests: the booked and held nights only, the ones reported as skipped.
+        Map<Long, DateBitmap> unavailable = new HashMap<>();
+        Map<Long, DateBitmap> guests = new HashMap<>();
+        List<ReservedRange> takenRanges = new ArrayList<>(reservedDateStore.findRanges(stayIds, start, end));
+        stayIds.forEach(stayId -> takenRanges.addAll(availabilityIndex.heldRanges(stayId)));
+        for (ReservedRange range : takenRanges) {
+            unavailable.computeIfAbsent(range.getStayId(), id -> new DateBitmap(start))
+                    .set(range.getStartDate(), range.getEndDate());
+            guests.computeIfAbsent(range.getStayId(), id -> new DateBitmap(start))
+                    .set(range.getStartDate(), range.getEndDate());
+        }
+        for (StayBlock block : stayBlockRepository.findOverlapping(stayIds, start, end)) {
+            DateBitmap bitmap = guests.get(block.getStay().getId());
+            if (bitmap != null) {
+                bitmap.clear(block.getStartDate(), block.getEndDate());
+            }
+        }
+
+        List<BlockResult> results = new ArrayList<>();
+        List<ReservedRange> newRanges = new ArrayList<>();
+        List<StayBlock> blocks = new ArrayList<>();
+        for (Long stayId : stayIds) {
+            DateBitmap bitmap = unavailable.computeIfAbsent(stayId, id -> new DateBitmap(start));
+            DateBitmap guestNights = guests.get(stayId);
+            List<DateRange> blocked = new ArrayList<>();
+            List<DateRange> skipped = new ArrayList<>();
+            for (DateRange range : ranges) {
+                if (guestNights != null) {
+                    guestNights.forEachRange((takenStart, takenEnd) -> addOverlap(skipped, takenStart, takenEnd,
+                            range));
+                }
+                bitmap.forEachFreeRange(range.getStart(), range.getEnd(),
+                        (freeStart, freeEnd) -> blocked.add(new DateRange(freeStart, freeEnd)));
+                bitmap.set(range.getStart(), range.getEnd()); // overlapping ranges of the request block once
+            }
+            Stay stay = new Stay.Builder().setId(stayId).build(); // only the foreign key is written
+            for (DateRange range : blocked) {
+                newRanges.add(new ReservedRange(stayId, range.getStart(), range.getEnd()));
+                blocks.add(new StayBlock(stay, range.getStart(), range.getEnd()));
+            }
+            results.add(new BlockResult(stayId, blocked, skipped));
+        }
+        reservedDateStore.reserveAll(newRanges);
+        stayBlockRepository.saveAll(blocks);
+        TransactionUtil.afterCommit(() -> {
+            Set<Long> changedStayIds = new HashSet<>();
+            for (ReservedRange range : newRanges) {
+                availabilityIndex.reserve(range.getStayId(), range.getStartDate(), range.getEndDate());
+                changedStayIds.add(range.getStayId());
+            }
+            locationSyncService.syncReservedDates(changedStayIds);
+            changedStayIds.forEach(searchResultCache::invalidateStay);
+        });
+        return results;
+    }
+
+    /*
+     * The blocks of each stay are laid out in a bitmap, the requested ranges are cut out of it, and the overlapping
+     * block rows are replaced by whatever is left. Only nights that were blocked are released, a guest's nights in
+     * the same range are never touched.
+     */
+    private List<BlockResult> unblockInTransaction(List<Long> stayIds, List<DateRange> ranges) {
+        if (ranges.isEmpty()) {
+            return List.of();
+        }
+        List<StayBlock> overlapping = stayBlockRepository.findOverlapping(stayIds, earliestStart(ranges),
+                latestEnd(ranges));
+        Map<Long, DateBitmap> blockedByStay = new HashMap<>();
+        for (StayBlock block : overlapping) {
+            blockedByStay.computeIfAbsent(block.getStay().getId(), id -> new DateBitmap(LocalDate.now()))
+                    .set(block.getStartDate(), block.getEndDate());
+        }
+
+        List<BlockResult> results = new ArrayList<>();
+        List<ReservedRange> released = new ArrayList<>();
+        List<StayBlock> remaining = new ArrayList<>();
+        for (Long stayId : stayIds) {
+            DateBitmap blocked = blockedByStay.get(stayId);
+            List<DateRange> unblocked = new ArrayList<>();
+            if (blocked != null) {
+                for (DateRange range : ranges) {
+                    blocked.forEachRange((blockStart, blockEnd) -> addOverlap(unblocked, blockStart, blockEnd, range));
+                    blocked.clear(range.getStart(), range.getEnd());
+                }
+                Stay stay = new Stay.Builder().setId(stayId).build();
+                blocked.forEachRange((start, end) -> remaining.add(new StayBlock(stay, start, end)));
+                unblocked.forEach(range -> released.add(new ReservedRange(stayId, range.getStart(), range.getEnd())));
+            }
+            results.add(new BlockResult(stayId, unblocked, List.of()));
+        }
+        // Blocks that started before today keep their past nights, the bitmaps start today.
+        for (StayBlock block : overlapping) {
+            if (block.getStartDate().isBefore(LocalDate.now())) {
+                remaining.add(new StayBlock(block.getStay(), block.getStartDate(),
+                        block.getEndDate().isBefore(LocalDate.now()) ? block.getEndDate() : LocalDate.now()));
+            }
+        }
+        stayBlockRepository.deleteAllInBatch(overlapping);
+        stayBlockRepository.saveAll(remaining);
+        for (ReservedRange range : released) {
+            reservedDateStore.release(range.getStayId(), range.getStartDate(), range.getEndDate());
+        }
+        TransactionUtil.afterCommit(() -> {
+            Set<Long> changedStayIds = new HashSet<>();
+            for (ReservedRange range : released) {
+                availabilityIndex.release(range.getStayId(), range.getStartDate(), range.getEndDate());
+                changedStayIds.add(range.getStayId());
+            }
+            locationSyncService.syncReservedDates(changedStayIds);
+            released.forEach(range -> searchResultCache.invalidateRelease(range.getStayId(), range.getStartDate(),
+                    range.getEndDate()));
+        });
+        return results;
+    }
+
+    // Every id must be a stay of the host, otherwise nothing is changed.
+    private List<Long> ownedStayIds(String username, List<Long> stayIds) {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(stayIds));
+        Set<Long> owned = new HashSet<>();
+        for (int from = 0; from < ids.size(); from += STAYS_PER_TRANSACTION) {
+            owned.addAll(stayRepository.findIdsByIdInAndHost(
+                    ids.subList(from, Math.min(from + STAYS_PER_TRANSACTION, ids.size())), username));
+        }
+        if (owned.size() != ids.size()) {
+            throw new StayNotExistException("Stay doesn't exist");
+        }
+        return ids;
+    }
+
+    // Past nights can neither be blocked nor released.
+    private static List<DateRange> fromToday(List<DateRange> ranges) {
+        LocalDate today = LocalDate.now();
+        List<DateRange> futureRanges = new ArrayList<>();
+        for (DateRange range : ranges) {
+            LocalDate start = range.getStart().isBefore(today) ? today : range.getStart();
+            if (start.isBefore(range.getEnd())) {
+                futureRanges.add(new DateRange(start, range.getEnd()));
+            }
+        }
+        return futureRanges;
+    }
+
+    private static void addOverlap(List<DateRange> overlaps, LocalDate start, LocalDate end, DateRange range) {
+        LocalDate overlapStart = start.isAfter(range.getStart()) ? start : range.getStart();
+        LocalDate overlapEnd = end.isBefore(range.getEnd()) ? end : range.getEnd();
+        if (overlapStart.isBefore(overlapEnd)) {
+            overlaps.add(new DateRange(overlapStart, overlapEnd));
+        }
+    }
+
+    private static LocalDate earliestStart(List<DateRange> ranges) {
+        return ranges.stream().map(DateRange::getStart).min(LocalDate::compareTo).orElseThrow();
+    }
+
+    private static LocalDate latestEnd(List<DateRange> ranges) {
+        return ranges.stream().map(DateRange::getEnd).max(LocalDate::compareTo).orElseThrow();
+    }
+}
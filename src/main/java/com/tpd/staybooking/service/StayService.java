@@ -3,16 +3,21 @@ package com.tpd.staybooking.service;
 import com.tpd.staybooking.exception.StayDeleteException;
 import com.tpd.staybooking.exception.StayNotExistException;
 import com.tpd.staybooking.model.*;
-import com.tpd.staybooking.repository.LocationRepository;
+import com.tpd.staybooking.repository.CustomLocationRepository;
 import com.tpd.staybooking.repository.ReservationRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayBlockRepository;
 import com.tpd.staybooking.repository.StayRepository;
+import com.tpd.staybooking.util.TransactionUtil;
+import org.springframework.data.elasticsearch.core.geo.GeoPoint;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.transaction.Transactional;
 import java.time.LocalDate;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 /*this StayService class acts as an intermediary between the controller and the repository,
@@ -26,17 +31,32 @@ public class StayService {
     private final ImageStorageService imageStorageService;
     private final StayRepository stayRepository;
     private final GeoCodingService geoCodingService;
-    private final LocationRepository locationRepository;
+    private final CustomLocationRepository locationRepository;
     private final ReservationRepository reservationRepository;
+    private final ReservedDateStore reservedDateStore;
+    private final AvailabilityIndex availabilityIndex;
+    private final SearchResultCache searchResultCache;
+    private final StayBlockRepository stayBlockRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ImageVariantService imageVariantService;
 
     public StayService(ImageStorageService imageStorageService, StayRepository stayRepository,
-            GeoCodingService geoCodingService, LocationRepository locationRepository,
-            ReservationRepository reservationRepository) {
+            GeoCodingService geoCodingService, CustomLocationRepository locationRepository,
+            ReservationRepository reservationRepository, ReservedDateStore reservedDateStore,
+            AvailabilityIndex availabilityIndex, SearchResultCache searchResultCache,
+            StayBlockRepository stayBlockRepository, TransactionTemplate transactionTemplate,
+            ImageVariantService imageVariantService) {
         this.imageStorageService = imageStorageService;
         this.stayRepository = stayRepository;
         this.geoCodingService = geoCodingService;
         this.locationRepository = locationRepository;
         this.reservationRepository = reservationRepository;
+        this.reservedDateStore = reservedDateStore;
+        this.availabilityIndex = availabilityIndex;
+        this.searchResultCache = searchResultCache;
+        this.stayBlockRepository = stayBlockRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.imageVariantService = imageVariantService;
     }
 
     /*
@@ -53,6 +73,11 @@ public class StayService {
         // returns the result of a query performed on a stayRepository.
     }
 
+    // What GET /stays shows: the host's stays as summaries, loaded in one query.
+    public List<StaySummary> listSummariesByUser(String username) {
+        return stayRepository.findSummariesByHost(username);
+    }
+
     /*
      * This method retrieves a specific stay by its ID and verifies that the stay is
      * associated with the provided host username.
@@ -82,35 +107,62 @@ public class StayService {
     // reduced. If a column is an image, it takes up a lot of memory. For any
     // content that does not require indexing, we use Amazon S3 or Google Cloud
     // Storage to store it.
-    @Transactional
+    //
+    // The slow calls (geocoding, then the uploads on their own executor) happen before the transaction opens, so a
+    // listing with many large images no longer holds a MySQL connection while GCS receives them. Only the writes run
+    // in the transaction. If they fail, the uploaded images are released again (they may be shared with other stays).
     public void add(Stay stay, MultipartFile[] images) {
-        List<StayImage> stayImages = Arrays.stream(images) // First convert the list into a Java Stream.
-                .filter(image -> !image.isEmpty()) // Corner case - if the image is empty, just filter it out and do
-                                                   // nothing.
-                .parallel() // Create multiple threads to upload simultaneously.
-                .map(imageStorageService::save) // For each incoming image, save it each time. This can also be written
-                                                // as .map(image -> imageStorageService.save(image));
-                .map(mediaLink -> new StayImage(mediaLink, stay)) // After saving each file, there will be a media link
-                                                                  // (assuming URL is a field).
-                .collect(Collectors.toList()); // Put the media links into a list.
-        /*
-         * It has the same meaning as the lambda expression above. The only difference
-         * is that the for loop below does not include parallel().
-         * List<String> mediaLinks2 = new ArrayList<>();
-         * for (MultipartFile image : images) {
-         * mediaLinks2.add(imageStorageService.save(image));
-         * }
-         * However, the frequent API approach above reads very smoothly and is easy to
-         * understand.
-         */
-        // When saving, you need to store the photo, the stay, and also save the
-        // geolocation. You need to add @Transactional because there are multiple write
-        // operations.
+        GeoPoint geoPoint = geoCodingService.getLatLng(null, stay.getAddress()).getGeoPoint(); // The id is not known
+                                                                                               // until the stay is
+                                                                                               // saved.
+        List<ImageStorageService.StoredImage> storedImages = imageStorageService.saveAll(images); // Empty images are
+                                                                                                 // skipped.
+        save(stay, geoPoint, storedImages);
+    }
+
+    // For images that are already in storage (the streaming upload of StayUploadService). They are released again if
+    // the stay cannot be saved.
+    public void add(Stay stay, List<ImageStorageService.StoredImage> storedImages) {
+        GeoPoint geoPoint;
+        try {
+            geoPoint = geoCodingService.getLatLng(null, stay.getAddress()).getGeoPoint();
+        } catch (RuntimeException e) {
+            imageStorageService.release(ImageStorageService.names(storedImages));
+            throw e;
+        }
+        save(stay, geoPoint, storedImages);
+    }
+
+    private void save(Stay stay, GeoPoint geoPoint, List<ImageStorageService.StoredImage> storedImages) {
+        List<StayImage> stayImages = storedImages.stream()
+                .map(image -> new StayImage(image.getUrl(), image.getName(), stay)) // After saving each file,
+                                                                                    // there will be a media link.
+                .collect(Collectors.toList());
         stay.setImages(stayImages);
-        stayRepository.save(stay);
+        stay.setCoordinates(geoPoint.getLat(), geoPoint.getLon());
+        try {
+            // When saving, you need to store the stay with its images and also save the geolocation. They run in one
+            // transaction because there are multiple write operations.
+            transactionTemplate.executeWithoutResult(status -> {
+                stayRepository.save(stay);
 
-        Location location = geoCodingService.getLatLng(stay.getId(), stay.getAddress()); //
-        locationRepository.save(location); // Connect to the index in Elasticsearch.
+                Location location = new Location(stay.getId(), geoPoint)
+                        .setGuestNumber(stay.getGuestNumber()) // A new stay has no reserved dates yet.
+                        .setName(stay.getName())
+                        .setDescription(stay.getDescription());
+                locationRepository.index(location); // Connect to the index in Elasticsearch (or the embedded
+                                                    // backend).
+                TransactionUtil.afterCommit(() -> {
+                    searchResultCache.invalidateLocation(geoPoint.getLat(), geoPoint.getLon());
+                    imageVariantService.generateAsync(storedImages.stream()
+                            .map(ImageStorageService.StoredImage::getName)
+                            .collect(Collectors.toList()));
+                });
+            });
+        } catch (RuntimeException e) {
+            imageStorageService.release(ImageStorageService.names(storedImages));
+            throw e;
+        }
     }
 
     /*
@@ -121,6 +173,7 @@ public class StayService {
      * If there are, a StayDeleteException is thrown. If all checks pass, the stay
      * is deleted using the stayRepository.
      */
+    @Transactional
     public void delete(Long stayId, String username) throws StayNotExistException, StayDeleteException {
         Stay stay = stayRepository.findByIdAndHost(stayId, new User.Builder().setUsername(username).build());
         if (stay == null) {
@@ -131,6 +184,17 @@ public class StayService {
         if (reservations != null && !reservations.isEmpty()) {
             throw new StayDeleteException("Cannot delete stay with active reservation");
         }
+        List<String> imageNames = stay.getImages().stream().map(StayImage::getName)
+                .filter(Objects::nonNull) // images from before names were stored are left in the bucket
+                .collect(Collectors.toList());
+        reservedDateStore.releaseAll(stayId);
+        stayBlockRepository.deleteByStayId(stayId);
         stayRepository.deleteById(stayId);
+        TransactionUtil.afterCommit(() -> {
+            imageStorageService.release(imageNames); // deleted later unless another stay uses them
+            availabilityIndex.remove(stayId);
+            locationRepository.remove(stayId); // otherwise the stay keeps showing up in geo searches
+            searchResultCache.invalidateStay(stayId);
+        });
     }
 }
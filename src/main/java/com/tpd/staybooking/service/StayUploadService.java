@@ -0,0 +1,146 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.InvalidStayUploadException;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.User;
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.FileUpload;
+import org.apache.tomcat.util.http.fileupload.UploadContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+The streaming variant of POST /stays (header X-Upload-Mode: streaming). The multipart body is read part by part
+straight from the request stream, and each image is piped to the image store while it arrives
+(ImageStorageService.saveStream). Nothing is buffered in memory or in a temp file first, so a request needs the same few hundred kilobytes whether
+its images are 1 MB or 50 MB, and a slow store slows the client down instead of filling the heap or the disk.
+The parser is the streaming API of commons-fileupload as shipped inside Tomcat, so no extra dependency is needed.
+The form fields can come before or after the images and are checked once the body is read. Images are uploaded
+one after the other, a request stream can only be read in order. This needs spring.servlet.multipart.resolve-lazily=true, otherwise Spring parses the whole body
+before the controller is called.
+*/
+@Service
+public class StayUploadService {
+
+    private static final int MAX_FIELD_BYTES = 64 * 1024;
+
+    private final ImageStorageService imageStorageService;
+    private final StayService stayService;
+
+    @Value("${image.upload.max-file-bytes:20971520}")
+    private long maxFileBytes;
+
+    @Value("${image.upload.max-files:20}")
+    private int maxFiles;
+
+    public StayUploadService(ImageStorageService imageStorageService, StayService stayService) {
+        this.imageStorageService = imageStorageService;
+        this.stayService = stayService;
+    }
+
+    public void add(String contentType, long contentLength, InputStream body, String username) {
+        Map<String, String> fields = new HashMap<>();
+        List<ImageStorageService.StoredImage> storedImages = new ArrayList<>();
+        try {
+            FileItemIterator parts = new FileUpload().getItemIterator(new StreamContext(contentType, contentLength, body));
+            while (parts.hasNext()) {
+                FileItemStream part = parts.next();
+                if (part.isFormField()) {
+                    fields.put(part.getFieldName(), readField(part));
+                } else if ("images".equals(part.getFieldName())) {
+                    if (storedImages.size() >= maxFiles) {
+                        throw new InvalidStayUploadException("At most " + maxFiles + " images per stay");
+                    }
+                    try (InputStream image = part.openStream()) {
+                        ImageStorageService.StoredImage stored = imageStorageService.saveStream(image,
+                                part.getContentType(), maxFileBytes);
+                        if (stored != null) { // empty parts are skipped like in the buffered upload
+                            storedImages.add(stored);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            imageStorageService.release(ImageStorageService.names(storedImages));
+            throw new InvalidStayUploadException("Failed to read the upload");
+        } catch (RuntimeException e) {
+            imageStorageService.release(ImageStorageService.names(storedImages));
+            throw e;
+        }
+
+        Stay stay;
+        try {
+            stay = new Stay.Builder()
+                    .setName(required(fields, "name"))
+                    .setAddress(required(fields, "address"))
+                    .setDescription(required(fields, "description"))
+                    .setGuestNumber(Integer.parseInt(required(fields, "guest_number")))
+                    .setHost(new User.Builder().setUsername(username).build())
+                    .build();
+        } catch (RuntimeException e) { // a missing field or a guest_number that is not a number
+            imageStorageService.release(ImageStorageService.names(storedImages));
+            throw new InvalidStayUploadException("name, address, description and guest_number are required");
+        }
+        stayService.add(stay, storedImages);
+    }
+
+    private static String readField(FileItemStream part) throws IOException {
+        try (InputStream in = part.openStream()) {
+            byte[] value = in.readNBytes(MAX_FIELD_BYTES + 1);
+            if (value.length > MAX_FIELD_BYTES) {
+                throw new InvalidStayUploadException(part.getFieldName() + " is too long");
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new InvalidStayUploadException(name + " is required");
+        }
+        return value;
+    }
+
+    // What the parser needs from the request: its content type (with the boundary), length (-1 if unknown) and body.
+    private static class StreamContext implements UploadContext {
+        private final String contentType;
+        private final long contentLength;
+        private final InputStream body;
+
+        private StreamContext(String contentType, long contentLength, InputStream body) {
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+            this.body = body;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return StandardCharsets.UTF_8.name();
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return body;
+        }
+    }
+}
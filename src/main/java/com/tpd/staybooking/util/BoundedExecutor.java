@@ -0,0 +1,66 @@
+package com.tpd.staybooking.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+A fixed number of named threads with a bounded queue, for work that fans out from a request (search stages, image
+uploads). When the queue is full the task is rejected: the returned future fails with a
+RejectedExecutionException right away, so an overloaded server answers quickly instead of piling up work. Running
+the task on the request thread would slow the caller down too, but without any deadline. Each task gets a deadline,
+time in the queue included: the returned future fails with a TimeoutException when it is not done in time, and the
+task is cancelled (interrupted if it is running, skipped if it is still queued).
+It deliberately does not implement java.util.concurrent.Executor, so defining one as a bean does not replace the
+executor Spring Boot configures for @Async and async MVC requests.
+*/
+public class BoundedExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    public BoundedExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true); // idle threads go away between bursts
+    }
+
+    public <T> CompletableFuture<T> supply(Supplier<T> task, long timeoutMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running;
+        try {
+            running = executor.submit(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+            if (error instanceof TimeoutException) {
+                running.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
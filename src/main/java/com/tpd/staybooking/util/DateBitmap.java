@@ -0,0 +1,181 @@
+package com.tpd.staybooking.util;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/*
+A compact set of reserved nights for a single stay. Night n is stored as bit (n - origin) where both are epoch days,
+so one long word covers 64 nights and a whole year fits in 6 words. Range checks test whole words with a mask
+instead of looking at each night, which is the same trick java.util.BitSet uses internally.
+Nights before the origin are ignored: they are in the past and can no longer be searched or booked.
+All ranges are half-open [start, end), the same as [checkin, checkout).
+*/
+public class DateBitmap {
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long WORD_MASK = 0xffffffffffffffffL;
+
+    private final long origin; // epoch day stored in bit 0
+    private long[] words = new long[0];
+
+    public DateBitmap(LocalDate origin) {
+        this.origin = origin.toEpochDay();
+    }
+
+    public synchronized void set(LocalDate start, LocalDate end) {
+        int from = toBit(start);
+        int to = toBit(end);
+        if (from >= to) {
+            return;
+        }
+        int startWord = from >>> ADDRESS_BITS_PER_WORD;
+        int endWord = (to - 1) >>> ADDRESS_BITS_PER_WORD;
+        ensureCapacity(endWord + 1);
+        long firstMask = WORD_MASK << from;
+        long lastMask = WORD_MASK >>> -to; // shift distance is taken mod 64, so this keeps the low (to % 64) bits
+        if (startWord == endWord) {
+            words[startWord] |= (firstMask & lastMask);
+            return;
+        }
+        words[startWord] |= firstMask;
+        for (int i = startWord + 1; i < endWord; i++) {
+            words[i] = WORD_MASK;
+        }
+        words[endWord] |= lastMask;
+    }
+
+    public synchronized void clear(LocalDate start, LocalDate end) {
+        int from = toBit(start);
+        int to = Math.min(toBit(end), words.length << ADDRESS_BITS_PER_WORD);
+        if (from >= to) {
+            return;
+        }
+        int startWord = from >>> ADDRESS_BITS_PER_WORD;
+        int endWord = (to - 1) >>> ADDRESS_BITS_PER_WORD;
+        long firstMask = WORD_MASK << from;
+        long lastMask = WORD_MASK >>> -to;
+        if (startWord == endWord) {
+            words[startWord] &= ~(firstMask & lastMask);
+            return;
+        }
+        words[startWord] &= ~firstMask;
+        for (int i = startWord + 1; i < endWord; i++) {
+            words[i] = 0;
+        }
+        words[endWord] &= ~lastMask;
+    }
+
+    // Returns true if any night in [start, end) is reserved.
+    public synchronized boolean intersects(LocalDate start, LocalDate end) {
+        int from = toBit(start);
+        int to = Math.min(toBit(end), words.length << ADDRESS_BITS_PER_WORD);
+        if (from >= to) {
+            return false;
+        }
+        int startWord = from >>> ADDRESS_BITS_PER_WORD;
+        int endWord = (to - 1) >>> ADDRESS_BITS_PER_WORD;
+        long firstMask = WORD_MASK << from;
+        long lastMask = WORD_MASK >>> -to;
+        if (startWord == endWord) {
+            return (words[startWord] & firstMask & lastMask) != 0;
+        }
+        if ((words[startWord] & firstMask) != 0) {
+            return true;
+        }
+        for (int i = startWord + 1; i < endWord; i++) {
+            if (words[i] != 0) {
+                return true;
+            }
+        }
+        return (words[endWord] & lastMask) != 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Calls action(start, end) for every run of consecutive reserved nights, in date order.
+    public synchronized void forEachRange(BiConsumer<LocalDate, LocalDate> action) {
+        int start = nextSetBit(0);
+        while (start >= 0) {
+            int end = nextClearBit(start);
+            action.accept(LocalDate.ofEpochDay(origin + start), LocalDate.ofEpochDay(origin + end));
+            start = nextSetBit(end);
+        }
+    }
+
+    // Calls action(start, end) for every run of consecutive free nights inside [start, end), in date order.
+    public synchronized void forEachFreeRange(LocalDate start, LocalDate end, BiConsumer<LocalDate, LocalDate> action) {
+        int from = toBit(start);
+        int to = toBit(end);
+        while (from < to) {
+            int reserved = nextSetBit(from);
+            int freeEnd = reserved < 0 ? to : Math.min(reserved, to);
+            if (freeEnd > from) {
+                action.accept(LocalDate.ofEpochDay(origin + from), LocalDate.ofEpochDay(origin + freeEnd));
+            }
+            if (freeEnd == to) {
+                return;
+            }
+            from = nextClearBit(reserved);
+        }
+    }
+
+    public LocalDate getOrigin() {
+        return LocalDate.ofEpochDay(origin);
+    }
+
+    private int toBit(LocalDate date) {
+        long offset = date.toEpochDay() - origin;
+        if (offset < 0) {
+            return 0;
+        }
+        return (int) Math.min(offset, Integer.MAX_VALUE - Long.SIZE);
+    }
+
+    private int nextSetBit(int from) {
+        int wordIndex = from >>> ADDRESS_BITS_PER_WORD;
+        if (wordIndex >= words.length) {
+            return -1;
+        }
+        long word = words[wordIndex] & (WORD_MASK << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+    }
+
+    private int nextClearBit(int from) {
+        int wordIndex = from >>> ADDRESS_BITS_PER_WORD;
+        if (wordIndex >= words.length) {
+            return from;
+        }
+        long word = ~words[wordIndex] & (WORD_MASK << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length) {
+                return wordIndex << ADDRESS_BITS_PER_WORD;
+            }
+            word = ~words[wordIndex];
+        }
+    }
+
+    private void ensureCapacity(int wordsRequired) {
+        if (words.length < wordsRequired) {
+            words = Arrays.copyOf(words, Math.max(2 * words.length, wordsRequired));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.tpd.staybooking.util;
+
+import org.elasticsearch.common.unit.DistanceUnit;
+
+/*
+Plain geo math for the embedded location backend: great circle distances and geohashes.
+A geohash cuts the world into a grid of 32 cells, each cell again into 32, and so on. The longer the hash the
+smaller the cell, and points with a common prefix are close to each other. Precision 5 cells are about 4.9 km wide.
+*/
+public final class GeoUtil {
+
+    public static final double EARTH_MEAN_RADIUS_KM = 6371.0088; // the value Elasticsearch uses as well
+    private static final String BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private GeoUtil() {
+    }
+
+    // Haversine formula, accurate to well below a meter for the distances we search.
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                        * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_MEAN_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Parses a distance such as "5km", "800m" or "3mi". A bare number is in kilometers, the same as the
+    // geo_distance filter in CustomLocationRepositoryImpl.
+    public static double parseDistanceKm(String distance) {
+        return DistanceUnit.parse(distance, DistanceUnit.KILOMETERS, DistanceUnit.KILOMETERS);
+    }
+
+    public static String geohash(double lat, double lon, int precision) {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true; // bits alternate between longitude and latitude, longitude first
+        int bit = 0;
+        int index = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (lon >= mid) {
+                    index = index * 2 + 1;
+                    minLon = mid;
+                } else {
+                    index = index * 2;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    index = index * 2 + 1;
+                    minLat = mid;
+                } else {
+                    index = index * 2;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE_32.charAt(index));
+                bit = 0;
+                index = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    // Height of a geohash cell in degrees of latitude.
+    public static double cellHeight(int precision) {
+        return 180.0 / (1L << (5 * precision / 2));
+    }
+
+    // Width of a geohash cell in degrees of longitude.
+    public static double cellWidth(int precision) {
+        return 360.0 / (1L << ((5 * precision + 1) / 2));
+    }
+}
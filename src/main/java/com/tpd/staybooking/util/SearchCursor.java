@@ -0,0 +1,42 @@
+package com.tpd.staybooking.util;
+
+import com.tpd.staybooking.exception.InvalidSearchPageException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/*
+Encodes the sort values of the last hit of a page (e.g. [distance, id]) into an opaque string the client sends back
+as "cursor". Elasticsearch continues right after that hit (search_after), so page 100 costs the same as page 1,
+unlike from/size paging which has to collect and skip every earlier hit.
+*/
+public final class SearchCursor {
+
+    private SearchCursor() {
+    }
+
+    public static String encode(List<Object> sortValues) {
+        String joined = sortValues.stream().map(String::valueOf).collect(Collectors.joining(","));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(joined.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static List<Object> decode(String cursor) throws InvalidSearchPageException {
+        List<Object> sortValues = new ArrayList<>();
+        try {
+            String joined = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            for (String value : joined.split(",")) {
+                if (value.contains(".") || value.contains("E") || value.contains("Infinity")) {
+                    sortValues.add(Double.parseDouble(value));
+                } else {
+                    sortValues.add(Long.parseLong(value));
+                }
+            }
+        } catch (IllegalArgumentException exception) { // NumberFormatException is an IllegalArgumentException
+            throw new InvalidSearchPageException("Invalid search cursor");
+        }
+        return sortValues;
+    }
+}
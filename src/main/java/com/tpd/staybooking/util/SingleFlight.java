@@ -0,0 +1,60 @@
+package com.tpd.staybooking.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+Runs at most one computation per key at a time. The first caller for a key computes the value on its own thread;
+callers that arrive with the same key while it is running wait for that result (or exception) instead of starting
+their own. Once the computation finishes the key is free again, so results are never reused afterwards, that is
+what a cache is for.
+putIfAbsent on a ConcurrentHashMap decides who computes, there is no lock around the computation itself.
+*/
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    public V execute(K key, Supplier<V> computation) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            collapsed.incrementAndGet();
+            return await(running);
+        }
+        try {
+            V value = computation.get();
+            own.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    // Requests that waited for another request's computation instead of running their own.
+    public long collapsed() {
+        return collapsed.get();
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause(); // the same exception the computing request got
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.tpd.staybooking.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+A hashed timer wheel: time is cut into ticks of tickMillis, and a timeout due at tick t goes into bucket t % size.
+Scheduling and cancelling are O(1), and advancing by one tick only looks at one bucket, instead of a priority queue
+(O(log n) per operation) or scanning every timeout. Timeouts due more than one turn of the wheel ahead share the
+bucket with earlier ones and are skipped until their turn comes. Expiry is precise to one tick.
+The caller drives the wheel by calling advance() at least once per tick, e.g. from a scheduled task.
+*/
+public class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final List<Set<Timeout<T>>> buckets;
+    private long currentTick; // every tick up to and including this one has been processed
+
+    public TimerWheel(long tickMillis, int size, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+    }
+
+    public synchronized Timeout<T> schedule(T item, long deadlineMillis) {
+        long deadlineTick = Math.max(currentTick + 1, Math.floorDiv(deadlineMillis - startMillis + tickMillis - 1,
+                tickMillis)); // rounded up, a timeout never fires early
+        Timeout<T> timeout = new Timeout<>(item, deadlineTick, bucketOf(deadlineTick));
+        buckets.get(timeout.bucket).add(timeout);
+        return timeout;
+    }
+
+    // Returns false if the timeout already fired or was cancelled.
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        return buckets.get(timeout.bucket).remove(timeout);
+    }
+
+    // Removes and returns the items of every timeout that is due at nowMillis.
+    public synchronized List<T> advance(long nowMillis) {
+        long nowTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        List<T> expired = new ArrayList<>();
+        // After a long pause one turn of the wheel visits every bucket, there is no need to go round again.
+        long from = Math.max(currentTick + 1, nowTick - buckets.size() + 1);
+        for (long tick = from; tick <= nowTick; tick++) {
+            Set<Timeout<T>> bucket = buckets.get(bucketOf(tick));
+            bucket.removeIf(timeout -> {
+                if (timeout.deadlineTick > nowTick) {
+                    return false; // due in a later turn of the wheel
+                }
+                expired.add(timeout.item);
+                return true;
+            });
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+
+    public synchronized int size() {
+        return buckets.stream().mapToInt(Set::size).sum();
+    }
+
+    private int bucketOf(long tick) {
+        return (int) Math.floorMod(tick, (long) buckets.size());
+    }
+
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadlineTick;
+        private final int bucket;
+
+        private Timeout(T item, long deadlineTick, int bucket) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+            this.bucket = bucket;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+}
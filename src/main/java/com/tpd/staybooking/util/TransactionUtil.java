@@ -0,0 +1,28 @@
+package com.tpd.staybooking.util;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/*
+In-memory structures (indexes, caches) must only change once the database change they mirror is committed,
+otherwise a rolled back reservation would still show up as reserved. afterCommit() defers the action until the
+surrounding transaction commits, and runs it right away when there is no transaction.
+*/
+public final class TransactionUtil {
+
+    private TransactionUtil() {
+    }
+
+    public static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,41 @@
+-- Moves the primary key of stay_image from url to a generated id, so several rows can point at the same
+-- content-addressed image. ddl-auto=update adds new columns and indexes but never changes an existing primary key,
+-- so databases created before images were shared need this once. Run it against MySQL before starting the new
+-- version; the application refuses to start while url is still the primary key. Columns and the index that
+-- ddl-auto=update may already have added (if the new version was started before) are only added when missing.
+
+SET @add_id := IF((SELECT COUNT(*) FROM information_schema.columns
+        WHERE table_schema = DATABASE() AND table_name = 'stay_image' AND column_name = 'id') = 0,
+    'ALTER TABLE stay_image ADD COLUMN id BIGINT NULL', 'DO 0');
+PREPARE statement FROM @add_id;
+EXECUTE statement;
+DEALLOCATE PREPARE statement;
+
+-- The name in the image store came with the image sizes. Older rows get it from their URL: the last path segment,
+-- without the query string of a GCS media link.
+SET @add_name := IF((SELECT COUNT(*) FROM information_schema.columns
+        WHERE table_schema = DATABASE() AND table_name = 'stay_image' AND column_name = 'name') = 0,
+    'ALTER TABLE stay_image ADD COLUMN name VARCHAR(255) NULL', 'DO 0');
+PREPARE statement FROM @add_name;
+EXECUTE statement;
+DEALLOCATE PREPARE statement;
+
+UPDATE stay_image SET name = SUBSTRING_INDEX(SUBSTRING_INDEX(url, '?', 1), '/', -1) WHERE name IS NULL;
+
+SET @id := 0;
+UPDATE stay_image SET id = (@id := @id + 1) ORDER BY url;
+
+ALTER TABLE stay_image
+    MODIFY id BIGINT NOT NULL,
+    DROP PRIMARY KEY,
+    ADD PRIMARY KEY (id);
+
+SET @add_index := IF((SELECT COUNT(*) FROM information_schema.statistics
+        WHERE table_schema = DATABASE() AND table_name = 'stay_image' AND index_name = 'idx_stay_image_name') = 0,
+    'CREATE INDEX idx_stay_image_name ON stay_image (name)', 'DO 0');
+PREPARE statement FROM @add_index;
+EXECUTE statement;
+DEALLOCATE PREPARE statement;
+
+-- StayImage ids come from hibernate_sequence like the other entities, keep them clear of the numbered rows.
+UPDATE hibernate_sequence SET next_val = GREATEST(next_val, @id + 1);
@@ -0,0 +1,114 @@
+package com.tpd.staybooking.repository;
+
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.GeoHit;
+import com.tpd.staybooking.model.Location;
+import com.tpd.staybooking.util.GeoUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.geo.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The grid only probes the cells that overlap the bounding box of the search circle, so a stay in a cell it misses
+would silently drop out of the results. Every search is compared with a scan over all stays, walked page by page.
+*/
+class EmbeddedLocationRepositoryTest {
+
+    private final Random random = new Random(17);
+    private final Map<Long, double[]> stays = new HashMap<>();
+    private EmbeddedLocationRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        repository = new EmbeddedLocationRepository(null); // only load() reads the stay table
+    }
+
+    @Test
+    void radiusSearchFindsExactlyTheStaysWithinTheDistance() {
+        // Spread over 4 x 4 degrees, so there are many more cells than a search probes.
+        for (long id = 1; id <= 5000; id++) {
+            add(id, 45 + 4 * random.nextDouble(), 5 + 4 * random.nextDouble());
+        }
+        for (int i = 0; i < 200; i++) {
+            double lat = 45 + 4 * random.nextDouble();
+            double lon = 5 + 4 * random.nextDouble();
+            int radiusKm = 1 + random.nextInt(40);
+            assertSameAsScan(lat, lon, radiusKm + "km", radiusKm, 1 + random.nextInt(50));
+        }
+    }
+
+    @Test
+    void searchesNearTheAntimeridianAndThePoles() {
+        for (long id = 1; id <= 2000; id++) {
+            add(id, -60 + 10 * random.nextDouble(), 179 + 2 * random.nextDouble() - (random.nextBoolean() ? 0 : 360));
+        }
+        for (long id = 2001; id <= 3000; id++) {
+            add(id, 88 + 2 * random.nextDouble(), -180 + 360 * random.nextDouble());
+        }
+        for (int i = 0; i < 50; i++) {
+            assertSameAsScan(-55, 179.9, "100km", 100, 25);
+            assertSameAsScan(-55, -179.9, "100km", 100, 25);
+            assertSameAsScan(89.5, 10 * i, "200km", 200, 40);
+        }
+    }
+
+    @Test
+    void movedAndRemovedStaysLeaveTheirOldCell() {
+        add(1L, 48.0, 8.0);
+        add(2L, 48.0, 8.001);
+        add(1L, 40.0, 2.0);
+        repository.remove(2L);
+        stays.remove(2L);
+
+        assertTrue(repository.searchByDistance(48.0, 8.0, "10km", 10, null).getItems().isEmpty());
+        assertEquals(List.of(1L), ids(repository.searchByDistance(40.0, 2.0, "1km", 10, null).getItems()));
+    }
+
+    private void add(Long id, double lat, double lon) {
+        stays.put(id, new double[] { lat, lon });
+        repository.index(new Location(id, new GeoPoint(lat, lon)));
+    }
+
+    private void assertSameAsScan(double lat, double lon, String distance, double radiusKm, int pageSize) {
+        List<Long> expected = stays.entrySet().stream()
+                .filter(stay -> distance(lat, lon, stay.getValue()) <= radiusKm)
+                .sorted(Comparator.comparingDouble((Map.Entry<Long, double[]> stay) -> distance(lat, lon,
+                        stay.getValue())).thenComparing(Map.Entry::getKey))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        List<Long> actual = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPage<GeoHit> page = repository.searchByDistance(lat, lon, distance, pageSize, cursor);
+            assertTrue(page.getItems().size() <= pageSize);
+            actual.addAll(ids(page.getItems()));
+            cursor = page.getNextCursor();
+            if (page.getItems().size() < pageSize) {
+                assertNull(cursor);
+            }
+        } while (cursor != null);
+
+        assertEquals(expected, actual, "(" + lat + ", " + lon + ") within " + distance);
+    }
+
+    private static double distance(double lat, double lon, double[] stay) {
+        return GeoUtil.distanceKm(lat, lon, stay[0], stay[1]);
+    }
+
+    private static List<Long> ids(List<GeoHit> hits) {
+        return hits.stream().map(GeoHit::getId).collect(Collectors.toList());
+    }
+}
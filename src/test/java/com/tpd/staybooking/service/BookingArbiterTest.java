@@ -0,0 +1,188 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.ReservationCollisionException;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookingArbiterTest {
+
+    private static final int STAYS = 16;
+    private static final int NIGHTS = 60;
+    private static final int REQUESTS = 5000;
+    private static final int THREADS = 64;
+
+    /*
+     * A reserved date store without any locking of its own: check, give other threads a chance to run, then write.
+     * Every booking that gets through increments its nights, so a night above 1 is a double booking.
+     */
+    private static class FakeReservedDateStore {
+        private final ConcurrentMap<Long, AtomicIntegerArray> nights = new ConcurrentHashMap<>();
+
+        boolean tryReserve(Long stayId, int start, int end) {
+            AtomicIntegerArray reserved = nights.computeIfAbsent(stayId, id -> new AtomicIntegerArray(NIGHTS));
+            for (int night = start; night < end; night++) {
+                if (reserved.get(night) > 0) {
+                    return false;
+                }
+            }
+            Thread.yield(); // widen the gap between the check and the write
+            for (int night = start; night < end; night++) {
+                reserved.incrementAndGet(night);
+            }
+            return true;
+        }
+
+        int maxBookingsPerNight() {
+            int max = 0;
+            for (AtomicIntegerArray reserved : nights.values()) {
+                for (int night = 0; night < NIGHTS; night++) {
+                    max = Math.max(max, reserved.get(night));
+                }
+            }
+            return max;
+        }
+    }
+
+    @Test
+    void parallelBookingsNeverDoubleBook() throws Exception {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 10_000);
+        FakeReservedDateStore store = new FakeReservedDateStore();
+        AtomicInteger booked = new AtomicInteger();
+        AtomicInteger collisions = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long stayId = random.nextInt(STAYS);
+                int checkin = random.nextInt(NIGHTS - 1);
+                int checkout = Math.min(NIGHTS, checkin + 1 + random.nextInt(5));
+                start.await();
+                try {
+                    arbiter.book(stayId, () -> {
+                        if (!store.tryReserve(stayId, checkin, checkout)) {
+                            throw new ReservationCollisionException("Duplicate reservation");
+                        }
+                        return null;
+                    });
+                    booked.incrementAndGet();
+                } catch (ReservationCollisionException e) {
+                    collisions.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(REQUESTS, booked.get() + collisions.get());
+        assertTrue(booked.get() > 0);
+        assertTrue(collisions.get() > 0);
+        assertEquals(1, store.maxBookingsPerNight());
+    }
+
+    @Test
+    void retriesTransientFailuresAndThenSucceeds() {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 1000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = arbiter.book(1L, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new CannotAcquireLockException("Deadlock found when trying to get lock");
+            }
+            return "booked";
+        });
+
+        assertEquals("booked", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void mapsDuplicateKeysToCollisionAfterLastAttempt() {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 1000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(ReservationCollisionException.class, () -> arbiter.book(1L, () -> {
+            attempts.incrementAndGet();
+            throw new DuplicateKeyException("Duplicate entry for key 'PRIMARY'");
+        }));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void recognizesDuplicateKeysBehindJpaExceptions() {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 1000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        // What Hibernate's ConstraintViolationException becomes after Spring's JPA exception translation.
+        assertThrows(ReservationCollisionException.class, () -> arbiter.book(1L, () -> {
+            attempts.incrementAndGet();
+            throw new DataIntegrityViolationException("could not execute statement",
+                    new SQLIntegrityConstraintViolationException("Duplicate entry '1-2030-01-01' for key 'PRIMARY'",
+                            "23000", 1062));
+        }));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void otherIntegrityViolationsAreNeitherRetriedNorCollisions() {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 1000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(DataIntegrityViolationException.class, () -> arbiter.book(1L, () -> {
+            attempts.incrementAndGet();
+            throw new DataIntegrityViolationException("could not execute statement",
+                    new SQLIntegrityConstraintViolationException("Cannot add or update a child row: a foreign key "
+                            + "constraint fails", "23000", 1452));
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void differentStaysDoNotWaitForEachOther() throws Exception {
+        BookingArbiter arbiter = new BookingArbiter(64, 3, 100);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread slowBooking = new Thread(() -> arbiter.book(1L, () -> {
+            holding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+        slowBooking.start();
+        holding.await();
+
+        assertEquals("other stay", arbiter.book(2L, () -> "other stay"));
+        assertThrows(ReservationCollisionException.class, () -> arbiter.book(1L, () -> "same stay"));
+
+        release.countDown();
+        slowBooking.join();
+    }
+}
@@ -0,0 +1,232 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.model.ImageRelease;
+import com.tpd.staybooking.model.ImageSize;
+import com.tpd.staybooking.repository.ImageReleaseRepository;
+import com.tpd.staybooking.repository.ImageStore;
+import com.tpd.staybooking.repository.StayImageRepository;
+import com.tpd.staybooking.util.BoundedExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The release and sweep of shared images. image_release is a map with a lock per row that is held until the end of
+the transaction, like SELECT ... FOR UPDATE, and the image store is a set of names. Which stays reference an image
+is set by the test.
+*/
+class ImageStorageServiceTest {
+
+    private final Map<String, Long> releases = new ConcurrentHashMap<>(); // name -> eligible_at
+    private final Map<String, ReentrantLock> rowLocks = new ConcurrentHashMap<>();
+    private final ThreadLocal<List<ReentrantLock>> heldLocks = ThreadLocal.withInitial(ArrayList::new);
+    private final Set<String> objects = ConcurrentHashMap.newKeySet();
+    private final Set<String> referenced = ConcurrentHashMap.newKeySet();
+
+    private BoundedExecutor uploadExecutor;
+    private BoundedExecutor variantExecutor;
+    private ImageStorageService imageStorageService;
+
+    @BeforeEach
+    void setUp() {
+        ImageReleaseRepository imageReleaseRepository = fake(ImageReleaseRepository.class, (name, args) -> {
+            switch (name) {
+                case "upsert":
+                    lockRow((String) args[0]);
+                    releases.merge((String) args[0], (Long) args[1], Math::max);
+                    unlockRows(); // its own transaction
+                    return null;
+                case "postpone":
+                    lockRow((String) args[0]);
+                    int updated = releases.computeIfPresent((String) args[0], (key, value) -> (Long) args[1]) != null
+                            ? 1 : 0;
+                    unlockRows();
+                    return updated;
+                case "findDue":
+                    return releases.entrySet().stream()
+                            .filter(release -> release.getValue() <= (Long) args[0]
+                                    && release.getKey().compareTo((String) args[1]) > 0)
+                            .map(Map.Entry::getKey)
+                            .sorted()
+                            .collect(Collectors.toList());
+                case "findByNameForUpdate":
+                    lockRow((String) args[0]);
+                    Long eligibleAt = releases.get(args[0]);
+                    Thread.yield(); // give a reuse the chance to run in between
+                    return eligibleAt == null ? null : new ImageRelease((String) args[0], eligibleAt);
+                case "delete":
+                    releases.remove(((ImageRelease) args[0]).getName());
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        StayImageRepository stayImageRepository = fake(StayImageRepository.class, (name, args) -> {
+            if (!name.equals("findReferencedNames")) {
+                throw new UnsupportedOperationException(name);
+            }
+            return ((Collection<?>) args[0]).stream().filter(referenced::contains).collect(Collectors.toList());
+        });
+        ImageStore imageStore = fake(ImageStore.class, (name, args) -> {
+            switch (name) {
+                case "find":
+                    return objects.contains(args[0]) ? "https://images/" + args[0] : null;
+                case "save":
+                    try {
+                        ((InputStream) args[2]).transferTo(OutputStream.nullOutputStream());
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    objects.add((String) args[0]);
+                    return "https://images/" + args[0];
+                case "delete":
+                    Thread.yield();
+                    objects.remove(args[0]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        // Commits by releasing the row locks the transaction took.
+        TransactionTemplate transactionTemplate = new TransactionTemplate() {
+            @Override
+            public <T> T execute(TransactionCallback<T> action) {
+                try {
+                    return action.doInTransaction(null);
+                } finally {
+                    unlockRows();
+                }
+            }
+        };
+        uploadExecutor = new BoundedExecutor("upload", 4, 64);
+        variantExecutor = new BoundedExecutor("variant", 1, 4);
+        ImageVariantService imageVariantService = new ImageVariantService(imageStore, variantExecutor,
+                new SimpleMeterRegistry(), 1 << 20, 1000);
+        imageStorageService = new ImageStorageService(imageStore, uploadExecutor, stayImageRepository,
+                imageVariantService, imageReleaseRepository, transactionTemplate);
+        ReflectionTestUtils.setField(imageStorageService, "uploadTimeoutMillis", 10_000L);
+        ReflectionTestUtils.setField(imageStorageService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(imageStorageService, "cleanupDelaySeconds", 10L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadExecutor.shutdown();
+        variantExecutor.shutdown();
+    }
+
+    @Test
+    void equalImagesAreStoredOnce() {
+        String first = upload(new byte[] { 1, 2, 3 });
+        String second = upload(new byte[] { 1, 2, 3 });
+        String other = upload(new byte[] { 4, 5, 6 });
+
+        assertEquals(first, second);
+        assertNotEquals(first, other);
+        assertEquals(Set.of(first, other), objects);
+    }
+
+    @Test
+    void sweepDeletesDueImagesThatNoStayReferences() {
+        String unused = upload(new byte[] { 1 });
+        String used = upload(new byte[] { 2 });
+        String notDue = upload(new byte[] { 3 });
+        objects.add(ImageSize.values()[0].variantName(unused));
+        referenced.add(used);
+        imageStorageService.release(List.of(unused, used, notDue));
+        releases.put(unused, 0L);
+        releases.put(used, 0L);
+
+        imageStorageService.sweep();
+
+        assertEquals(Set.of(used, notDue), objects);
+        assertEquals(Set.of(notDue), releases.keySet());
+    }
+
+    @Test
+    void reuseRestartsTheDelayOfAReleasedImage() {
+        String name = upload(new byte[] { 1 });
+        releases.put(name, 0L); // due
+
+        upload(new byte[] { 1 });
+        imageStorageService.sweep();
+
+        assertTrue(objects.contains(name));
+        assertTrue(releases.get(name) > System.currentTimeMillis());
+    }
+
+    /*
+     * The sweep deletes an image while a new stay reuses it. Whichever gets the image_release row first, the image
+     * must exist once the upload has returned.
+     */
+    @Test
+    void reuseRacingTheSweepNeverLosesTheImage() {
+        byte[] image = { 7, 7, 7 };
+        for (int round = 0; round < 500; round++) {
+            String name = upload(image);
+            releases.put(name, 0L);
+            CompletableFuture<Void> sweep = CompletableFuture.runAsync(imageStorageService::sweep);
+            String reused = upload(image);
+            sweep.join();
+
+            assertTrue(objects.contains(reused), "round " + round);
+        }
+    }
+
+    private String upload(byte[] image) {
+        MockMultipartFile file = new MockMultipartFile("images", "image.jpg", "image/jpeg", image);
+        return imageStorageService.saveAll(new MockMultipartFile[] { file }).get(0).getName();
+    }
+
+    private void lockRow(String name) {
+        ReentrantLock lock = rowLocks.computeIfAbsent(name, key -> new ReentrantLock());
+        lock.lock();
+        heldLocks.get().add(lock);
+    }
+
+    private void unlockRows() {
+        List<ReentrantLock> locks = heldLocks.get();
+        Collections.reverse(locks);
+        locks.forEach(ReentrantLock::unlock);
+        locks.clear();
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("equals") ? proxy == args[0]
+                        : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getName();
+            }
+            return handler.handle(method.getName(), args);
+        });
+    }
+}
@@ -0,0 +1,309 @@
+package com.tpd.staybooking.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tpd.staybooking.exception.InvalidReservationImportException;
+import com.tpd.staybooking.model.Reservation;
+import com.tpd.staybooking.model.ReservationImportResult;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.repository.CustomLocationRepository;
+import com.tpd.staybooking.repository.ReservationRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Parsing and the collision checks of the bulk import, with the persistence replaced by in-memory fakes. Stays 1 to 5
+exist. Results are compared as "line status" strings in the order they were reported.
+*/
+class ReservationImportServiceTest {
+
+    private static final LocalDate DAY = LocalDate.now().plusDays(30);
+    private static final Set<Long> STAY_IDS = Set.of(1L, 2L, 3L, 4L, 5L);
+
+    private List<ReservedRange> reserved;
+    private List<Reservation> saved;
+    private Long failingStayId; // reserveAll of a chunk with this stay fails like a duplicate key
+    private AvailabilityIndex availabilityIndex;
+    private ReservationHoldService reservationHoldService;
+    private ReservationImportService importService;
+
+    // Real transaction synchronization (so afterCommit callbacks run), without a database.
+    private static class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        reserved = new ArrayList<>();
+        saved = new ArrayList<>();
+        failingStayId = null;
+        ReservedDateStore reservedDateStore = fake(ReservedDateStore.class, (name, args) -> {
+            switch (name) {
+                case "findRanges":
+                    List<?> stayIds = (List<?>) args[0];
+                    LocalDate start = (LocalDate) args[1];
+                    LocalDate end = (LocalDate) args[2];
+                    return reserved.stream()
+                            .filter(range -> stayIds.contains(range.getStayId())
+                                    && range.getStartDate().isBefore(end) && start.isBefore(range.getEndDate()))
+                            .collect(Collectors.toList());
+                case "findRangesEndingAfter":
+                    return List.copyOf(reserved);
+                case "reserveAll":
+                    @SuppressWarnings("unchecked")
+                    List<ReservedRange> ranges = (List<ReservedRange>) args[0];
+                    if (ranges.stream().anyMatch(range -> range.getStayId().equals(failingStayId))) {
+                        throw new DuplicateKeyException("Duplicate entry for key 'PRIMARY'");
+                    }
+                    reserved.addAll(ranges);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        AtomicLong ids = new AtomicLong();
+        ReservationRepository reservationRepository = fake(ReservationRepository.class, (name, args) -> {
+            if (!name.equals("saveAll")) {
+                throw new UnsupportedOperationException(name);
+            }
+            for (Object reservation : (Iterable<?>) args[0]) {
+                setId(reservation, ids.incrementAndGet()); // what Hibernate does on insert
+                saved.add((Reservation) reservation);
+            }
+            return args[0];
+        });
+        StayRepository stayRepository = fake(StayRepository.class, (name, args) -> {
+            switch (name) {
+                case "findExistingIds":
+                    return ((List<?>) args[0]).stream().filter(STAY_IDS::contains).collect(Collectors.toList());
+                case "findAllByIdForUpdate":
+                    return List.of();
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        CustomLocationRepository locationRepository = fake(CustomLocationRepository.class,
+                (name, args) -> name.equals("ensureMapping") ? false : null);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        availabilityIndex = new AvailabilityIndex(reservedDateStore);
+        SearchResultCache searchResultCache = new SearchResultCache(meterRegistry, true, 100, 60, "index");
+        reservationHoldService = new ReservationHoldService(availabilityIndex, searchResultCache, meterRegistry,
+                1000, 3);
+        LocationSyncService locationSyncService = new LocationSyncService(locationRepository, stayRepository,
+                availabilityIndex, null);
+        importService = new ReservationImportService(reservationRepository, reservedDateStore, stayRepository,
+                availabilityIndex, locationSyncService, searchResultCache, new BookingArbiter(64, 1, 1000),
+                new TransactionTemplate(new NoOpTransactionManager()), new ObjectMapper(), reservationHoldService,
+                10, 2);
+    }
+
+    @Test
+    void csvHeaderInAnyColumnOrderAndBlankLines() throws IOException {
+        List<String> results = importCsv("\n"
+                + " checkout_date , stay_id,checkin_date\n"
+                + "\n"
+                + date(3) + ",1," + date(1) + "\n"
+                + "   \n"
+                + date(5) + ",2," + date(2));
+
+        assertEquals(List.of("4 created", "6 created"), results);
+        assertEquals(DAY.plusDays(1), saved.get(0).getCheckinDate());
+        assertEquals(DAY.plusDays(3), saved.get(0).getCheckoutDate());
+        assertEquals(2L, saved.get(1).getStay().getId());
+    }
+
+    @Test
+    void csvWithoutHeader() throws IOException {
+        assertEquals(List.of("2 invalid", "1 created"), importCsv("1," + date(1) + "," + date(3) + "\n2," + date(1)));
+    }
+
+    @Test
+    void csvHeaderWithoutAllColumnsIsRejected() {
+        assertThrows(InvalidReservationImportException.class,
+                () -> importCsv("stay_id,checkin\n1," + date(1) + "," + date(3)));
+    }
+
+    @Test
+    void fileWithMoreThanMaxRowsIsRejected() throws IOException {
+        StringBuilder file = new StringBuilder("stay_id,checkin_date,checkout_date\n");
+        for (int i = 0; i < 10; i++) {
+            file.append(1 + i % 5).append(',').append(date(2 * i)).append(',').append(date(2 * i + 1)).append('\n');
+        }
+        assertEquals(10, importService.parse(input(file.toString()), true).size());
+
+        file.append("1,").append(date(40)).append(',').append(date(41));
+        assertThrows(InvalidReservationImportException.class, () -> importService.parse(input(file.toString()), true));
+    }
+
+    @Test
+    void invalidNdjsonLinesAreReportedAndTheRestIsImported() throws IOException {
+        List<ReservationImportResult> results = importNdjson(
+                json(1, date(1), date(2)) + "\n"
+                        + "{\"stay_id\": 1, \"checkin_date\": \n"
+                        + "{\"stay_id\": 1, \"checkin_date\": \"" + date(4) + "\"}\n"
+                        + json(1, "2030-02-30", date(5)) + "\n"
+                        + json(1, date(5), date(5)) + "\n"
+                        + json(1, LocalDate.now().minusDays(1).toString(), date(1)) + "\n"
+                        + "{\"stay_id\": \"x\", \"checkin_date\": \"" + date(6) + "\", \"checkout_date\": \"" + date(7)
+                        + "\"}\n"
+                        + json(1, date(8), date(9)));
+
+        assertEquals(List.of("2 invalid", "3 invalid", "4 invalid", "5 invalid", "6 invalid", "7 invalid",
+                "1 created", "8 created"), statuses(results));
+        assertEquals("Malformed JSON", results.get(0).getMessage());
+        assertEquals("stay_id, checkin_date and checkout_date are required", results.get(1).getMessage());
+        assertNotNull(results.get(6).getReservationId());
+        assertEquals(2, saved.size());
+    }
+
+    @Test
+    void unknownStaysAreNotFound() throws IOException {
+        assertEquals(List.of("1 stay_not_found", "2 created"),
+                statuses(importNdjson(json(99, date(1), date(2)) + "\n" + json(1, date(1), date(2)))));
+    }
+
+    @Test
+    void rowsCollideWithStoredReservationsAndWithEarlierRowsOfTheFile() throws IOException {
+        reserved.add(new ReservedRange(1L, DAY.plusDays(10), DAY.plusDays(12)));
+
+        List<String> results = statuses(importNdjson(
+                json(1, date(11), date(13)) + "\n" // the stored reservation
+                        + json(1, date(12), date(14)) + "\n" // starts on its checkout day
+                        + json(1, date(13), date(15)) + "\n" // overlaps the row before
+                        + json(1, date(14), date(16)) + "\n" // starts on that row's checkout day
+                        + json(2, date(11), date(13))));
+
+        assertEquals(List.of("1 collision", "3 collision", "2 created", "4 created", "5 created"), results);
+    }
+
+    @Test
+    void collisionsAreCheckedAgainstTheLoadedIndexToo() throws IOException {
+        reserved.add(new ReservedRange(3L, DAY.plusDays(1), DAY.plusDays(2)));
+        availabilityIndex.rebuild();
+
+        assertEquals(List.of("1 collision"), statuses(importNdjson(json(3, date(0), date(5)))));
+    }
+
+    @Test
+    void failedChunkReportsItsRowsAndOtherChunksAreWritten() throws IOException {
+        failingStayId = 3L;
+
+        List<String> results = statuses(importNdjson(
+                json(1, date(1), date(2)) + "\n"
+                        + json(2, date(1), date(2)) + "\n"
+                        + json(3, date(1), date(2)) + "\n" // chunks hold two rows
+                        + json(4, date(1), date(2)) + "\n"
+                        + json(5, date(1), date(2))));
+
+        assertEquals(List.of("1 created", "2 created", "3 failed", "4 failed", "5 created"), results);
+        assertEquals(3, saved.size());
+        assertTrue(availabilityIndex.isAvailable(4L, DAY.plusDays(1), DAY.plusDays(2)));
+    }
+
+    @Test
+    void anotherGuestsHoldCollidesButTheImportersOwnHoldDoesNot() throws IOException {
+        reservationHoldService.place(1L, "other", DAY.plusDays(1), DAY.plusDays(3), 10);
+        reservationHoldService.place(2L, "host", DAY.plusDays(1), DAY.plusDays(3), 10);
+
+        assertEquals(List.of("1 collision", "2 created"),
+                statuses(importNdjson(json(1, date(2), date(4)) + "\n" + json(2, date(2), date(4)))));
+    }
+
+    private List<String> importCsv(String file) throws IOException {
+        return statuses(importFile(file, true));
+    }
+
+    private List<ReservationImportResult> importNdjson(String file) throws IOException {
+        return importFile(file, false);
+    }
+
+    private List<ReservationImportResult> importFile(String file, boolean csv) throws IOException {
+        List<ReservationImportResult> results = new ArrayList<>();
+        importService.importRows(importService.parse(input(file), csv), "host", results::add);
+        return results;
+    }
+
+    private static List<String> statuses(List<ReservationImportResult> results) {
+        return results.stream().map(result -> result.getLine() + " " + result.getStatus())
+                .collect(Collectors.toList());
+    }
+
+    private static String json(long stayId, String checkinDate, String checkoutDate) {
+        return "{\"stay_id\": " + stayId + ", \"checkin_date\": \"" + checkinDate + "\", \"checkout_date\": \""
+                + checkoutDate + "\"}";
+    }
+
+    private static String date(int days) {
+        return DAY.plusDays(days).toString();
+    }
+
+    private static ByteArrayInputStream input(String file) {
+        return new ByteArrayInputStream(file.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void setId(Object reservation, long id) {
+        try {
+            Field field = Reservation.class.getDeclaredField("id");
+            field.setAccessible(true);
+            field.set(reservation, id);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("equals") ? proxy == args[0]
+                        : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getName();
+            }
+            return handler.handle(method.getName(), args);
+        });
+    }
+}
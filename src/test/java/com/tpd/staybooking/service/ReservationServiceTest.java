@@ -0,0 +1,413 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.ReservationCollisionException;
+import com.tpd.staybooking.exception.ReservationNotFoundException;
+import com.tpd.staybooking.model.DateRange;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Reservation;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayCalendar;
+import com.tpd.staybooking.model.User;
+import com.tpd.staybooking.repository.CustomLocationRepository;
+import com.tpd.staybooking.repository.ReservationRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The booking path of ReservationService as it runs in the application: BookingArbiter, a TransactionTemplate with
+after-commit callbacks, the hold check, the AvailabilityIndex and the search cache. Only the persistence underneath
+is replaced, by in-memory stores that do no locking of their own, so any double booking comes from the service.
+*/
+class ReservationServiceTest {
+
+    private static final Long STAY_ID = 1L;
+    private static final int THREADS = 32;
+
+    private FakeReservedDateStore reservedDateStore;
+    private Map<Long, Reservation> reservations;
+    private AvailabilityIndex availabilityIndex;
+    private ReservationHoldService reservationHoldService;
+    private ReservationService reservationService;
+    private volatile boolean failSave;
+
+    // Reserved nights in a map, check and write are separate steps with a gap in between, like two queries.
+    private static class FakeReservedDateStore implements ReservedDateStore {
+        private final Map<Long, Map<LocalDate, AtomicInteger>> nights = new ConcurrentHashMap<>();
+
+        @Override
+        public Set<Long> findReservedStayIds(List<Long> stayIds, LocalDate start, LocalDate end) {
+            Set<Long> reserved = new HashSet<>();
+            for (Long stayId : stayIds) {
+                for (LocalDate night = start; night.isBefore(end); night = night.plusDays(1)) {
+                    if (count(stayId, night) > 0) {
+                        reserved.add(stayId);
+                    }
+                }
+            }
+            Thread.yield(); // widen the gap between the check and the write
+            return reserved;
+        }
+
+        @Override
+        public List<ReservedRange> findRanges(List<Long> stayIds, LocalDate start, LocalDate end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reserve(Stay stay, LocalDate start, LocalDate end) {
+            for (LocalDate night = start; night.isBefore(end); night = night.plusDays(1)) {
+                nights.computeIfAbsent(stay.getId(), id -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(night, date -> new AtomicInteger())
+                        .incrementAndGet();
+            }
+        }
+
+        @Override
+        public void reserveAll(List<ReservedRange> ranges) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void release(Long stayId, LocalDate start, LocalDate end) {
+            for (LocalDate night = start; night.isBefore(end); night = night.plusDays(1)) {
+                AtomicInteger count = nights.getOrDefault(stayId, Map.of()).get(night);
+                if (count != null) {
+                    count.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void releaseAll(Long stayId) {
+            nights.remove(stayId);
+        }
+
+        @Override
+        public List<ReservedRange> findRangesEndingAfter(LocalDate date) {
+            return List.of();
+        }
+
+        int count(Long stayId, LocalDate night) {
+            AtomicInteger count = nights.getOrDefault(stayId, Map.of()).get(night);
+            return count == null ? 0 : count.get();
+        }
+
+        int maxBookingsPerNight() {
+            int max = 0;
+            for (Map<LocalDate, AtomicInteger> stayNights : nights.values()) {
+                for (AtomicInteger count : stayNights.values()) {
+                    max = Math.max(max, count.get());
+                }
+            }
+            return max;
+        }
+    }
+
+    // Real transaction synchronization (so afterCommit callbacks run, or not), without a database.
+    private static class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        reservedDateStore = new FakeReservedDateStore();
+        reservations = new ConcurrentHashMap<>();
+        AtomicLong ids = new AtomicLong();
+        ReservationRepository reservationRepository = fake(ReservationRepository.class, (name, args) -> {
+            switch (name) {
+                case "save":
+                    if (failSave) {
+                        throw new IllegalStateException("insert failed");
+                    }
+                    Reservation reservation = (Reservation) args[0];
+                    Long id = reservation.getId() != null ? reservation.getId() : ids.incrementAndGet();
+                    reservations.put(id, copy(reservation, id));
+                    return reservation;
+                case "findByIdAndGuest_Username":
+                    // The stored object itself, so setDates() is kept like a change of a managed entity.
+                    Reservation found = reservations.get((Long) args[0]);
+                    return found == null || !found.getGuest().getUsername().equals(args[1]) ? null : found;
+                case "delete":
+                    reservations.remove(((Reservation) args[0]).getId());
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        StayRepository stayRepository = fake(StayRepository.class, (name, args) -> {
+            switch (name) {
+                case "findByIdForUpdate":
+                    return STAY_ID.equals(args[0]) ? new Stay.Builder().setId(STAY_ID).build() : null;
+                case "existsById":
+                    return STAY_ID.equals(args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        // An index that is up to date, search reads availability from the AvailabilityIndex.
+        CustomLocationRepository locationRepository = fake(CustomLocationRepository.class,
+                (name, args) -> name.equals("ensureMapping") ? false : null);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        availabilityIndex = new AvailabilityIndex(reservedDateStore);
+        availabilityIndex.rebuild();
+        SearchResultCache searchResultCache = new SearchResultCache(meterRegistry, true, 100, 60, "index");
+        reservationHoldService = new ReservationHoldService(availabilityIndex, searchResultCache, meterRegistry,
+                1000, 3);
+        LocationSyncService locationSyncService = new LocationSyncService(locationRepository, stayRepository,
+                availabilityIndex, null);
+        reservationService = new ReservationService(reservationRepository, reservedDateStore, availabilityIndex,
+                locationSyncService, searchResultCache, stayRepository, new BookingArbiter(64, 3, 10_000),
+                new TransactionTemplate(new NoOpTransactionManager()), reservationHoldService);
+    }
+
+    @Test
+    void concurrentOverlappingBookingsLetExactlyOneThrough() throws Exception {
+        // Every request covers the night checkin + 2, so at most one of them can be booked.
+        LocalDate checkin = LocalDate.now().plusDays(30);
+        AtomicInteger booked = new AtomicInteger();
+        AtomicInteger collisions = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int offset = i % 3;
+            String guest = "guest" + i;
+            futures.add(executor.submit(() -> {
+                start.await();
+                try {
+                    reservationService.add(reservation(guest, checkin.plusDays(offset), checkin.plusDays(3)));
+                    booked.incrementAndGet();
+                } catch (ReservationCollisionException e) {
+                    collisions.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(1, booked.get());
+        assertEquals(THREADS - 1, collisions.get());
+        assertEquals(1, reservations.size());
+        assertEquals(1, reservedDateStore.maxBookingsPerNight());
+        assertFalse(availabilityIndex.isAvailable(STAY_ID, checkin.plusDays(2), checkin.plusDays(3)));
+    }
+
+    @Test
+    void anotherGuestsHoldBlocksTheBookingButNotTheHolder() {
+        LocalDate checkin = LocalDate.now().plusDays(10);
+        reservationHoldService.place(STAY_ID, "holder", checkin, checkin.plusDays(2), 10);
+
+        assertThrows(ReservationCollisionException.class,
+                () -> reservationService.add(reservation("other", checkin.plusDays(1), checkin.plusDays(4))));
+        reservationService.add(reservation("holder", checkin, checkin.plusDays(2)));
+
+        assertEquals(1, reservations.size());
+        assertEquals(1, reservedDateStore.count(STAY_ID, checkin));
+    }
+
+    @Test
+    void rolledBackBookingLeavesTheIndexAlone() {
+        LocalDate checkin = LocalDate.now().plusDays(10);
+        failSave = true;
+
+        assertThrows(IllegalStateException.class,
+                () -> reservationService.add(reservation("guest", checkin, checkin.plusDays(2))));
+
+        // The after-commit callback never ran, search still sees the nights as free.
+        assertTrue(availabilityIndex.isAvailable(STAY_ID, checkin, checkin.plusDays(2)));
+        assertTrue(reservations.isEmpty());
+    }
+
+    @Test
+    void deleteRacingAChangeOfDatesReleasesTheNightsItEndsUpWith() throws Exception {
+        LocalDate checkin = LocalDate.now().plusDays(20);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int round = 0; round < 200; round++) {
+            reservationService.add(reservation("guest", checkin, checkin.plusDays(2)));
+            Long id = reservations.keySet().iterator().next();
+            CountDownLatch start = new CountDownLatch(1);
+            Future<?> change = executor.submit(() -> {
+                start.await();
+                try {
+                    reservationService.changeDates(id, "guest", checkin.plusDays(5), checkin.plusDays(7));
+                } catch (ReservationNotFoundException e) {
+                    // deleted first
+                }
+                return null;
+            });
+            Future<?> delete = executor.submit(() -> {
+                start.await();
+                reservationService.delete(id, "guest");
+                return null;
+            });
+            start.countDown();
+            change.get(10, TimeUnit.SECONDS);
+            delete.get(10, TimeUnit.SECONDS);
+
+            assertTrue(reservations.isEmpty());
+            assertEquals(0, reservedDateStore.maxBookingsPerNight(), "round " + round);
+            assertTrue(availabilityIndex.isAvailable(STAY_ID, checkin, checkin.plusDays(7)), "round " + round);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    void secondDeleteOfTheSameReservationIsNotFound() {
+        LocalDate checkin = LocalDate.now().plusDays(10);
+        reservationService.add(reservation("guest", checkin, checkin.plusDays(2)));
+        Long id = reservations.keySet().iterator().next();
+
+        reservationService.delete(id, "guest");
+
+        assertThrows(ReservationNotFoundException.class, () -> reservationService.delete(id, "guest"));
+        assertEquals(0, reservedDateStore.count(STAY_ID, checkin));
+    }
+
+    @Test
+    void calendarJoinsTouchingReservationsAndClipsToTheLastMonth() {
+        LocalDate today = LocalDate.now();
+        LocalDate to = today.withDayOfMonth(1).plusMonths(2);
+        reservationService.add(reservation("a", today.plusDays(1), today.plusDays(3)));
+        reservationService.add(reservation("b", today.plusDays(3), today.plusDays(4)));
+        reservationService.add(reservation("c", today.plusDays(6), today.plusDays(7)));
+        reservationService.add(reservation("d", to.minusDays(1), to.plusDays(5)));
+
+        StayCalendar calendar = reservationService.calendar(STAY_ID, 2, false);
+
+        assertEquals(today, calendar.getFrom());
+        assertEquals(to, calendar.getTo());
+        assertEquals(List.of(today.plusDays(1) + "/" + today.plusDays(4), today.plusDays(6) + "/" + today.plusDays(7),
+                to.minusDays(1) + "/" + to), ranges(calendar));
+    }
+
+    @Test
+    void calendarBitmapHasOneBitPerDayOfTheMonth() {
+        LocalDate today = LocalDate.now();
+        LocalDate nextMonth = today.withDayOfMonth(1).plusMonths(1);
+        reservationService.add(reservation("a", nextMonth.plusDays(1), nextMonth.plusDays(3))); // days 2 and 3
+        reservationService.add(reservation("b", nextMonth.minusDays(1), nextMonth)); // last day of this month
+
+        StayCalendar calendar = reservationService.calendar(STAY_ID, 3, true);
+
+        assertEquals(3, calendar.getMonths().size());
+        assertEquals(nextMonth.toString().substring(0, 7), calendar.getMonths().get(1).getMonth());
+        assertEquals(1 << (nextMonth.minusDays(1).getDayOfMonth() - 1), bits(calendar.getMonths().get(0)));
+        assertEquals(0b110, bits(calendar.getMonths().get(1)));
+        assertEquals(0, bits(calendar.getMonths().get(2)));
+    }
+
+    @Test
+    void calendarEtagChangesWithTheBookedNightsOnly() {
+        LocalDate checkin = LocalDate.now().plusDays(5);
+        String empty = reservationService.calendar(STAY_ID, 12, false).etag();
+        assertEquals(empty, reservationService.calendar(STAY_ID, 12, false).etag());
+
+        reservationService.add(reservation("guest", checkin, checkin.plusDays(2)));
+        String booked = reservationService.calendar(STAY_ID, 12, false).etag();
+        assertNotEquals(empty, booked);
+        assertNotEquals(reservationService.calendar(STAY_ID, 12, true).etag(),
+                reservationService.calendar(STAY_ID, 11, true).etag());
+
+        reservationService.delete(reservations.keySet().iterator().next(), "guest");
+        assertEquals(empty, reservationService.calendar(STAY_ID, 12, false).etag());
+    }
+
+    private static List<String> ranges(StayCalendar calendar) {
+        List<String> ranges = new ArrayList<>();
+        for (DateRange range : calendar.getReserved()) {
+            ranges.add(range.getStart() + "/" + range.getEnd());
+        }
+        return ranges;
+    }
+
+    private static int bits(StayCalendar.Month month) {
+        return ByteBuffer.wrap(Base64.getDecoder().decode(month.getBitmap())).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static Reservation reservation(String guest, LocalDate checkin, LocalDate checkout) {
+        return new Reservation.Builder()
+                .setCheckinDate(checkin)
+                .setCheckoutDate(checkout)
+                .setStay(new Stay.Builder().setId(STAY_ID).build())
+                .setGuest(new User.Builder().setUsername(guest).build())
+                .build();
+    }
+
+    // What the repository keeps: the reservation with its generated id.
+    private static Reservation copy(Reservation reservation, Long id) {
+        return new Reservation.Builder()
+                .setId(id)
+                .setCheckinDate(reservation.getCheckinDate())
+                .setCheckoutDate(reservation.getCheckoutDate())
+                .setStay(reservation.getStay())
+                .setGuest(reservation.getGuest())
+                .build();
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("equals") ? proxy == args[0]
+                        : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getName();
+            }
+            return handler.handle(method.getName(), args);
+        });
+    }
+}
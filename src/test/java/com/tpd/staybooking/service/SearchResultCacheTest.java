@@ -0,0 +1,147 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.model.CursorPage;
+import com.tpd.staybooking.model.SearchCriteria;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+Entries are looked up again after every change, and searches that ran while a change was committed are stored only
+when the change cannot have touched their page.
+*/
+class SearchResultCacheTest {
+
+    private static final LocalDate CHECKIN = LocalDate.now().plusDays(30);
+    private static final LocalDate CHECKOUT = CHECKIN.plusDays(3);
+
+    @Test
+    void onlyIdenticalSearchesShareAnEntry() {
+        SearchResultCache cache = cache("index", 100, 60);
+        put(cache, search(48.85661, 2.35222), List.of(1L), cache.version());
+
+        assertNotNull(cache.get(search(48.85661, 2.35222)));
+        assertNull(cache.get(search(48.85662, 2.35222)));
+    }
+
+    @Test
+    void bookingDropsTheEntriesThatLookedAtTheStay() {
+        SearchResultCache cache = cache("index", 100, 60);
+        put(cache, search(48.0, 2.0), List.of(1L, 2L), cache.version());
+        put(cache, search(40.0, 3.0), List.of(3L), cache.version());
+
+        cache.invalidateStay(2L);
+
+        assertNull(cache.get(search(48.0, 2.0)));
+        assertNotNull(cache.get(search(40.0, 3.0)));
+    }
+
+    @Test
+    void searchRacingABookingOfOneOfItsStaysIsNotStored() {
+        SearchResultCache cache = cache("index", 100, 60);
+        long version = cache.version();
+        cache.invalidateStay(2L); // committed while the search was running
+        put(cache, search(48.0, 2.0), List.of(1L, 2L), version);
+
+        assertNull(cache.get(search(48.0, 2.0)));
+    }
+
+    @Test
+    void searchRacingAnUnrelatedBookingIsStored() {
+        SearchResultCache cache = cache("index", 100, 60);
+        long version = cache.version();
+        cache.invalidateStay(9L);
+        cache.invalidateRelease(8L, CHECKIN, CHECKOUT);
+        cache.invalidateLocation(10.0, 10.0); // far outside the search circle
+        put(cache, search(48.0, 2.0), List.of(1L, 2L), version);
+
+        assertNotNull(cache.get(search(48.0, 2.0)));
+    }
+
+    @Test
+    void searchRacingANewStayInItsCircleIsNotStored() {
+        SearchResultCache cache = cache("index", 100, 60);
+        long version = cache.version();
+        cache.invalidateLocation(48.05, 2.0); // about 5.6 km away, the circle is 10 km
+        put(cache, search(48.0, 2.0), List.of(1L), version);
+
+        assertNull(cache.get(search(48.0, 2.0)));
+    }
+
+    @Test
+    void searchOlderThanTheKnownInvalidationsIsNotStored() {
+        SearchResultCache cache = cache("index", 100, 60);
+        long version = cache.version();
+        for (long stayId = 100; stayId < 10_000; stayId++) {
+            cache.invalidateStay(stayId);
+        }
+        put(cache, search(48.0, 2.0), List.of(1L), version);
+
+        assertNull(cache.get(search(48.0, 2.0)));
+    }
+
+    // With search.filter=elasticsearch a page never saw the stays that were booked, a release can add one to it.
+    @Test
+    void releaseDropsOverlappingDatesOnlyWhenElasticsearchFilteredAvailability() {
+        SearchResultCache elasticsearch = cache("elasticsearch", 100, 60);
+        SearchResultCache index = cache("index", 100, 60);
+        for (SearchResultCache cache : List.of(elasticsearch, index)) {
+            put(cache, search(48.0, 2.0), List.of(1L), cache.version());
+            cache.invalidateRelease(5L, CHECKOUT.minusDays(1), CHECKOUT.plusDays(2));
+        }
+
+        assertNull(elasticsearch.get(search(48.0, 2.0)));
+        assertNotNull(index.get(search(48.0, 2.0)));
+
+        put(elasticsearch, search(48.0, 2.0), List.of(1L), elasticsearch.version());
+        elasticsearch.invalidateRelease(5L, CHECKOUT, CHECKOUT.plusDays(2)); // starts on the checkout day
+        assertNotNull(elasticsearch.get(search(48.0, 2.0)));
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvictedWhenFull() {
+        SearchResultCache cache = cache("index", 2, 60);
+        put(cache, search(1.0, 1.0), List.of(1L), cache.version());
+        put(cache, search(2.0, 2.0), List.of(2L), cache.version());
+        cache.get(search(1.0, 1.0));
+        put(cache, search(3.0, 3.0), List.of(3L), cache.version());
+
+        assertNotNull(cache.get(search(1.0, 1.0)));
+        assertNull(cache.get(search(2.0, 2.0)));
+        assertNotNull(cache.get(search(3.0, 3.0)));
+    }
+
+    @Test
+    void entriesExpireAfterTheTtl() throws InterruptedException {
+        SearchResultCache cache = cache("index", 100, 0);
+        put(cache, search(48.0, 2.0), List.of(1L), cache.version());
+        Thread.sleep(5);
+
+        assertNull(cache.get(search(48.0, 2.0)));
+    }
+
+    private static SearchResultCache cache(String searchFilter, int maxEntries, long ttlSeconds) {
+        return new SearchResultCache(new SimpleMeterRegistry(), true, maxEntries, ttlSeconds, searchFilter);
+    }
+
+    private static void put(SearchResultCache cache, SearchCriteria criteria, List<Long> candidateIds, long version) {
+        cache.put(criteria, new CursorPage<>(List.of(), null), candidateIds, version);
+    }
+
+    private static SearchCriteria search(double lat, double lon) {
+        return new SearchCriteria.Builder()
+                .setLat(lat)
+                .setLon(lon)
+                .setDistance("10km")
+                .setCheckinDate(CHECKIN)
+                .setCheckoutDate(CHECKOUT)
+                .setGuestNumber(2)
+                .setPageSize(20)
+                .build();
+    }
+}
@@ -0,0 +1,280 @@
+package com.tpd.staybooking.service;
+
+import com.tpd.staybooking.exception.StayNotExistException;
+import com.tpd.staybooking.model.BlockResult;
+import com.tpd.staybooking.model.DateRange;
+import com.tpd.staybooking.model.ReservedRange;
+import com.tpd.staybooking.model.Stay;
+import com.tpd.staybooking.model.StayBlock;
+import com.tpd.staybooking.repository.CustomLocationRepository;
+import com.tpd.staybooking.repository.ReservedDateStore;
+import com.tpd.staybooking.repository.StayBlockRepository;
+import com.tpd.staybooking.repository.StayRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Blocks share the reserved nights with guests' bookings, and holds live in the AvailabilityIndex only. Whatever the
+host blocks or unblocks, a guest's nights must stay taken. Stays 1 and 2 belong to "host", stay 3 to someone else.
+*/
+class StayBlockServiceTest {
+
+    private static final LocalDate DAY = LocalDate.now().plusDays(10);
+
+    private List<ReservedRange> reserved; // bookings and blocks, one range per row like the interval store
+    private List<StayBlock> blocks;
+    private AvailabilityIndex availabilityIndex;
+    private ReservationHoldService reservationHoldService;
+    private StayBlockService stayBlockService;
+
+    // Real transaction synchronization (so afterCommit callbacks run), without a database.
+    private static class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        reserved = new ArrayList<>();
+        blocks = new ArrayList<>();
+        ReservedDateStore reservedDateStore = fake(ReservedDateStore.class, (name, args) -> {
+            switch (name) {
+                case "findRanges":
+                    List<?> stayIds = (List<?>) args[0];
+                    return reserved.stream()
+                            .filter(range -> stayIds.contains(range.getStayId())
+                                    && overlaps(range.getStartDate(), range.getEndDate(), (LocalDate) args[1],
+                                            (LocalDate) args[2]))
+                            .collect(Collectors.toList());
+                case "findRangesEndingAfter":
+                    return List.copyOf(reserved);
+                case "reserveAll":
+                    @SuppressWarnings("unchecked")
+                    List<ReservedRange> ranges = (List<ReservedRange>) args[0];
+                    reserved.addAll(ranges);
+                    return null;
+                case "release":
+                    release((Long) args[0], (LocalDate) args[1], (LocalDate) args[2]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        StayBlockRepository stayBlockRepository = fake(StayBlockRepository.class, (name, args) -> {
+            switch (name) {
+                case "findOverlapping":
+                    List<?> stayIds = (List<?>) args[0];
+                    return blocks.stream()
+                            .filter(block -> stayIds.contains(block.getStay().getId())
+                                    && overlaps(block.getStartDate(), block.getEndDate(), (LocalDate) args[1],
+                                            (LocalDate) args[2]))
+                            .collect(Collectors.toList());
+                case "saveAll":
+                    for (Object block : (Iterable<?>) args[0]) {
+                        blocks.add((StayBlock) block);
+                    }
+                    return args[0];
+                case "deleteAllInBatch":
+                    for (Object block : (Iterable<?>) args[0]) {
+                        blocks.remove(block);
+                    }
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+        StayRepository stayRepository = fake(StayRepository.class, (name, args) -> {
+            if (!name.equals("findIdsByIdInAndHost")) {
+                throw new UnsupportedOperationException(name);
+            }
+            return "host".equals(args[1])
+                    ? ((List<?>) args[0]).stream().filter(Set.of(1L, 2L)::contains).collect(Collectors.toList())
+                    : List.of();
+        });
+        CustomLocationRepository locationRepository = fake(CustomLocationRepository.class,
+                (name, args) -> name.equals("ensureMapping") ? false : null);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        availabilityIndex = new AvailabilityIndex(reservedDateStore);
+        SearchResultCache searchResultCache = new SearchResultCache(meterRegistry, true, 100, 60, "index");
+        reservationHoldService = new ReservationHoldService(availabilityIndex, searchResultCache, meterRegistry,
+                1000, 3);
+        LocationSyncService locationSyncService = new LocationSyncService(locationRepository, stayRepository,
+                availabilityIndex, null);
+        stayBlockService = new StayBlockService(stayRepository, stayBlockRepository, reservedDateStore,
+                availabilityIndex, locationSyncService, searchResultCache, new BookingArbiter(64, 1, 1000),
+                new TransactionTemplate(new NoOpTransactionManager()));
+    }
+
+    @Test
+    void blockTakesOnlyTheFreeNightsAndReportsTheGuestsAsSkipped() {
+        book(1L, 3, 5);
+        availabilityIndex.rebuild();
+        reservationHoldService.place(1L, "guest", DAY.plusDays(7), DAY.plusDays(8), 10);
+
+        BlockResult result = stayBlockService.block("host", List.of(1L), List.of(range(1, 10))).get(0);
+
+        assertEquals(List.of(text(1, 3), text(5, 7), text(8, 10)), text(result.getChanged()));
+        assertEquals(List.of(text(3, 5), text(7, 8)), text(result.getSkipped()));
+        assertFalse(availabilityIndex.isAvailable(1L, DAY.plusDays(1), DAY.plusDays(2)));
+        assertEquals(List.of(text(1, 3), text(5, 7), text(8, 10)), blocks(1L));
+    }
+
+    @Test
+    void unblockNeverReleasesAGuestsNights() {
+        book(1L, 3, 5);
+        availabilityIndex.rebuild();
+        reservationHoldService.place(1L, "guest", DAY.plusDays(7), DAY.plusDays(8), 10);
+        stayBlockService.block("host", List.of(1L), List.of(range(1, 10)));
+
+        BlockResult result = stayBlockService.unblock("host", List.of(1L), List.of(range(0, 12))).get(0);
+
+        assertEquals(List.of(text(1, 3), text(5, 7), text(8, 10)), text(result.getChanged()));
+        assertTrue(blocks(1L).isEmpty());
+        assertTrue(availabilityIndex.isAvailable(1L, DAY.plusDays(1), DAY.plusDays(3)));
+        assertFalse(availabilityIndex.isAvailable(1L, DAY.plusDays(4), DAY.plusDays(5))); // still booked
+        assertTrue(availabilityIndex.isHeld(1L, DAY.plusDays(7), DAY.plusDays(8)));
+        assertEquals(List.of(text(3, 5)), reservedRanges(1L));
+    }
+
+    @Test
+    void blockingBlockedNightsAgainChangesNothing() {
+        availabilityIndex.rebuild();
+        stayBlockService.block("host", List.of(2L), List.of(range(1, 5)));
+
+        BlockResult result = stayBlockService.block("host", List.of(2L), List.of(range(3, 7), range(4, 6))).get(0);
+
+        assertEquals(List.of(text(5, 7)), text(result.getChanged()));
+        assertTrue(result.getSkipped().isEmpty());
+        assertEquals(List.of(text(1, 5), text(5, 7)), blocks(2L));
+    }
+
+    @Test
+    void unblockingTheMiddleOfABlockKeepsBothEnds() {
+        availabilityIndex.rebuild();
+        stayBlockService.block("host", List.of(2L), List.of(range(1, 10)));
+
+        BlockResult result = stayBlockService.unblock("host", List.of(2L), List.of(range(4, 6))).get(0);
+
+        assertEquals(List.of(text(4, 6)), text(result.getChanged()));
+        assertEquals(List.of(text(1, 4), text(6, 10)), blocks(2L));
+        assertTrue(availabilityIndex.isAvailable(2L, DAY.plusDays(4), DAY.plusDays(6)));
+        assertFalse(availabilityIndex.isAvailable(2L, DAY.plusDays(3), DAY.plusDays(4)));
+        assertFalse(availabilityIndex.isAvailable(2L, DAY.plusDays(6), DAY.plusDays(7)));
+    }
+
+    @Test
+    void anotherHostsStayChangesNothing() {
+        availabilityIndex.rebuild();
+
+        assertThrows(StayNotExistException.class,
+                () -> stayBlockService.block("host", List.of(1L, 3L), List.of(range(1, 5))));
+        assertTrue(blocks.isEmpty());
+        assertTrue(reserved.isEmpty());
+    }
+
+    private void book(Long stayId, int from, int to) {
+        reserved.add(new ReservedRange(stayId, DAY.plusDays(from), DAY.plusDays(to)));
+    }
+
+    // Splits the stored ranges of the stay around [start, end), like deleting the nights of a nightly store.
+    private void release(Long stayId, LocalDate start, LocalDate end) {
+        List<ReservedRange> kept = new ArrayList<>();
+        for (ReservedRange range : reserved) {
+            if (!range.getStayId().equals(stayId) || !overlaps(range.getStartDate(), range.getEndDate(), start, end)) {
+                kept.add(range);
+                continue;
+            }
+            if (range.getStartDate().isBefore(start)) {
+                kept.add(new ReservedRange(stayId, range.getStartDate(), start));
+            }
+            if (end.isBefore(range.getEndDate())) {
+                kept.add(new ReservedRange(stayId, end, range.getEndDate()));
+            }
+        }
+        reserved = kept;
+    }
+
+    private List<String> blocks(Long stayId) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (StayBlock block : blocks) {
+            if (block.getStay().getId().equals(stayId)) {
+                sorted.add(block.getStartDate() + "/" + block.getEndDate());
+            }
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private List<String> reservedRanges(Long stayId) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (ReservedRange range : reserved) {
+            if (range.getStayId().equals(stayId)) {
+                sorted.add(range.getStartDate() + "/" + range.getEndDate());
+            }
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private static List<String> text(List<DateRange> ranges) {
+        return ranges.stream().map(range -> range.getStart() + "/" + range.getEnd()).collect(Collectors.toList());
+    }
+
+    private static String text(int from, int to) {
+        return DAY.plusDays(from) + "/" + DAY.plusDays(to);
+    }
+
+    private static DateRange range(int from, int to) {
+        return new DateRange(DAY.plusDays(from), DAY.plusDays(to));
+    }
+
+    private static boolean overlaps(LocalDate start, LocalDate end, LocalDate otherStart, LocalDate otherEnd) {
+        return start.isBefore(otherEnd) && otherStart.isBefore(end);
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("equals") ? proxy == args[0]
+                        : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getName();
+            }
+            return handler.handle(method.getName(), args);
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package com.tpd.staybooking.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BoundedExecutorTest {
+
+    private final BoundedExecutor executor = new BoundedExecutor("test", 1, 1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    void taskResultIsReturned() throws Exception {
+        assertEquals("done", executor.supply(() -> "done", 1000).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void taskBeyondTheQueueIsRejectedRightAway() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        executor.supply(() -> {
+            started.countDown();
+            return await(release);
+        }, 10_000);
+        started.await(5, TimeUnit.SECONDS);
+        executor.supply(() -> "queued", 10_000); // the only place in the queue
+
+        CompletableFuture<String> rejected = executor.supply(() -> "rejected", 10_000);
+
+        assertTrue(rejected.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    void runningTaskIsInterruptedOnTimeout() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<String> result = executor.supply(() -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "late";
+        }, 50);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void queuedTaskThatTimedOutNeverRuns() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor("queue", 1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.supply(() -> {
+            started.countDown();
+            return await(release);
+        }, 10_000);
+        started.await(5, TimeUnit.SECONDS);
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<String> queued = executor.supply(() -> {
+            ran.set(true);
+            return "queued";
+        }, 50);
+
+        assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        CompletableFuture<String> next = executor.supply(() -> "next", 5000);
+        release.countDown();
+
+        // The next task only runs after the cancelled one was taken off the queue.
+        assertEquals("next", next.get(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        executor.shutdown();
+    }
+
+    private static String await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "first";
+    }
+}
@@ -0,0 +1,196 @@
+package com.tpd.staybooking.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+DateBitmap works on whole words with masks, so the cases that matter are ranges that start, end or both inside a
+word and ranges across word boundaries. java.util.BitSet, one bit per night from the origin, is the reference.
+*/
+class DateBitmapTest {
+
+    private static final LocalDate ORIGIN = LocalDate.of(2026, 1, 1);
+    private static final int NIGHTS = 400;
+
+    @Test
+    void setClearAndIntersectsMatchABitSet() {
+        Random random = new Random(42);
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        BitSet reference = new BitSet();
+        for (int i = 0; i < 5000; i++) {
+            int from = random.nextInt(NIGHTS);
+            int to = from + random.nextInt(130);
+            switch (random.nextInt(3)) {
+                case 0:
+                    bitmap.set(night(from), night(to));
+                    reference.set(from, to);
+                    break;
+                case 1:
+                    bitmap.clear(night(from), night(to));
+                    reference.clear(from, to);
+                    break;
+                default:
+                    boolean expected = reference.get(from, Math.max(from, to)).cardinality() > 0;
+                    assertEquals(expected, bitmap.intersects(night(from), night(to)), "[" + from + ", " + to + ")");
+            }
+            assertEquals(reference.isEmpty(), bitmap.isEmpty());
+        }
+    }
+
+    @Test
+    void rangesAtWordBoundaries() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(night(63), night(65));
+
+        assertTrue(bitmap.intersects(night(63), night(64)));
+        assertTrue(bitmap.intersects(night(64), night(65)));
+        assertFalse(bitmap.intersects(night(0), night(63)));
+        assertFalse(bitmap.intersects(night(65), night(128)));
+        assertTrue(bitmap.intersects(night(0), night(200)));
+
+        bitmap.clear(night(64), night(128));
+        assertTrue(bitmap.intersects(night(63), night(64)));
+        assertFalse(bitmap.intersects(night(64), night(65)));
+    }
+
+    @Test
+    void emptyAndReversedRangesDoNothing() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(night(10), night(10));
+        bitmap.set(night(20), night(10));
+
+        assertTrue(bitmap.isEmpty());
+        bitmap.set(night(10), night(20));
+        assertFalse(bitmap.intersects(night(15), night(15)));
+        assertFalse(bitmap.intersects(night(20), night(10)));
+    }
+
+    @Test
+    void nightsBeforeTheOriginAreIgnored() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(ORIGIN.minusDays(10), ORIGIN.minusDays(1));
+        assertTrue(bitmap.isEmpty());
+
+        // A range that started in the past keeps its nights from the origin on.
+        bitmap.set(ORIGIN.minusDays(5), night(3));
+        assertTrue(bitmap.intersects(ORIGIN.minusDays(30), night(1)));
+        assertFalse(bitmap.intersects(night(3), night(10)));
+        assertFalse(bitmap.intersects(ORIGIN.minusDays(30), ORIGIN));
+    }
+
+    @Test
+    void clearBeyondTheLastWordIsANoOp() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(night(1), night(2));
+        bitmap.clear(night(500), night(900));
+
+        assertTrue(bitmap.intersects(night(0), night(1000)));
+        assertFalse(bitmap.intersects(night(500), night(900)));
+    }
+
+    @Test
+    void forEachRangeReturnsTheRunsOfReservedNights() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            DateBitmap bitmap = new DateBitmap(ORIGIN);
+            BitSet reference = new BitSet();
+            for (int i = 0; i < 10; i++) {
+                int from = random.nextInt(NIGHTS);
+                int to = from + 1 + random.nextInt(80);
+                bitmap.set(night(from), night(to));
+                reference.set(from, to);
+            }
+            List<String> expected = new ArrayList<>();
+            for (int start = reference.nextSetBit(0); start >= 0; start = reference.nextSetBit(start)) {
+                int end = reference.nextClearBit(start);
+                expected.add(range(start, end));
+                start = end;
+            }
+            List<String> actual = new ArrayList<>();
+            bitmap.forEachRange((start, end) -> actual.add(start + "/" + end));
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void forEachRangeEndsARunThatFillsTheLastWord() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(night(100), night(128));
+        List<String> actual = new ArrayList<>();
+        bitmap.forEachRange((start, end) -> actual.add(start + "/" + end));
+
+        assertEquals(List.of(range(100, 128)), actual);
+    }
+
+    @Test
+    void forEachFreeRangeReturnsTheFreeRunsInsideTheWindow() {
+        Random random = new Random(11);
+        for (int round = 0; round < 500; round++) {
+            DateBitmap bitmap = new DateBitmap(ORIGIN);
+            BitSet reference = new BitSet();
+            for (int i = random.nextInt(8); i > 0; i--) {
+                int from = random.nextInt(NIGHTS);
+                int to = from + 1 + random.nextInt(70);
+                bitmap.set(night(from), night(to));
+                reference.set(from, to);
+            }
+            int windowStart = random.nextInt(NIGHTS);
+            int windowEnd = windowStart + random.nextInt(200);
+            List<String> expected = new ArrayList<>();
+            for (int start = reference.nextClearBit(windowStart); start < windowEnd;
+                    start = reference.nextClearBit(start)) {
+                int end = Math.min(windowEnd, nextSetBit(reference, start));
+                expected.add(range(start, end));
+                start = end;
+            }
+            List<String> actual = new ArrayList<>();
+            bitmap.forEachFreeRange(night(windowStart), night(windowEnd),
+                    (start, end) -> actual.add(start + "/" + end));
+
+            assertEquals(expected, actual, "window [" + windowStart + ", " + windowEnd + ")");
+        }
+    }
+
+    @Test
+    void forEachFreeRangeOfAnEmptyBitmapIsTheWholeWindow() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        List<String> actual = new ArrayList<>();
+        bitmap.forEachFreeRange(night(5), night(300), (start, end) -> actual.add(start + "/" + end));
+
+        assertEquals(List.of(range(5, 300)), actual);
+    }
+
+    @Test
+    void forEachFreeRangeOfAFullyReservedWindowIsEmpty() {
+        DateBitmap bitmap = new DateBitmap(ORIGIN);
+        bitmap.set(night(0), night(128));
+        List<String> actual = new ArrayList<>();
+        bitmap.forEachFreeRange(night(10), night(128), (start, end) -> actual.add(start + "/" + end));
+
+        assertTrue(actual.isEmpty());
+    }
+
+    // BitSet.nextSetBit returns -1 past the last set bit, a free run then goes on forever.
+    private static int nextSetBit(BitSet bits, int from) {
+        int next = bits.nextSetBit(from);
+        return next < 0 ? Integer.MAX_VALUE : next;
+    }
+
+    private static String range(int from, int to) {
+        return night(from) + "/" + night(to);
+    }
+
+    private static LocalDate night(int offset) {
+        return ORIGIN.plusDays(offset);
+    }
+}
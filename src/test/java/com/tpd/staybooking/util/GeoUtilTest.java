@@ -0,0 +1,69 @@
+package com.tpd.staybooking.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class GeoUtilTest {
+
+    @Test
+    void geohashOfAKnownPoint() {
+        assertEquals("u4pruydqqvj", GeoUtil.geohash(57.64911, 10.40744, 11));
+        assertEquals("u4pru", GeoUtil.geohash(57.64911, 10.40744, 5));
+        assertEquals("s0000", GeoUtil.geohash(0, 0, 5));
+    }
+
+    /*
+    The embedded backend covers a circle with cells of cellWidth x cellHeight degrees laid on a grid from (-90, -180).
+    Every point inside such a grid cell must get the same geohash, and a point just across a border another one.
+    */
+    @Test
+    void cellSizesMatchTheGeohashGrid() {
+        Random random = new Random(5);
+        for (int precision = 1; precision <= 9; precision++) {
+            double height = GeoUtil.cellHeight(precision);
+            double width = GeoUtil.cellWidth(precision);
+            for (int i = 0; i < 200; i++) {
+                double lat = -89 + 178 * random.nextDouble();
+                double lon = -179 + 358 * random.nextDouble();
+                double south = -90 + Math.floor((lat + 90) / height) * height;
+                double west = -180 + Math.floor((lon + 180) / width) * width;
+                double insetLat = height * 1e-3;
+                double insetLon = width * 1e-3;
+                String hash = GeoUtil.geohash(lat, lon, precision);
+
+                assertEquals(hash, GeoUtil.geohash(south + insetLat, west + insetLon, precision));
+                assertEquals(hash, GeoUtil.geohash(south + height - insetLat, west + width - insetLon, precision));
+                if (south + height < 90) {
+                    assertNotEquals(hash, GeoUtil.geohash(south + height + insetLat, lon, precision));
+                }
+                if (west > -180) {
+                    assertNotEquals(hash, GeoUtil.geohash(lat, west - insetLon, precision));
+                }
+            }
+        }
+    }
+
+    @Test
+    void distanceKm() {
+        assertEquals(0, GeoUtil.distanceKm(37.7749, -122.4194, 37.7749, -122.4194), 1e-9);
+        // Paris to London
+        assertEquals(343.5, GeoUtil.distanceKm(48.8566, 2.3522, 51.5074, -0.1278), 0.5);
+        // One degree of latitude anywhere, and of longitude on the equator
+        assertEquals(111.195, GeoUtil.distanceKm(10, 20, 11, 20), 1e-3);
+        assertEquals(111.195, GeoUtil.distanceKm(0, 179.5, 0, -179.5), 1e-3);
+        // Antipodes
+        assertEquals(Math.PI * GeoUtil.EARTH_MEAN_RADIUS_KM, GeoUtil.distanceKm(0, 0, 0, 180), 1e-6);
+    }
+
+    @Test
+    void parseDistanceKmDefaultsToKilometers() {
+        assertEquals(10, GeoUtil.parseDistanceKm("10"), 1e-9);
+        assertEquals(2.5, GeoUtil.parseDistanceKm("2.5km"), 1e-9);
+        assertEquals(0.8, GeoUtil.parseDistanceKm("800m"), 1e-9);
+        assertEquals(4.828032, GeoUtil.parseDistanceKm("3mi"), 1e-6);
+    }
+}
@@ -0,0 +1,96 @@
+package com.tpd.staybooking.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The clock is passed in, so time is simulated: a wheel of 8 buckets of 100 ms that starts at 1000.
+*/
+class TimerWheelTest {
+
+    private static final long TICK = 100;
+    private static final int SIZE = 8;
+    private static final long START = 1000;
+
+    @Test
+    void timeoutFiresOnTheFirstTickAtOrAfterItsDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, SIZE, START);
+        wheel.schedule("a", START + 250);
+
+        assertTrue(wheel.advance(START + 200).isEmpty());
+        assertTrue(wheel.advance(START + 299).isEmpty());
+        assertEquals(List.of("a"), wheel.advance(START + 300));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void deadlinesMoreThanOneTurnAheadWaitForTheirTurn() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, SIZE, START);
+        wheel.schedule("near", START + 300);
+        wheel.schedule("far", START + 300 + 2 * SIZE * TICK); // same bucket, two turns later
+
+        assertEquals(List.of("near"), wheel.advance(START + 300));
+        for (long now = START + 400; now < START + 300 + 2 * SIZE * TICK; now += TICK) {
+            assertTrue(wheel.advance(now).isEmpty(), "at " + now);
+        }
+        assertEquals(List.of("far"), wheel.advance(START + 300 + 2 * SIZE * TICK));
+    }
+
+    @Test
+    void deadlineInThePastFiresOnTheNextTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, SIZE, START);
+        wheel.advance(START + 500);
+        wheel.schedule("late", START + 100);
+
+        assertTrue(wheel.advance(START + 599).isEmpty());
+        assertEquals(List.of("late"), wheel.advance(START + 600));
+    }
+
+    @Test
+    void cancelRemovesTheTimeoutOnce() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, SIZE, START);
+        TimerWheel.Timeout<String> cancelled = wheel.schedule("cancelled", START + 200);
+        TimerWheel.Timeout<String> fired = wheel.schedule("fired", START + 200);
+
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(List.of("fired"), wheel.advance(START + 200));
+        assertFalse(wheel.cancel(fired));
+    }
+
+    @Test
+    void afterALongPauseEveryDueTimeoutFiresAndNoneEarly() {
+        Random random = new Random(3);
+        TimerWheel<Integer> wheel = new TimerWheel<>(TICK, SIZE, START);
+        Map<Integer, Long> deadlines = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            long deadline = START + random.nextInt(10 * SIZE * (int) TICK);
+            deadlines.put(i, deadline);
+            wheel.schedule(i, deadline);
+        }
+        List<Integer> expired = new ArrayList<>();
+        long now = START;
+        while (expired.size() < deadlines.size()) {
+            now += random.nextInt(3 * SIZE * (int) TICK); // sometimes longer than a turn of the wheel
+            for (Integer item : wheel.advance(now)) {
+                assertTrue(deadlines.get(item) <= now, item + " fired early");
+                expired.add(item);
+            }
+            for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+                if (entry.getValue() + TICK <= now) {
+                    assertTrue(expired.contains(entry.getKey()), entry.getKey() + " did not fire");
+                }
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+}